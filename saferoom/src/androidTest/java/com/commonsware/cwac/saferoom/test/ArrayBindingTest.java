@@ -0,0 +1,124 @@
+package com.commonsware.cwac.saferoom.test;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.text.SpannableStringBuilder;
+import android.util.Log;
+import com.commonsware.cwac.saferoom.ArrayBinding;
+import com.commonsware.cwac.saferoom.Database;
+import com.commonsware.cwac.saferoom.SafeHelperFactory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import androidx.sqlite.db.SimpleSQLiteQuery;
+import androidx.sqlite.db.SupportSQLiteDatabase;
+import androidx.sqlite.db.SupportSQLiteOpenHelper;
+import static org.junit.Assert.assertEquals;
+
+@RunWith(AndroidJUnit4.class)
+public class ArrayBindingTest {
+  private static final String TAG="ArrayBindingTest";
+  private static final String DB_NAME="db";
+  private static final String PASSPHRASE="cufflink powerboat mundane vagrancy ragweed waving";
+  private static final String COUNT_SQL=
+    "SELECT COUNT(*) FROM foo WHERE bar IN "+ArrayBinding.IN_ARRAY;
+  private static final int ROWS=200000;
+
+  private SupportSQLiteOpenHelper helper;
+  private Database db;
+
+  @Before
+  public void setUp() {
+    SafeHelperFactory factory=
+      SafeHelperFactory.fromUser(new SpannableStringBuilder(PASSPHRASE));
+
+    helper=factory.create(InstrumentationRegistry.getTargetContext(), DB_NAME,
+      new Callback(1));
+    db=(Database)helper.getWritableDatabase();
+  }
+
+  @After
+  public void tearDown() {
+    helper.close();
+
+    Context ctxt=InstrumentationRegistry.getTargetContext();
+    File db=ctxt.getDatabasePath(DB_NAME);
+
+    for (File f : db.getParentFile().listFiles()) {
+      f.delete();
+    }
+  }
+
+  @Test
+  public void strings() {
+    List<String> values=new ArrayList<>();
+
+    values.add("row 1");
+    values.add("row 12");
+    values.add("no \"such\" row\\\n");
+
+    assertEquals(2, count("SELECT COUNT(*) FROM foo WHERE goo IN "+
+      ArrayBinding.IN_ARRAY, ArrayBinding.toJson(values)));
+  }
+
+  @Test
+  public void scaling() {
+    for (int size : new int[] {10, 1000, 100000}) {
+      long[] keys=new long[size];
+
+      for (int i=0;i<size;i++) {
+        keys[i]=i*2;
+      }
+
+      long start=System.nanoTime();
+
+      assertEquals(size, count(COUNT_SQL, ArrayBinding.toJson(keys)));
+      Log.i(TAG, String.format("%d keys: %.2fms", size,
+        (System.nanoTime()-start)/1e6d));
+    }
+  }
+
+  @Test
+  public void delete() {
+    assertEquals(3, db.delete("foo", "bar IN "+ArrayBinding.IN_ARRAY,
+      new Object[] {ArrayBinding.toJson(5, 7L, 9)}));
+  }
+
+  private long count(String sql, String json) {
+    Cursor c=db.query(new SimpleSQLiteQuery(sql, new Object[] {json}));
+
+    try {
+      c.moveToFirst();
+
+      return(c.getLong(0));
+    }
+    finally {
+      c.close();
+    }
+  }
+
+  private static final class Callback extends SupportSQLiteOpenHelper.Callback {
+    public Callback(int version) {
+      super(version);
+    }
+
+    @Override
+    public void onCreate(SupportSQLiteDatabase db) {
+      db.execSQL("CREATE TABLE foo (bar INTEGER PRIMARY KEY, goo TEXT);");
+      db.execSQL("WITH RECURSIVE n(x) AS (SELECT 0 UNION ALL SELECT x+1 FROM n LIMIT "+
+        ROWS+") INSERT INTO foo SELECT x, 'row '||x FROM n;");
+    }
+
+    @Override
+    public void onUpgrade(SupportSQLiteDatabase db, int oldVersion,
+                          int newVersion) {
+
+    }
+  }
+}
@@ -0,0 +1,264 @@
+package com.commonsware.cwac.saferoom.test;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.os.Build;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.SdkSuppress;
+import android.support.test.runner.AndroidJUnit4;
+import android.text.SpannableStringBuilder;
+import com.commonsware.cwac.saferoom.AsyncDatabase;
+import com.commonsware.cwac.saferoom.Database;
+import com.commonsware.cwac.saferoom.DatabaseOperation;
+import com.commonsware.cwac.saferoom.SafeHelperFactory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import java.io.File;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import androidx.sqlite.db.SimpleSQLiteQuery;
+import androidx.sqlite.db.SupportSQLiteDatabase;
+import androidx.sqlite.db.SupportSQLiteOpenHelper;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+@RunWith(AndroidJUnit4.class)
+@SdkSuppress(minSdkVersion=Build.VERSION_CODES.N)
+public class AsyncDatabaseTest {
+  private static final String DB_NAME="db";
+  private static final String PASSPHRASE="cufflink powerboat mundane vagrancy ragweed waving";
+
+  private SupportSQLiteOpenHelper helper;
+  private Database db;
+  private ExecutorService executor;
+
+  @Before
+  public void setUp() {
+    SafeHelperFactory factory=
+      SafeHelperFactory.fromUser(new SpannableStringBuilder(PASSPHRASE));
+
+    helper=factory.create(InstrumentationRegistry.getTargetContext(), DB_NAME,
+      new Callback(1));
+    db=(Database)helper.getWritableDatabase();
+    executor=Executors.newFixedThreadPool(4);
+  }
+
+  @After
+  public void tearDown() throws InterruptedException {
+    executor.shutdown();
+    executor.awaitTermination(10, TimeUnit.SECONDS);
+    helper.close();
+
+    Context ctxt=InstrumentationRegistry.getTargetContext();
+    File db=ctxt.getDatabasePath(DB_NAME);
+
+    for (File f : db.getParentFile().listFiles()) {
+      f.delete();
+    }
+  }
+
+  @Test
+  public void roundTrip() throws Exception {
+    AsyncDatabase async=db.async(executor, 4);
+    ContentValues values=new ContentValues();
+
+    values.put("bar", 1);
+    values.put("goo", "one");
+
+    assertEquals(1L, async.insertAsync("foo",
+      SupportSQLiteDatabase.CONFLICT_NONE, values).get().longValue());
+    async.execAsync("INSERT INTO foo (bar, goo) VALUES (?, ?)",
+      new Object[] {2, "two"}).get();
+
+    Cursor c=async.queryAsync(new SimpleSQLiteQuery("SELECT goo FROM foo ORDER BY bar")).get();
+
+    try {
+      assertEquals(2, c.getCount());
+      c.moveToLast();
+      assertEquals("two", c.getString(0));
+    }
+    finally {
+      c.close();
+    }
+  }
+
+  @Test
+  public void backPressure() throws Exception {
+    final AsyncDatabase async=db.async(executor, 2, 1);
+    final CountDownLatch release=new CountDownLatch(1);
+    DatabaseOperation<Void> blocker=new DatabaseOperation<Void>() {
+      @Override
+      public Void execute(Database db) {
+        try {
+          release.await();
+        }
+        catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+
+        return(null);
+      }
+    };
+
+    CompletableFuture<Void> first=async.submit(blocker);
+    CompletableFuture<Void> second=async.submit(blocker);
+
+    // the third is queued, not run, and submitting it does not block
+    CompletableFuture<Void> third=async.execAsync("SELECT 1", null);
+
+    assertEquals(3, async.getInFlight());
+    assertEquals(1, async.getQueued());
+    assertFalse(third.isDone());
+
+    // the queue is full, so the fourth is turned away
+    CompletableFuture<Void> fourth=async.execAsync("SELECT 1", null);
+
+    assertTrue(fourth.isCompletedExceptionally());
+
+    try {
+      fourth.get();
+      fail("Expected the fourth operation to be rejected");
+    }
+    catch (ExecutionException e) {
+      assertTrue(e.getCause() instanceof RejectedExecutionException);
+    }
+
+    assertEquals(3, async.getInFlight());
+
+    release.countDown();
+    first.get(5, TimeUnit.SECONDS);
+    second.get(5, TimeUnit.SECONDS);
+    third.get(5, TimeUnit.SECONDS);
+    assertEquals(0, async.getQueued());
+  }
+
+  @Test
+  public void directExecutorDrainsWithoutRecursing() throws Exception {
+    final int queued=500;
+    final CountDownLatch started=new CountDownLatch(1);
+    final CountDownLatch release=new CountDownLatch(1);
+    final AtomicInteger maxDepth=new AtomicInteger();
+    final AtomicInteger minDepth=new AtomicInteger(Integer.MAX_VALUE);
+    final AsyncDatabase async=db.async(new Executor() {
+      @Override
+      public void execute(Runnable command) {
+        command.run();
+      }
+    }, 1, queued);
+
+    // the blocker runs inline on this thread, holding the only slot
+    Thread blocked=new Thread() {
+      @Override
+      public void run() {
+        async.submit(new DatabaseOperation<Void>() {
+          @Override
+          public Void execute(Database db) {
+            started.countDown();
+
+            try {
+              release.await();
+            }
+            catch (InterruptedException e) {
+              Thread.currentThread().interrupt();
+            }
+
+            return(null);
+          }
+        });
+      }
+    };
+
+    blocked.start();
+    assertTrue(started.await(5, TimeUnit.SECONDS));
+
+    CompletableFuture<?> last=null;
+
+    for (int i=0;i<queued;i++) {
+      last=async.submit(new DatabaseOperation<Void>() {
+        @Override
+        public Void execute(Database db) {
+          int depth=Thread.currentThread().getStackTrace().length;
+
+          maxDepth.set(Math.max(maxDepth.get(), depth));
+          minDepth.set(Math.min(minDepth.get(), depth));
+
+          return(null);
+        }
+      });
+    }
+
+    assertEquals(queued, async.getQueued());
+
+    // all of the queued work now runs on the blocked thread, one after
+    // another, at the same stack depth
+    release.countDown();
+    last.get(5, TimeUnit.SECONDS);
+    blocked.join(5000);
+
+    assertEquals(0, async.getInFlight());
+    assertEquals(minDepth.get(), maxDepth.get());
+  }
+
+  @Test
+  public void cancelClosesCursor() throws Exception {
+    AsyncDatabase async=db.async(executor, 1);
+    final CountDownLatch started=new CountDownLatch(1);
+    final CountDownLatch release=new CountDownLatch(1);
+    final AtomicReference<Cursor> cursor=new AtomicReference<>();
+    CompletableFuture<Cursor> future=async.submit(new DatabaseOperation<Cursor>() {
+      @Override
+      public Cursor execute(Database db) {
+        started.countDown();
+
+        try {
+          release.await();
+        }
+        catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+
+        cursor.set(db.query("SELECT * FROM foo"));
+
+        return(cursor.get());
+      }
+    });
+
+    assertTrue(started.await(5, TimeUnit.SECONDS));
+    assertTrue(future.cancel(false));
+    release.countDown();
+
+    // the next operation runs once the cancelled one has been cleaned up
+    async.execAsync("SELECT 1", null).get(5, TimeUnit.SECONDS);
+    assertTrue(cursor.get().isClosed());
+  }
+
+  private static final class Callback extends SupportSQLiteOpenHelper.Callback {
+    public Callback(int version) {
+      super(version);
+    }
+
+    @Override
+    public void onCreate(SupportSQLiteDatabase db) {
+      db.execSQL("CREATE TABLE foo (bar INTEGER PRIMARY KEY, goo TEXT);");
+    }
+
+    @Override
+    public void onUpgrade(SupportSQLiteDatabase db, int oldVersion,
+                          int newVersion) {
+
+    }
+  }
+}
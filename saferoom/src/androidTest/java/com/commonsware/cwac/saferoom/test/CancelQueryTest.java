@@ -0,0 +1,229 @@
+package com.commonsware.cwac.saferoom.test;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.os.CancellationSignal;
+import android.os.OperationCanceledException;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.text.SpannableStringBuilder;
+import android.util.Log;
+import com.commonsware.cwac.saferoom.Database;
+import com.commonsware.cwac.saferoom.SafeHelperFactory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import androidx.sqlite.db.SimpleSQLiteQuery;
+import androidx.sqlite.db.SupportSQLiteDatabase;
+import androidx.sqlite.db.SupportSQLiteOpenHelper;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+@RunWith(AndroidJUnit4.class)
+public class CancelQueryTest {
+  private static final String TAG="CancelQueryTest";
+  private static final String DB_NAME="db";
+  private static final String PASSPHRASE="cufflink powerboat mundane vagrancy ragweed waving";
+  private static final String SQL="SELECT bar, goo FROM foo ORDER BY bar";
+  // slow for every row, so that stepping through all of them takes a while
+  private static final String SCAN_SQL=
+    "SELECT a.bar, (SELECT COUNT(*) FROM foo b WHERE b.goo<a.goo) FROM foo a "+
+      "WHERE a.bar<2000 ORDER BY a.rowid";
+  private static final int ROWS=20000;
+  // one row of results, but slow to compute, so cancel() lands mid-fill
+  private static final String SLOW_SQL=
+    "SELECT COUNT(*) FROM foo a JOIN foo b ON a.goo<b.goo WHERE a.bar<500";
+
+  private SupportSQLiteOpenHelper helper;
+  private Database db;
+
+  @Before
+  public void setUp() {
+    SafeHelperFactory factory=
+      SafeHelperFactory.fromUser(new SpannableStringBuilder(PASSPHRASE));
+
+    helper=factory.create(InstrumentationRegistry.getTargetContext(), DB_NAME,
+      new Callback(1));
+    db=(Database)helper.getWritableDatabase();
+  }
+
+  @After
+  public void tearDown() {
+    helper.close();
+
+    Context ctxt=InstrumentationRegistry.getTargetContext();
+    File db=ctxt.getDatabasePath(DB_NAME);
+
+    for (File f : db.getParentFile().listFiles()) {
+      f.delete();
+    }
+  }
+
+  @Test(expected=OperationCanceledException.class)
+  public void canceledBeforeQuery() {
+    CancellationSignal signal=new CancellationSignal();
+
+    signal.cancel();
+    db.query(new SimpleSQLiteQuery(SQL), signal);
+  }
+
+  @Test
+  public void cancelLatency() throws Exception {
+    // baseline: how long a plain cursor takes to step through everything,
+    // which its first fill does before returning any rows
+    long start=System.nanoTime();
+    Cursor plain=db.query(new SimpleSQLiteQuery(SCAN_SQL));
+
+    try {
+      plain.getCount();
+    }
+    finally {
+      plain.close();
+    }
+
+    long fullScan=System.nanoTime()-start;
+    final CancellationSignal signal=new CancellationSignal();
+    final CountDownLatch reading=new CountDownLatch(1);
+    final CountDownLatch released=new CountDownLatch(1);
+    final AtomicLong releasedAt=new AtomicLong();
+    final AtomicBoolean closed=new AtomicBoolean();
+
+    new Thread() {
+      @Override
+      public void run() {
+        Cursor c=db.query(new SimpleSQLiteQuery(SCAN_SQL), signal);
+
+        try {
+          while (c.moveToNext()) {
+            c.getLong(1);
+
+            if (c.getPosition()==100) {
+              reading.countDown();
+            }
+          }
+        }
+        catch (OperationCanceledException e) {
+          releasedAt.set(System.nanoTime());
+          closed.set(c.isClosed());
+          released.countDown();
+        }
+      }
+    }.start();
+
+    assertTrue(reading.await(60, TimeUnit.SECONDS));
+
+    long canceledAt=System.nanoTime();
+
+    signal.cancel();
+
+    if (!released.await(60, TimeUnit.SECONDS)) {
+      fail("Query was not canceled");
+    }
+
+    long latency=releasedAt.get()-canceledAt;
+
+    assertTrue(closed.get());
+    Log.i(TAG, String.format("full scan: %.2fms, cancel-to-release latency: %.2fms",
+      fullScan/1e6d, latency/1e6d));
+
+    // the scan stops within the chunk that it is reading, well short of the
+    // full pass that a plain cursor could not have stopped
+    assertTrue(latency<fullScan/2);
+  }
+
+  @Test
+  public void cancelDuringFirstFill() throws Exception {
+    final CancellationSignal signal=new CancellationSignal();
+    final Cursor c=db.query(new SimpleSQLiteQuery(SLOW_SQL), signal);
+    final CountDownLatch filling=new CountDownLatch(1);
+    final AtomicLong filledAt=new AtomicLong();
+    final AtomicBoolean canceledInCount=new AtomicBoolean();
+
+    Thread reader=new Thread() {
+      @Override
+      public void run() {
+        filling.countDown();
+
+        try {
+          c.getCount();
+          filledAt.set(System.nanoTime());
+        }
+        catch (OperationCanceledException e) {
+          canceledInCount.set(true);
+        }
+      }
+    };
+
+    reader.start();
+    assertTrue(filling.await(10, TimeUnit.SECONDS));
+    Thread.sleep(50);
+
+    long canceledAt=System.nanoTime();
+
+    signal.cancel();
+    reader.join(60000);
+    assertFalse(reader.isAlive());
+
+    if (!canceledInCount.get()) {
+      // SQLCipher cannot interrupt a step that is underway, and this query
+      // computes its one row in a single step, so that step finishes, and
+      // the cancel is seen on the next call instead
+      try {
+        c.moveToFirst();
+        fail("Cursor was not canceled");
+      }
+      catch (OperationCanceledException e) {
+        // expected
+      }
+
+      Log.i(TAG, String.format("fill finished %.2fms after cancel()",
+        (filledAt.get()-canceledAt)/1e6d));
+    }
+
+    assertTrue(c.isClosed());
+  }
+
+  private static final class Callback extends SupportSQLiteOpenHelper.Callback {
+    public Callback(int version) {
+      super(version);
+    }
+
+    @Override
+    public void onCreate(SupportSQLiteDatabase db) {
+      List<ContentValues> rows=new ArrayList<>();
+      StringBuilder padding=new StringBuilder();
+
+      db.execSQL("CREATE TABLE foo (bar, goo);");
+
+      for (int i=0;i<20;i++) {
+        padding.append("0123456789");
+      }
+
+      for (int i=0;i<ROWS;i++) {
+        ContentValues values=new ContentValues();
+
+        values.put("bar", i);
+        values.put("goo", padding.toString()+i);
+        rows.add(values);
+      }
+
+      ((Database)db).insertBatch("foo", SupportSQLiteDatabase.CONFLICT_NONE, rows);
+    }
+
+    @Override
+    public void onUpgrade(SupportSQLiteDatabase db, int oldVersion,
+                          int newVersion) {
+
+    }
+  }
+}
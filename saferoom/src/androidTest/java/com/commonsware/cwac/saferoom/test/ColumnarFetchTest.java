@@ -0,0 +1,301 @@
+package com.commonsware.cwac.saferoom.test;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.os.Debug;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.text.SpannableStringBuilder;
+import android.util.Log;
+import com.commonsware.cwac.saferoom.ColumnChunk;
+import com.commonsware.cwac.saferoom.Database;
+import com.commonsware.cwac.saferoom.SafeHelperFactory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import java.io.File;
+import java.nio.charset.Charset;
+import androidx.sqlite.db.SimpleSQLiteQuery;
+import androidx.sqlite.db.SupportSQLiteDatabase;
+import androidx.sqlite.db.SupportSQLiteOpenHelper;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(AndroidJUnit4.class)
+public class ColumnarFetchTest {
+  private static final String TAG="ColumnarFetchTest";
+  private static final String DB_NAME="db";
+  private static final String PASSPHRASE="cufflink powerboat mundane vagrancy ragweed waving";
+  private static final String SQL="SELECT bar, price, goo FROM foo ORDER BY bar";
+  private static final ColumnChunk.Type[] TYPES={ColumnChunk.Type.LONG,
+    ColumnChunk.Type.DOUBLE, ColumnChunk.Type.TEXT};
+  private static final String TEXT_SQL="SELECT goo FROM foo";
+  private static final int ROWS=200000;
+  private static final int CHUNK_ROWS=1024;
+
+  private SupportSQLiteOpenHelper helper;
+  private Database db;
+
+  @Before
+  public void setUp() {
+    SafeHelperFactory factory=
+      SafeHelperFactory.fromUser(new SpannableStringBuilder(PASSPHRASE));
+
+    helper=factory.create(InstrumentationRegistry.getTargetContext(), DB_NAME,
+      new Callback(1));
+    db=(Database)helper.getWritableDatabase();
+  }
+
+  @After
+  public void tearDown() {
+    helper.close();
+
+    Context ctxt=InstrumentationRegistry.getTargetContext();
+    File db=ctxt.getDatabasePath(DB_NAME);
+
+    for (File f : db.getParentFile().listFiles()) {
+      f.delete();
+    }
+  }
+
+  @Test
+  public void contents() {
+    final int[] expected={0};
+
+    int rows=db.fetchColumns(new SimpleSQLiteQuery(SQL), TYPES, CHUNK_ROWS,
+      new ColumnChunk.Receiver() {
+        @Override
+        public boolean onChunk(ColumnChunk chunk) {
+          long[] bars=chunk.getLongs(0);
+          double[] prices=chunk.getDoubles(1);
+          boolean[] nullGoos=chunk.getNulls(2);
+
+          assertEquals(expected[0], chunk.getStartRow());
+          assertTrue(chunk.getRowCount()<=CHUNK_ROWS);
+
+          for (int i=0;i<chunk.getRowCount();i++) {
+            int row=expected[0]+i;
+
+            assertEquals(row, bars[i]);
+            assertEquals(row/2.0d, prices[i], 0.0001d);
+
+            if (row%10==0) {
+              assertTrue(nullGoos[i]);
+              assertNull(chunk.getText(2, i));
+            }
+            else {
+              assertEquals("row "+row, chunk.getText(2, i));
+            }
+          }
+
+          expected[0]+=chunk.getRowCount();
+
+          return(true);
+        }
+      });
+
+    assertEquals(ROWS, rows);
+    assertEquals(ROWS, expected[0]);
+  }
+
+  @Test
+  public void blobs() {
+    final int[] seen={0};
+    int rows=db.fetchColumns(new SimpleSQLiteQuery(
+        "SELECT CASE WHEN bar%3=0 THEN NULL ELSE zeroblob(1+bar%50) END, "+
+          "CAST(goo AS BLOB) FROM foo ORDER BY bar LIMIT 5000"),
+      new ColumnChunk.Type[] {ColumnChunk.Type.BLOB, ColumnChunk.Type.BLOB},
+      128, new ColumnChunk.Receiver() {
+        @Override
+        public boolean onChunk(ColumnChunk chunk) {
+          boolean[] nullBlobs=chunk.getNulls(0);
+          int[] offsets=chunk.getBlobOffsets(0);
+          int[] lengths=chunk.getBlobLengths(0);
+
+          for (int i=0;i<chunk.getRowCount();i++) {
+            int row=chunk.getStartRow()+i;
+
+            // values are packed end to end in one reusable byte[]
+            if (i>0) {
+              assertEquals(offsets[i-1]+lengths[i-1], offsets[i]);
+            }
+
+            if (row%3==0) {
+              assertTrue(nullBlobs[i]);
+              assertEquals(0, lengths[i]);
+              assertNull(chunk.getBlob(0, i));
+            }
+            else {
+              assertEquals(1+row%50, lengths[i]);
+              assertEquals(1+row%50, chunk.getBlob(0, i).length);
+            }
+
+            if (row%10==0) {
+              assertNull(chunk.getBlob(1, i));
+            }
+            else {
+              assertEquals("row "+row,
+                new String(chunk.getBlob(1, i), Charset.forName("UTF-8")));
+            }
+          }
+
+          seen[0]+=chunk.getRowCount();
+
+          return(true);
+        }
+      });
+
+    assertEquals(5000, rows);
+    assertEquals(5000, seen[0]);
+  }
+
+  @Test(expected=IllegalArgumentException.class)
+  public void wrongType() {
+    db.fetchColumns(new SimpleSQLiteQuery(SQL), TYPES, CHUNK_ROWS,
+      new ColumnChunk.Receiver() {
+        @Override
+        public boolean onChunk(ColumnChunk chunk) {
+          chunk.getBytes(2);
+
+          return(false);
+        }
+      });
+  }
+
+  @SuppressWarnings("deprecation")
+  @Test
+  public void textAllocations() {
+    String few=TEXT_SQL+" LIMIT "+CHUNK_ROWS*2;
+
+    // warm up, and let the chunk's char[] grow to fit
+    fetchText(TEXT_SQL);
+    fetchText(few);
+
+    Debug.startAllocCounting();
+
+    try {
+      int before=Debug.getThreadAllocCount();
+
+      fetchText(few);
+
+      int fewAllocations=Debug.getThreadAllocCount()-before;
+
+      before=Debug.getThreadAllocCount();
+      fetchText(TEXT_SQL);
+
+      int allAllocations=Debug.getThreadAllocCount()-before;
+
+      Log.i(TAG, String.format("text: %d rows: %d allocations, %d rows: %d allocations",
+        CHUNK_ROWS*2, fewAllocations, ROWS, allAllocations));
+
+      // a fresh chunk grows its char[] a few times, but nothing is per row
+      assertTrue(allAllocations-fewAllocations<ROWS/1000);
+    }
+    finally {
+      Debug.stopAllocCounting();
+    }
+  }
+
+  @Test
+  public void earlyStop() {
+    int rows=db.fetchColumns(new SimpleSQLiteQuery(SQL), TYPES, CHUNK_ROWS,
+      new ColumnChunk.Receiver() {
+        @Override
+        public boolean onChunk(ColumnChunk chunk) {
+          return(false);
+        }
+      });
+
+    assertEquals(CHUNK_ROWS, rows);
+  }
+
+  @Test
+  public void sumBenchmark() {
+    String sql="SELECT bar, price FROM foo";
+    long start=System.nanoTime();
+    Cursor c=db.query(new SimpleSQLiteQuery(sql));
+    long cursorSum=0;
+    double cursorTotal=0;
+
+    try {
+      while (c.moveToNext()) {
+        cursorSum+=c.getLong(0);
+        cursorTotal+=c.getDouble(1);
+      }
+    }
+    finally {
+      c.close();
+    }
+
+    long cursorNanos=System.nanoTime()-start;
+    final long[] sum={0};
+    final double[] total={0};
+
+    start=System.nanoTime();
+    db.fetchColumns(new SimpleSQLiteQuery(sql),
+      new ColumnChunk.Type[] {ColumnChunk.Type.LONG, ColumnChunk.Type.DOUBLE},
+      CHUNK_ROWS, new ColumnChunk.Receiver() {
+        @Override
+        public boolean onChunk(ColumnChunk chunk) {
+          long[] bars=chunk.getLongs(0);
+          double[] prices=chunk.getDoubles(1);
+
+          for (int i=0;i<chunk.getRowCount();i++) {
+            sum[0]+=bars[i];
+            total[0]+=prices[i];
+          }
+
+          return(true);
+        }
+      });
+
+    long columnarNanos=System.nanoTime()-start;
+
+    assertEquals(cursorSum, sum[0]);
+    assertEquals(cursorTotal, total[0], 0.0001d);
+    Log.i(TAG, String.format("%d rows: cursor %.0fms, columnar %.0fms", ROWS,
+      cursorNanos/1e6d, columnarNanos/1e6d));
+  }
+
+  private int fetchText(String sql) {
+    final int[] total={0};
+
+    db.fetchColumns(new SimpleSQLiteQuery(sql),
+      new ColumnChunk.Type[] {ColumnChunk.Type.TEXT}, CHUNK_ROWS,
+      new ColumnChunk.Receiver() {
+        @Override
+        public boolean onChunk(ColumnChunk chunk) {
+          int[] lengths=chunk.getTextLengths(0);
+
+          for (int i=0;i<chunk.getRowCount();i++) {
+            total[0]+=lengths[i];
+          }
+
+          return(true);
+        }
+      });
+
+    return(total[0]);
+  }
+
+  private static final class Callback extends SupportSQLiteOpenHelper.Callback {
+    public Callback(int version) {
+      super(version);
+    }
+
+    @Override
+    public void onCreate(SupportSQLiteDatabase db) {
+      db.execSQL("CREATE TABLE foo (bar INTEGER PRIMARY KEY, price REAL, goo TEXT);");
+      db.execSQL("WITH RECURSIVE n(x) AS (SELECT 0 UNION ALL SELECT x+1 FROM n LIMIT "+
+        ROWS+") INSERT INTO foo SELECT x, x/2.0, CASE WHEN x%10=0 THEN NULL ELSE 'row '||x END FROM n;");
+    }
+
+    @Override
+    public void onUpgrade(SupportSQLiteDatabase db, int oldVersion,
+                          int newVersion) {
+
+    }
+  }
+}
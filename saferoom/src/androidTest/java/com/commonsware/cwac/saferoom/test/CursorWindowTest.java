@@ -0,0 +1,190 @@
+package com.commonsware.cwac.saferoom.test;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.text.SpannableStringBuilder;
+import android.util.Log;
+import com.commonsware.cwac.saferoom.CursorWindowStats;
+import com.commonsware.cwac.saferoom.Database;
+import com.commonsware.cwac.saferoom.SafeHelperFactory;
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import androidx.sqlite.db.SimpleSQLiteQuery;
+import androidx.sqlite.db.SupportSQLiteDatabase;
+import androidx.sqlite.db.SupportSQLiteOpenHelper;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(AndroidJUnit4.class)
+public class CursorWindowTest {
+  private static final String TAG="CursorWindowTest";
+  private static final String DB_NAME="db";
+  private static final String PASSPHRASE="cufflink powerboat mundane vagrancy ragweed waving";
+  private static final String SQL="SELECT bar, goo FROM foo ORDER BY bar";
+  private static final int ROWS=5000;
+  private static final long SMALL_WINDOW=64*1024;
+  private static final long LARGE_WINDOW=8*1024*1024;
+
+  private SupportSQLiteOpenHelper helper;
+
+  @After
+  public void tearDown() {
+    Context ctxt=InstrumentationRegistry.getTargetContext();
+    File db=ctxt.getDatabasePath(DB_NAME);
+
+    for (File f : db.getParentFile().listFiles()) {
+      f.delete();
+    }
+  }
+
+  @Test
+  public void windowSizes() {
+    long smallFills=fills(SMALL_WINDOW);
+
+    assertTrue(smallFills>1);
+    assertEquals(1, fills(LARGE_WINDOW));
+  }
+
+  @Test
+  public void countOnEmptyResult() {
+    Database db=open(SMALL_WINDOW);
+
+    try {
+      CursorWindowStats stats=db.getCursorWindowStats();
+      Cursor c=db.query(new SimpleSQLiteQuery("SELECT * FROM foo WHERE bar<0"));
+
+      try {
+        assertEquals(0, c.getCount());
+        assertEquals(0, c.getCount());
+        assertFalse(c.moveToNext());
+      }
+      finally {
+        c.close();
+      }
+
+      // one fill, that happened to find no rows, not one per getCount()
+      assertEquals(1, stats.getFillCount());
+      assertEquals(0, stats.getRowCount());
+    }
+    finally {
+      helper.close();
+    }
+  }
+
+  @Test
+  public void sizeIsProcessWide() {
+    Database db=open(SMALL_WINDOW);
+    SafeHelperFactory.Options options=SafeHelperFactory.Options.builder()
+      .setCursorWindowSize(LARGE_WINDOW)
+      .build();
+    SupportSQLiteOpenHelper other=
+      SafeHelperFactory.fromUser(new SpannableStringBuilder(PASSPHRASE), options)
+        .create(InstrumentationRegistry.getTargetContext(), "other",
+          new Callback(1));
+
+    try {
+      other.getWritableDatabase();
+      scan(db.query(new SimpleSQLiteQuery(SQL)));
+
+      // the database opened last set the size for everyone, and the stats
+      // report the size that the window really got
+      assertEquals(1, db.getCursorWindowStats().getWindowCount());
+      assertEquals(LARGE_WINDOW, db.getCursorWindowStats().getWindowBytes());
+    }
+    finally {
+      other.close();
+      helper.close();
+    }
+  }
+
+  private long fills(long windowSize) {
+    Database db=open(windowSize);
+
+    try {
+      CursorWindowStats stats=db.getCursorWindowStats();
+
+      assertEquals(ROWS, scan(db.query(new SimpleSQLiteQuery(SQL))));
+      assertEquals(1, stats.getWindowCount());
+      assertEquals(windowSize, stats.getWindowBytes());
+      assertTrue(stats.getRowCount()>=ROWS);
+      Log.i(TAG, String.format("%d-byte window: %d fills, %.1f rows/fill",
+        windowSize, stats.getFillCount(), stats.getRowsPerFill()));
+
+      return(stats.getFillCount());
+    }
+    finally {
+      helper.close();
+    }
+  }
+
+  private Database open(long windowSize) {
+    SafeHelperFactory.Options options=SafeHelperFactory.Options.builder()
+      .setCursorWindowSize(windowSize)
+      .build();
+    SafeHelperFactory factory=
+      SafeHelperFactory.fromUser(new SpannableStringBuilder(PASSPHRASE), options);
+
+    helper=factory.create(InstrumentationRegistry.getTargetContext(), DB_NAME,
+      new Callback(1));
+
+    return((Database)helper.getWritableDatabase());
+  }
+
+  private int scan(Cursor c) {
+    int count=0;
+
+    try {
+      while (c.moveToNext()) {
+        c.getString(1);
+        count++;
+      }
+    }
+    finally {
+      c.close();
+    }
+
+    return(count);
+  }
+
+  private static final class Callback extends SupportSQLiteOpenHelper.Callback {
+    public Callback(int version) {
+      super(version);
+    }
+
+    @Override
+    public void onCreate(SupportSQLiteDatabase db) {
+      List<ContentValues> rows=new ArrayList<>();
+      StringBuilder padding=new StringBuilder();
+
+      db.execSQL("CREATE TABLE foo (bar, goo);");
+
+      for (int i=0;i<50;i++) {
+        padding.append("0123456789");
+      }
+
+      for (int i=0;i<ROWS;i++) {
+        ContentValues values=new ContentValues();
+
+        values.put("bar", i);
+        values.put("goo", padding.toString()+i);
+        rows.add(values);
+      }
+
+      ((Database)db).insertBatch("foo", SupportSQLiteDatabase.CONFLICT_NONE, rows);
+    }
+
+    @Override
+    public void onUpgrade(SupportSQLiteDatabase db, int oldVersion,
+                          int newVersion) {
+
+    }
+  }
+}
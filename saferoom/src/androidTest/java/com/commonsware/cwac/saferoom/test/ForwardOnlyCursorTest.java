@@ -0,0 +1,221 @@
+package com.commonsware.cwac.saferoom.test;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.text.SpannableStringBuilder;
+import android.util.Log;
+import com.commonsware.cwac.saferoom.CursorWindowStats;
+import com.commonsware.cwac.saferoom.Database;
+import com.commonsware.cwac.saferoom.SafeHelperFactory;
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import androidx.sqlite.db.SimpleSQLiteQuery;
+import androidx.sqlite.db.SupportSQLiteDatabase;
+import androidx.sqlite.db.SupportSQLiteOpenHelper;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+@RunWith(AndroidJUnit4.class)
+public class ForwardOnlyCursorTest {
+  private static final String TAG="ForwardOnlyCursorTest";
+  private static final String DB_NAME="db";
+  private static final String PASSPHRASE="cufflink powerboat mundane vagrancy ragweed waving";
+  private static final String SQL="SELECT bar, goo FROM foo ORDER BY bar";
+  // fails with "integer overflow" once it gets to a row where bar>=1000
+  private static final String POISONED_SQL=
+    "SELECT bar, abs(-9223372036854775807-(bar>=1000)) FROM foo ORDER BY rowid";
+  private static final int ROWS=5000;
+  private static final long WINDOW=64*1024;
+
+  private SupportSQLiteOpenHelper helper;
+
+  @After
+  public void tearDown() {
+    Context ctxt=InstrumentationRegistry.getTargetContext();
+    File db=ctxt.getDatabasePath(DB_NAME);
+
+    for (File f : db.getParentFile().listFiles()) {
+      f.delete();
+    }
+  }
+
+  @Test
+  public void streaming() {
+    Database db=open();
+    CursorWindowStats stats=db.getCursorWindowStats();
+
+    assertEquals(ROWS, scan(db.query(new SimpleSQLiteQuery(SQL))));
+
+    long defaultRows=stats.getRowCount();
+    long defaultFills=stats.getFillCount();
+
+    assertEquals(ROWS,
+      scan(db.queryForwardOnly(new SimpleSQLiteQuery(SQL))));
+
+    long forwardRows=stats.getRowCount()-defaultRows;
+    long forwardFills=stats.getFillCount()-defaultFills;
+
+    assertEquals(ROWS, forwardRows);
+    assertTrue(forwardRows<=defaultRows);
+    Log.i(TAG, String.format("default: %d fills, %d rows copied; forward-only: %d fills, %d rows copied",
+      defaultFills, defaultRows, forwardFills, forwardRows));
+
+    helper.close();
+  }
+
+  @Test
+  public void firstFillIsBounded() {
+    Database db=open();
+
+    // a plain cursor steps through the whole result on its first fill, to
+    // count it, and so runs into the bad row right away
+    try {
+      scan(db.query(new SimpleSQLiteQuery(POISONED_SQL)));
+      fail("Expected the full scan to fail");
+    }
+    catch (RuntimeException e) {
+      // expected
+    }
+
+    Cursor c=db.queryForwardOnly(new SimpleSQLiteQuery(POISONED_SQL));
+
+    try {
+      // the forward-only one only steps as far as the rows being read
+      for (int i=0;i<500;i++) {
+        assertTrue(c.moveToNext());
+        assertEquals(i, c.getInt(0));
+      }
+    }
+    finally {
+      c.close();
+      helper.close();
+    }
+  }
+
+  @Test
+  public void count() {
+    Cursor c=open().queryForwardOnly(new SimpleSQLiteQuery(SQL));
+
+    try {
+      assertTrue(c.isBeforeFirst());
+      assertEquals(ROWS, c.getCount());
+      assertTrue(c.moveToFirst());
+      assertTrue(c.isFirst());
+      assertEquals(0, c.getInt(0));
+      assertTrue(c.moveToPosition(ROWS-1));
+      assertTrue(c.isLast());
+      assertEquals(ROWS-1, c.getInt(0));
+      assertFalse(c.moveToNext());
+      assertTrue(c.isAfterLast());
+    }
+    finally {
+      c.close();
+      helper.close();
+    }
+  }
+
+  @Test
+  public void duplicateColumnNames() {
+    Cursor c=open().queryForwardOnly(
+      new SimpleSQLiteQuery("SELECT bar, bar FROM foo WHERE bar<?",
+        new Object[] {100}));
+
+    try {
+      assertArrayEquals(new String[] {"bar", "bar"}, c.getColumnNames());
+      assertEquals(100, scan(c));
+    }
+    finally {
+      helper.close();
+    }
+  }
+
+  @Test(expected=IllegalStateException.class)
+  public void noRewind() {
+    Cursor c=open().queryForwardOnly(new SimpleSQLiteQuery(SQL));
+
+    try {
+      while (c.moveToNext()) {
+        c.getString(1);
+      }
+
+      c.moveToFirst();
+    }
+    finally {
+      c.close();
+      helper.close();
+    }
+  }
+
+  private Database open() {
+    SafeHelperFactory.Options options=SafeHelperFactory.Options.builder()
+      .setCursorWindowSize(WINDOW)
+      .build();
+    SafeHelperFactory factory=
+      SafeHelperFactory.fromUser(new SpannableStringBuilder(PASSPHRASE), options);
+
+    helper=factory.create(InstrumentationRegistry.getTargetContext(), DB_NAME,
+      new Callback(1));
+
+    return((Database)helper.getWritableDatabase());
+  }
+
+  private int scan(Cursor c) {
+    int count=0;
+
+    try {
+      while (c.moveToNext()) {
+        c.getString(1);
+        count++;
+      }
+    }
+    finally {
+      c.close();
+    }
+
+    return(count);
+  }
+
+  private static final class Callback extends SupportSQLiteOpenHelper.Callback {
+    public Callback(int version) {
+      super(version);
+    }
+
+    @Override
+    public void onCreate(SupportSQLiteDatabase db) {
+      List<ContentValues> rows=new ArrayList<>();
+      StringBuilder padding=new StringBuilder();
+
+      db.execSQL("CREATE TABLE foo (bar, goo);");
+
+      for (int i=0;i<50;i++) {
+        padding.append("0123456789");
+      }
+
+      for (int i=0;i<ROWS;i++) {
+        ContentValues values=new ContentValues();
+
+        values.put("bar", i);
+        values.put("goo", padding.toString()+i);
+        rows.add(values);
+      }
+
+      ((Database)db).insertBatch("foo", SupportSQLiteDatabase.CONFLICT_NONE, rows);
+    }
+
+    @Override
+    public void onUpgrade(SupportSQLiteDatabase db, int oldVersion,
+                          int newVersion) {
+
+    }
+  }
+}
@@ -0,0 +1,289 @@
+package com.commonsware.cwac.saferoom.test;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.text.SpannableStringBuilder;
+import android.util.Log;
+import com.commonsware.cwac.saferoom.Database;
+import com.commonsware.cwac.saferoom.DatabaseOperation;
+import com.commonsware.cwac.saferoom.GroupCommitWriter;
+import com.commonsware.cwac.saferoom.SafeHelperFactory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import androidx.sqlite.db.SupportSQLiteDatabase;
+import androidx.sqlite.db.SupportSQLiteOpenHelper;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+@RunWith(AndroidJUnit4.class)
+public class GroupCommitTest {
+  private static final String TAG="GroupCommitTest";
+  private static final String DB_NAME="db";
+  private static final String PASSPHRASE="cufflink powerboat mundane vagrancy ragweed waving";
+  private static final int THREADS=8;
+  private static final int WRITES_PER_THREAD=250;
+
+  private SupportSQLiteOpenHelper helper;
+  private Database db;
+
+  @Before
+  public void setUp() {
+    SafeHelperFactory factory=
+      SafeHelperFactory.fromUser(new SpannableStringBuilder(PASSPHRASE));
+
+    helper=factory.create(InstrumentationRegistry.getTargetContext(), DB_NAME,
+      new Callback(1));
+    db=(Database)helper.getWritableDatabase();
+  }
+
+  @After
+  public void tearDown() {
+    helper.close();
+
+    Context ctxt=InstrumentationRegistry.getTargetContext();
+    File db=ctxt.getDatabasePath(DB_NAME);
+
+    for (File f : db.getParentFile().listFiles()) {
+      f.delete();
+    }
+  }
+
+  @Test
+  public void failureIsolation() throws Exception {
+    GroupCommitWriter writer=db.groupCommitWriter(10, 1, TimeUnit.SECONDS);
+    Future<Long> first=writer.submit(insert(1));
+    Future<Long> duplicate=writer.submit(insert(1));
+    Future<Long> second=writer.submit(insert(2));
+
+    assertEquals(1L, first.get().longValue());
+    assertEquals(2L, second.get().longValue());
+
+    try {
+      duplicate.get();
+      fail("Expected the duplicate insert to fail");
+    }
+    catch (ExecutionException e) {
+      assertTrue(e.getCause() instanceof RuntimeException);
+    }
+
+    writer.close();
+    assertEquals(2, count());
+    assertEquals(1, writer.getGroupCount());
+  }
+
+  @Test
+  public void errorDoesNotStopWriter() throws Exception {
+    GroupCommitWriter writer=db.groupCommitWriter(10, 1, TimeUnit.SECONDS);
+    Future<Long> broken=writer.submit(new DatabaseOperation<Long>() {
+      @Override
+      public Long execute(Database db) {
+        throw new AssertionError("not a RuntimeException");
+      }
+    });
+    Future<Long> fine=writer.submit(insert(1));
+
+    try {
+      broken.get(10, TimeUnit.SECONDS);
+      fail("Expected the operation to fail");
+    }
+    catch (ExecutionException e) {
+      assertTrue(e.getCause() instanceof AssertionError);
+    }
+
+    assertEquals(1L, fine.get(10, TimeUnit.SECONDS).longValue());
+
+    // the writer thread must still be alive to take later work
+    assertEquals(2L, writer.submit(insert(2)).get(10, TimeUnit.SECONDS).longValue());
+    writer.close();
+  }
+
+  @Test
+  public void cancelOnlyBeforeStart() throws Exception {
+    GroupCommitWriter writer=db.groupCommitWriter(10, 100, TimeUnit.MILLISECONDS);
+    final CountDownLatch started=new CountDownLatch(1);
+    final CountDownLatch release=new CountDownLatch(1);
+    Future<Long> running=writer.submit(new DatabaseOperation<Long>() {
+      @Override
+      public Long execute(Database db) {
+        started.countDown();
+
+        try {
+          release.await();
+        }
+        catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+
+        return(insert(1).execute(db));
+      }
+    });
+    Future<Long> waiting=writer.submit(insert(2));
+
+    assertTrue(started.await(10, TimeUnit.SECONDS));
+
+    // the first is running inside the group's transaction, so it is too
+    // late to cancel it; the second has not started, so it can be
+    assertFalse(running.cancel(false));
+    assertTrue(waiting.cancel(false));
+    release.countDown();
+
+    assertFalse(running.isCancelled());
+    assertEquals(1L, running.get(10, TimeUnit.SECONDS).longValue());
+    assertTrue(waiting.isCancelled());
+    writer.close();
+    assertEquals(1, count());
+  }
+
+  @Test
+  public void closeCompletesEverything() throws Exception {
+    final GroupCommitWriter writer=db.groupCommitWriter(8, 5, TimeUnit.MILLISECONDS);
+    final List<Future<Long>> writes=Collections.synchronizedList(new ArrayList<Future<Long>>());
+    Thread submitter=new Thread() {
+      @Override
+      public void run() {
+        try {
+          for (int i=0;i<5000;i++) {
+            writes.add(writer.submit(insert(i)));
+          }
+        }
+        catch (IllegalStateException e) {
+          // closed, as expected
+        }
+      }
+    };
+
+    submitter.start();
+    Thread.sleep(5);
+    writer.close();
+    submitter.join(10000);
+
+    // every accepted operation either committed or failed; none hang
+    synchronized(writes) {
+      for (Future<Long> write : writes) {
+        write.get(10, TimeUnit.SECONDS);
+      }
+
+      assertEquals(writes.size(), count());
+    }
+  }
+
+  @Test
+  public void throughputBenchmark() throws Exception {
+    int base=0;
+    int[] groupSizes={1, 8, 64, 256};
+    long[] elapsedByGroup=new long[groupSizes.length];
+
+    for (int g=0;g<groupSizes.length;g++) {
+      int groupSize=groupSizes[g];
+      final GroupCommitWriter writer=
+        db.groupCommitWriter(groupSize, 5, TimeUnit.MILLISECONDS);
+      ExecutorService executor=Executors.newFixedThreadPool(THREADS);
+      List<Future<Integer>> results=new ArrayList<>();
+      long start=System.nanoTime();
+
+      for (int i=0;i<THREADS;i++) {
+        final int first=base+i*WRITES_PER_THREAD;
+
+        results.add(executor.submit(new Callable<Integer>() {
+          @Override
+          public Integer call() throws Exception {
+            List<Future<Long>> writes=new ArrayList<>();
+
+            for (int j=0;j<WRITES_PER_THREAD;j++) {
+              writes.add(writer.submit(insert(first+j)));
+            }
+
+            for (Future<Long> write : writes) {
+              write.get();
+            }
+
+            return(writes.size());
+          }
+        }));
+      }
+
+      for (Future<Integer> result : results) {
+        assertEquals(WRITES_PER_THREAD, result.get().intValue());
+      }
+
+      long elapsed=System.nanoTime()-start;
+
+      elapsedByGroup[g]=elapsed;
+      executor.shutdown();
+      writer.close();
+      base+=THREADS*WRITES_PER_THREAD;
+      assertEquals(base, count());
+      assertEquals(THREADS*WRITES_PER_THREAD, writer.getOperationCount());
+
+      Log.i(TAG, String.format("max group %d: %.0f writes/second, average group %.1f",
+        groupSize, THREADS*WRITES_PER_THREAD*1e9d/elapsed,
+        writer.getAverageGroupSize()));
+
+      // groups never exceed the limit, and with eight threads submitting
+      // at once, larger limits really do batch writes together
+      assertTrue(writer.getAverageGroupSize()<=groupSize);
+
+      if (groupSize==1) {
+        assertEquals(1.0d, writer.getAverageGroupSize(), 0.0d);
+      }
+      else {
+        assertTrue(writer.getAverageGroupSize()>1.0d);
+      }
+    }
+
+    // one commit per write is what grouping is there to avoid
+    assertTrue(elapsedByGroup[2]<elapsedByGroup[0]);
+  }
+
+  private static DatabaseOperation<Long> insert(final int id) {
+    return(new DatabaseOperation<Long>() {
+      @Override
+      public Long execute(Database db) {
+        ContentValues values=new ContentValues();
+
+        values.put("bar", id);
+        values.put("goo", "row "+id);
+
+        return(db.insert("foo", SupportSQLiteDatabase.CONFLICT_ABORT, values));
+      }
+    });
+  }
+
+  private long count() {
+    return(db.compileStatement("SELECT COUNT(*) FROM foo").simpleQueryForLong());
+  }
+
+  private static final class Callback extends SupportSQLiteOpenHelper.Callback {
+    public Callback(int version) {
+      super(version);
+    }
+
+    @Override
+    public void onCreate(SupportSQLiteDatabase db) {
+      db.execSQL("CREATE TABLE foo (bar INTEGER PRIMARY KEY, goo TEXT);");
+    }
+
+    @Override
+    public void onUpgrade(SupportSQLiteDatabase db, int oldVersion,
+                          int newVersion) {
+
+    }
+  }
+}
@@ -0,0 +1,209 @@
+package com.commonsware.cwac.saferoom.test;
+
+import android.content.Context;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.text.SpannableStringBuilder;
+import android.util.Log;
+import com.commonsware.cwac.saferoom.SafeHelperFactory;
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import java.io.File;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import androidx.sqlite.db.SupportSQLiteDatabase;
+import androidx.sqlite.db.SupportSQLiteOpenHelper;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(AndroidJUnit4.class)
+public class HelperContentionTest {
+  private static final String TAG="HelperContentionTest";
+  private static final String DB_NAME="db";
+  private static final String PASSPHRASE="cufflink powerboat mundane vagrancy ragweed waving";
+  private static final int THREADS=16;
+  private static final int CALLS_PER_THREAD=100000;
+
+  @After
+  public void tearDown() {
+    Context ctxt=InstrumentationRegistry.getTargetContext();
+    File db=ctxt.getDatabasePath(DB_NAME);
+
+    for (File f : db.getParentFile().listFiles()) {
+      f.delete();
+    }
+  }
+
+  @Test
+  public void openDatabaseSkipsLock() throws Exception {
+    final SupportSQLiteOpenHelper helper=open();
+    final SupportSQLiteDatabase db=helper.getWritableDatabase();
+    final CountDownLatch locked=new CountDownLatch(1);
+    final CountDownLatch release=new CountDownLatch(1);
+    ExecutorService executor=Executors.newFixedThreadPool(2);
+
+    try {
+      executor.submit(new Callable<Void>() {
+        @Override
+        public Void call() throws Exception {
+          synchronized(helper) {
+            locked.countDown();
+            release.await();
+          }
+
+          return(null);
+        }
+      });
+
+      assertTrue(locked.await(10, TimeUnit.SECONDS));
+
+      // the Helper monitor is held, so this only returns if the open
+      // database comes back without taking it
+      Future<SupportSQLiteDatabase> result=
+        executor.submit(new Callable<SupportSQLiteDatabase>() {
+          @Override
+          public SupportSQLiteDatabase call() {
+            return(helper.getWritableDatabase());
+          }
+        });
+
+      assertSame(db, result.get(5, TimeUnit.SECONDS));
+    }
+    finally {
+      release.countDown();
+      executor.shutdown();
+      helper.close();
+    }
+  }
+
+  @Test
+  public void reopenAfterClose() {
+    SupportSQLiteOpenHelper helper=open();
+    SupportSQLiteDatabase first=helper.getWritableDatabase();
+
+    helper.close();
+    assertFalse(first.isOpen());
+
+    SupportSQLiteDatabase second=helper.getWritableDatabase();
+
+    try {
+      assertNotSame(first, second);
+      assertTrue(second.isOpen());
+      assertSame(second, helper.getWritableDatabase());
+    }
+    finally {
+      helper.close();
+    }
+  }
+
+  @Test
+  public void contentionBenchmark() throws Exception {
+    SupportSQLiteOpenHelper helper=open();
+    SupportSQLiteDatabase db=helper.getWritableDatabase();
+
+    try {
+      // the baseline wraps each call in one shared monitor, as every call
+      // did before the fast path
+      long locked=hammer(helper, db, new Object());
+      long lockFree=hammer(helper, db, null);
+
+      Log.i(TAG, String.format("%d threads: %.1f ns per locked call, %.1f ns per lock-free call",
+        THREADS, (double)locked/CALLS_PER_THREAD, (double)lockFree/CALLS_PER_THREAD));
+      assertTrue(lockFree<locked);
+    }
+    finally {
+      helper.close();
+    }
+  }
+
+  private long hammer(final SupportSQLiteOpenHelper helper,
+                      final SupportSQLiteDatabase db, final Object lock)
+    throws InterruptedException {
+    final CountDownLatch startGate=new CountDownLatch(1);
+    final CountDownLatch done=new CountDownLatch(THREADS);
+    final AtomicInteger mismatches=new AtomicInteger();
+
+    for (int i=0;i<THREADS;i++) {
+      new Thread() {
+        @Override
+        public void run() {
+          try {
+            startGate.await();
+
+            for (int j=0;j<CALLS_PER_THREAD;j++) {
+              SupportSQLiteDatabase result;
+
+              if (lock==null) {
+                result=helper.getWritableDatabase();
+              }
+              else {
+                synchronized(lock) {
+                  result=helper.getWritableDatabase();
+                }
+              }
+
+              if (result!=db) {
+                mismatches.incrementAndGet();
+              }
+            }
+          }
+          catch (InterruptedException e) {
+            mismatches.incrementAndGet();
+          }
+          finally {
+            done.countDown();
+          }
+        }
+      }.start();
+    }
+
+    long start=System.nanoTime();
+
+    startGate.countDown();
+    done.await();
+
+    long elapsed=System.nanoTime()-start;
+
+    assertEquals(0, mismatches.get());
+
+    return(elapsed);
+  }
+
+  private SupportSQLiteOpenHelper open() {
+    // keep the passphrase, so reopenAfterClose() can open again
+    SafeHelperFactory.Options options=SafeHelperFactory.Options.builder()
+      .setClearPassphrase(false)
+      .build();
+    SafeHelperFactory factory=
+      SafeHelperFactory.fromUser(new SpannableStringBuilder(PASSPHRASE), options);
+
+    return(factory.create(InstrumentationRegistry.getTargetContext(), DB_NAME,
+      new Callback(1)));
+  }
+
+  private static final class Callback extends SupportSQLiteOpenHelper.Callback {
+    public Callback(int version) {
+      super(version);
+    }
+
+    @Override
+    public void onCreate(SupportSQLiteDatabase db) {
+      db.execSQL("CREATE TABLE foo (bar, goo);");
+    }
+
+    @Override
+    public void onUpgrade(SupportSQLiteDatabase db, int oldVersion,
+                          int newVersion) {
+
+    }
+  }
+}
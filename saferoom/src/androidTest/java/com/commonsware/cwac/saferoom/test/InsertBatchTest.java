@@ -0,0 +1,175 @@
+package com.commonsware.cwac.saferoom.test;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.text.SpannableStringBuilder;
+import android.util.Log;
+import com.commonsware.cwac.saferoom.Database;
+import com.commonsware.cwac.saferoom.SafeHelperFactory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import androidx.sqlite.db.SupportSQLiteDatabase;
+import androidx.sqlite.db.SupportSQLiteOpenHelper;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+@RunWith(AndroidJUnit4.class)
+public class InsertBatchTest {
+  private static final String TAG="InsertBatchTest";
+  private static final String DB_NAME="db";
+  private static final String PASSPHRASE="cufflink powerboat mundane vagrancy ragweed waving";
+  private static final int ROWS=10000;
+
+  private SupportSQLiteOpenHelper helper;
+  private Database db;
+
+  @Before
+  public void setUp() {
+    SafeHelperFactory factory=
+      SafeHelperFactory.fromUser(new SpannableStringBuilder(PASSPHRASE));
+
+    helper=factory.create(InstrumentationRegistry.getTargetContext(), DB_NAME,
+      new Callback(1));
+    db=(Database)helper.getWritableDatabase();
+  }
+
+  @After
+  public void tearDown() {
+    helper.close();
+
+    Context ctxt=InstrumentationRegistry.getTargetContext();
+    File db=ctxt.getDatabasePath(DB_NAME);
+
+    for (File f : db.getParentFile().listFiles()) {
+      f.delete();
+    }
+  }
+
+  @Test
+  public void batch() {
+    long[] ids=db.insertBatch("foo", SupportSQLiteDatabase.CONFLICT_NONE,
+      buildRows(ROWS));
+
+    assertEquals(ROWS, ids.length);
+
+    for (int i=1;i<ids.length;i++) {
+      assertEquals(ids[i-1]+1, ids[i]);
+    }
+
+    assertEquals(ROWS, db.compileStatement("SELECT COUNT(*) FROM foo").simpleQueryForLong());
+  }
+
+  @Test
+  public void mixedColumns() {
+    List<ContentValues> rows=buildRows(3);
+    ContentValues partial=new ContentValues();
+
+    partial.put("goo", "no bar");
+    rows.add(1, partial);
+
+    long[] ids=db.insertBatch("foo", SupportSQLiteDatabase.CONFLICT_NONE, rows);
+
+    assertEquals(4, ids.length);
+    assertEquals(4, db.compileStatement("SELECT COUNT(*) FROM foo").simpleQueryForLong());
+    assertEquals(1, db.compileStatement(
+      "SELECT COUNT(*) FROM foo WHERE bar IS NULL AND goo='no bar'").simpleQueryForLong());
+    assertEquals(2, db.compileStatement(
+      "SELECT bar FROM foo WHERE rowid="+ids[3]).simpleQueryForLong());
+  }
+
+  @Test
+  public void failureRollsBack() {
+    List<ContentValues> rows=buildRows(100);
+    ContentValues broken=new ContentValues();
+
+    broken.put("nope", 1);
+    rows.add(50, broken);
+
+    try {
+      db.insertBatch("foo", SupportSQLiteDatabase.CONFLICT_NONE, rows);
+      fail("Expected the unknown column to fail the batch");
+    }
+    catch (RuntimeException e) {
+      // expected
+    }
+
+    // the batch is one transaction, so none of it sticks
+    assertEquals(0, db.compileStatement("SELECT COUNT(*) FROM foo").simpleQueryForLong());
+    assertFalse(db.inTransaction());
+  }
+
+  @Test
+  public void throughputBenchmark() {
+    List<ContentValues> rows=buildRows(ROWS);
+    long start=System.nanoTime();
+
+    db.beginTransaction();
+
+    try {
+      for (ContentValues values : rows) {
+        db.insert("foo", SupportSQLiteDatabase.CONFLICT_NONE, values);
+      }
+
+      db.setTransactionSuccessful();
+    }
+    finally {
+      db.endTransaction();
+    }
+
+    long perRow=System.nanoTime()-start;
+
+    db.execSQL("DELETE FROM foo");
+    start=System.nanoTime();
+    db.insertBatch("foo", SupportSQLiteDatabase.CONFLICT_NONE, rows);
+
+    long batch=System.nanoTime()-start;
+
+    Log.i(TAG, String.format("rows/second: per-row=%.0f batch=%.0f",
+      ROWS*1e9d/perRow, ROWS*1e9d/batch));
+    assertEquals(ROWS, db.compileStatement("SELECT COUNT(*) FROM foo").simpleQueryForLong());
+
+    // both run in one transaction, so the difference is compiling one
+    // statement instead of one per row
+    assertTrue(batch<perRow);
+  }
+
+  private List<ContentValues> buildRows(int count) {
+    List<ContentValues> result=new ArrayList<>(count);
+
+    for (int i=0;i<count;i++) {
+      ContentValues values=new ContentValues();
+
+      values.put("bar", i);
+      values.put("goo", "row "+i);
+      result.add(values);
+    }
+
+    return(result);
+  }
+
+  private static final class Callback extends SupportSQLiteOpenHelper.Callback {
+    public Callback(int version) {
+      super(version);
+    }
+
+    @Override
+    public void onCreate(SupportSQLiteDatabase db) {
+      db.execSQL("CREATE TABLE foo (bar, goo);");
+    }
+
+    @Override
+    public void onUpgrade(SupportSQLiteDatabase db, int oldVersion,
+                          int newVersion) {
+
+    }
+  }
+}
@@ -0,0 +1,237 @@
+package com.commonsware.cwac.saferoom.test;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.text.SpannableStringBuilder;
+import android.util.Log;
+import com.commonsware.cwac.saferoom.Database;
+import com.commonsware.cwac.saferoom.KeysetPager;
+import com.commonsware.cwac.saferoom.SafeHelperFactory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import java.io.File;
+import androidx.sqlite.db.SimpleSQLiteQuery;
+import androidx.sqlite.db.SupportSQLiteDatabase;
+import androidx.sqlite.db.SupportSQLiteOpenHelper;
+import androidx.sqlite.db.SupportSQLiteProgram;
+import androidx.sqlite.db.SupportSQLiteQuery;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(AndroidJUnit4.class)
+public class KeysetPagerTest {
+  private static final String TAG="KeysetPagerTest";
+  private static final String DB_NAME="db";
+  private static final String PASSPHRASE="cufflink powerboat mundane vagrancy ragweed waving";
+  private static final String[] COLUMNS={"bar", "goo"};
+  private static final String SELECTION="bar % ? = 0";
+  private static final String OFFSET_SQL=
+    "SELECT bar, goo FROM foo WHERE "+SELECTION+" ORDER BY bar LIMIT ? OFFSET ?";
+  private static final int ROWS=100000;
+  private static final int PAGE_SIZE=50;
+
+  private SupportSQLiteOpenHelper helper;
+  private Database db;
+
+  @Before
+  public void setUp() {
+    SafeHelperFactory factory=
+      SafeHelperFactory.fromUser(new SpannableStringBuilder(PASSPHRASE));
+
+    helper=factory.create(InstrumentationRegistry.getTargetContext(), DB_NAME,
+      new Callback(1));
+    db=(Database)helper.getWritableDatabase();
+  }
+
+  @After
+  public void tearDown() {
+    helper.close();
+
+    Context ctxt=InstrumentationRegistry.getTargetContext();
+    File db=ctxt.getDatabasePath(DB_NAME);
+
+    for (File f : db.getParentFile().listFiles()) {
+      f.delete();
+    }
+  }
+
+  @Test
+  public void walk() {
+    KeysetPager pager=
+      db.keysetPager("foo", COLUMNS, SELECTION, new Object[] {2}, "bar", PAGE_SIZE);
+    Cursor page=pager.loadInitial(null);
+    Object key=null;
+    int expected=0;
+
+    while (page.getCount()>0) {
+      while (page.moveToNext()) {
+        assertEquals(expected, page.getLong(0));
+        key=pager.keyOf(page);
+        expected+=2;
+      }
+
+      page.close();
+      page=pager.loadAfter(key);
+    }
+
+    page.close();
+    assertEquals(ROWS, expected);
+    assertNotNull(key);
+
+    page=pager.loadBefore(key);
+
+    try {
+      assertEquals(PAGE_SIZE, page.getCount());
+      page.moveToFirst();
+      assertEquals(ROWS-2-(PAGE_SIZE*2), page.getLong(0));
+      page.moveToLast();
+      assertEquals(ROWS-4, page.getLong(0));
+    }
+    finally {
+      page.close();
+    }
+
+    page=pager.loadInitial(1000L);
+
+    try {
+      page.moveToFirst();
+      assertEquals(1000, page.getLong(0));
+    }
+    finally {
+      page.close();
+    }
+  }
+
+  @Test
+  public void indexUse() {
+    KeysetPager byRowid=
+      db.keysetPager("foo", COLUMNS, SELECTION, new Object[] {2}, "bar", PAGE_SIZE);
+    KeysetPager byIndex=
+      db.keysetPager("foo", null, SELECTION, new Object[] {2}, "baz", PAGE_SIZE);
+
+    // every page seeks to its key rather than scanning up to it
+    assertSearches(byRowid.queryInitial(1000L), "INTEGER PRIMARY KEY");
+    assertSearches(byRowid.queryAfter(1000L), "INTEGER PRIMARY KEY");
+    assertSearches(byRowid.queryBefore(1000L), "INTEGER PRIMARY KEY");
+    assertSearches(byIndex.queryInitial(1000L), "foo_baz");
+    assertSearches(byIndex.queryAfter(1000L), "foo_baz");
+    assertSearches(byIndex.queryBefore(1000L), "foo_baz");
+
+    Cursor page=byIndex.loadAfter(1000L);
+
+    try {
+      assertEquals(PAGE_SIZE, page.getCount());
+      page.moveToFirst();
+      assertEquals(1002L, page.getLong(page.getColumnIndexOrThrow("baz")));
+      assertEquals(Long.valueOf(1002L), byIndex.keyOf(page));
+    }
+    finally {
+      page.close();
+    }
+  }
+
+  @Test(expected=IllegalArgumentException.class)
+  public void keyNotInColumns() {
+    db.keysetPager("foo", new String[] {"goo"}, null, null, "bar", PAGE_SIZE);
+  }
+
+  @Test
+  public void deepPageBenchmark() {
+    KeysetPager pager=
+      db.keysetPager("foo", COLUMNS, SELECTION, new Object[] {1}, "bar", PAGE_SIZE);
+    int deep=ROWS-PAGE_SIZE;
+
+    long firstKeyset=time(pager.loadInitial(null));
+    long deepKeyset=time(pager.loadAfter((long)deep-1));
+    long firstOffset=time(db.query(new SimpleSQLiteQuery(OFFSET_SQL,
+      new Object[] {1, PAGE_SIZE, 0})));
+    long deepOffset=time(db.query(new SimpleSQLiteQuery(OFFSET_SQL,
+      new Object[] {1, PAGE_SIZE, deep})));
+
+    Log.i(TAG, String.format("first page: keyset %.2fms, offset %.2fms; page at row %d: keyset %.2fms, offset %.2fms",
+      firstKeyset/1e6d, firstOffset/1e6d, deep, deepKeyset/1e6d, deepOffset/1e6d));
+
+    // the offset query decrypts the ~100,000 rows that it skips; the keyset
+    // query starts at the key
+    assertTrue(deepKeyset<deepOffset);
+  }
+
+  private void assertSearches(final SupportSQLiteQuery query, String index) {
+    Cursor plan=db.query(new SupportSQLiteQuery() {
+      @Override
+      public String getSql() {
+        return("EXPLAIN QUERY PLAN "+query.getSql());
+      }
+
+      @Override
+      public void bindTo(SupportSQLiteProgram statement) {
+        query.bindTo(statement);
+      }
+
+      @Override
+      public int getArgCount() {
+        return(query.getArgCount());
+      }
+    });
+    StringBuilder details=new StringBuilder();
+    boolean searched=false;
+
+    try {
+      int column=plan.getColumnIndexOrThrow("detail");
+
+      while (plan.moveToNext()) {
+        String detail=plan.getString(column);
+
+        details.append(detail).append('\n');
+        searched=searched || (detail.contains("SEARCH") && detail.contains(index));
+      }
+    }
+    finally {
+      plan.close();
+    }
+
+    assertTrue(query.getSql()+"\n"+details, searched);
+  }
+
+  private long time(Cursor c) {
+    long start=System.nanoTime();
+
+    try {
+      assertEquals(PAGE_SIZE, c.getCount());
+
+      while (c.moveToNext()) {
+        c.getString(1);
+      }
+    }
+    finally {
+      c.close();
+    }
+
+    return(System.nanoTime()-start);
+  }
+
+  private static final class Callback extends SupportSQLiteOpenHelper.Callback {
+    public Callback(int version) {
+      super(version);
+    }
+
+    @Override
+    public void onCreate(SupportSQLiteDatabase db) {
+      db.execSQL("CREATE TABLE foo (bar INTEGER PRIMARY KEY, goo TEXT, baz INTEGER);");
+      db.execSQL("CREATE UNIQUE INDEX foo_baz ON foo (baz);");
+      db.execSQL("WITH RECURSIVE n(x) AS (SELECT 0 UNION ALL SELECT x+1 FROM n LIMIT "+
+        ROWS+") INSERT INTO foo SELECT x, 'row '||x, x FROM n;");
+    }
+
+    @Override
+    public void onUpgrade(SupportSQLiteDatabase db, int oldVersion,
+                          int newVersion) {
+
+    }
+  }
+}
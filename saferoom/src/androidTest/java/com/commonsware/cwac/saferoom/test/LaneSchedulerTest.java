@@ -0,0 +1,143 @@
+package com.commonsware.cwac.saferoom.test;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.text.SpannableStringBuilder;
+import android.util.Log;
+import com.commonsware.cwac.saferoom.Database;
+import com.commonsware.cwac.saferoom.DatabaseOperation;
+import com.commonsware.cwac.saferoom.LaneScheduler;
+import com.commonsware.cwac.saferoom.SafeHelperFactory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Future;
+import androidx.sqlite.db.SimpleSQLiteQuery;
+import androidx.sqlite.db.SupportSQLiteDatabase;
+import androidx.sqlite.db.SupportSQLiteOpenHelper;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(AndroidJUnit4.class)
+public class LaneSchedulerTest {
+  private static final String TAG="LaneSchedulerTest";
+  private static final String DB_NAME="db";
+  private static final String PASSPHRASE="cufflink powerboat mundane vagrancy ragweed waving";
+  private static final int CHUNKS=200;
+  private static final int ROWS_PER_CHUNK=100;
+  private static final int READS=20;
+
+  private SupportSQLiteOpenHelper helper;
+  private Database db;
+
+  @Before
+  public void setUp() {
+    SafeHelperFactory factory=
+      SafeHelperFactory.fromUser(new SpannableStringBuilder(PASSPHRASE));
+
+    helper=factory.create(InstrumentationRegistry.getTargetContext(), DB_NAME,
+      new Callback(1));
+    db=(Database)helper.getWritableDatabase();
+  }
+
+  @After
+  public void tearDown() {
+    helper.close();
+
+    Context ctxt=InstrumentationRegistry.getTargetContext();
+    File db=ctxt.getDatabasePath(DB_NAME);
+
+    for (File f : db.getParentFile().listFiles()) {
+      f.delete();
+    }
+  }
+
+  @Test
+  public void interactiveDuringBatch() throws Exception {
+    LaneScheduler scheduler=db.laneScheduler();
+    List<DatabaseOperation<Void>> chunks=new ArrayList<>();
+
+    for (int i=0;i<CHUNKS;i++) {
+      chunks.add(chunk(i*ROWS_PER_CHUNK));
+    }
+
+    Future<Integer> batch=scheduler.submitBatch(chunks);
+    long worst=0;
+
+    for (int i=0;i<READS;i++) {
+      long start=System.nanoTime();
+
+      scheduler.submit(LaneScheduler.Lane.INTERACTIVE, new DatabaseOperation<Long>() {
+        @Override
+        public Long execute(Database db) {
+          Cursor c=db.query(new SimpleSQLiteQuery("SELECT COUNT(*) FROM foo"));
+
+          try {
+            c.moveToFirst();
+
+            return(c.getLong(0));
+          }
+          finally {
+            c.close();
+          }
+        }
+      }).get();
+
+      worst=Math.max(worst, System.nanoTime()-start);
+      Thread.sleep(5);
+    }
+
+    assertEquals(CHUNKS, batch.get().intValue());
+    scheduler.close();
+
+    LaneScheduler.LaneStats interactive=
+      scheduler.getStats(LaneScheduler.Lane.INTERACTIVE);
+    LaneScheduler.LaneStats background=
+      scheduler.getStats(LaneScheduler.Lane.BACKGROUND);
+
+    assertEquals(READS, interactive.getDispatchCount());
+    assertEquals(1, background.getDispatchCount());
+    assertTrue(background.getYieldCount()>0);
+    Log.i(TAG, String.format("interactive: avg queue %.2fms, max queue %.2fms, worst read %.2fms; background yields: %d",
+      interactive.getAverageQueueNanos()/1e6d,
+      interactive.getMaxQueueNanos()/1e6d, worst/1e6d,
+      background.getYieldCount()));
+  }
+
+  private static DatabaseOperation<Void> chunk(final int first) {
+    return(new DatabaseOperation<Void>() {
+      @Override
+      public Void execute(Database db) {
+        for (int i=first;i<first+ROWS_PER_CHUNK;i++) {
+          db.execSQL("INSERT INTO foo (bar, goo) VALUES (?, ?)",
+            new Object[] {i, "row "+i});
+        }
+
+        return(null);
+      }
+    });
+  }
+
+  private static final class Callback extends SupportSQLiteOpenHelper.Callback {
+    public Callback(int version) {
+      super(version);
+    }
+
+    @Override
+    public void onCreate(SupportSQLiteDatabase db) {
+      db.execSQL("CREATE TABLE foo (bar INTEGER PRIMARY KEY, goo TEXT);");
+    }
+
+    @Override
+    public void onUpgrade(SupportSQLiteDatabase db, int oldVersion,
+                          int newVersion) {
+
+    }
+  }
+}
@@ -0,0 +1,90 @@
+package com.commonsware.cwac.saferoom.test;
+
+import android.content.Context;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.text.SpannableStringBuilder;
+import android.util.Log;
+import com.commonsware.cwac.saferoom.OpenTrace;
+import com.commonsware.cwac.saferoom.SafeHelperFactory;
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import androidx.sqlite.db.SupportSQLiteDatabase;
+import androidx.sqlite.db.SupportSQLiteOpenHelper;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(AndroidJUnit4.class)
+public class OpenTraceTest {
+  private static final String TAG="OpenTraceTest";
+  private static final String DB_NAME="db";
+  private static final String PASSPHRASE="cufflink powerboat mundane vagrancy ragweed waving";
+
+  @After
+  public void tearDown() {
+    Context ctxt=InstrumentationRegistry.getTargetContext();
+    File db=ctxt.getDatabasePath(DB_NAME);
+
+    for (File f : db.getParentFile().listFiles()) {
+      f.delete();
+    }
+  }
+
+  @Test
+  public void trace() {
+    final List<OpenTrace> traces=new CopyOnWriteArrayList<>();
+    SafeHelperFactory.Options options=SafeHelperFactory.Options.builder()
+      .setOpenTraceListener(new OpenTrace.Listener() {
+        @Override
+        public void onOpenTraced(OpenTrace trace) {
+          traces.add(trace);
+        }
+      })
+      .build();
+    SafeHelperFactory factory=
+      SafeHelperFactory.fromUser(new SpannableStringBuilder(PASSPHRASE), options);
+    SupportSQLiteOpenHelper helper=
+      factory.create(InstrumentationRegistry.getTargetContext(), DB_NAME,
+        new Callback(1));
+
+    helper.getWritableDatabase();
+    helper.getWritableDatabase();
+    helper.close();
+
+    assertEquals(1, traces.size());
+
+    OpenTrace trace=traces.get(0);
+
+    Log.i(TAG, trace.toString());
+    assertEquals(DB_NAME, trace.getDatabaseName());
+    assertTrue(trace.getNanos(OpenTrace.Phase.NATIVE_OPEN)>0);
+    assertTrue(trace.getNanos(OpenTrace.Phase.KEY_DERIVATION)>0);
+    assertEquals(1, trace.getCount(OpenTrace.Phase.KEY_DERIVATION));
+    assertEquals(0, trace.getCount(OpenTrace.Phase.UPGRADE));
+    assertTrue(trace.getNanos(OpenTrace.Phase.CREATE)>0);
+    assertEquals(0, trace.getNanos(OpenTrace.Phase.UPGRADE));
+    assertEquals(OpenTrace.Phase.values().length, trace.toMap().size());
+    assertTrue(trace.getTotalNanos()>=trace.getNanos(OpenTrace.Phase.CREATE));
+  }
+
+  private static final class Callback extends SupportSQLiteOpenHelper.Callback {
+    public Callback(int version) {
+      super(version);
+    }
+
+    @Override
+    public void onCreate(SupportSQLiteDatabase db) {
+      db.execSQL("CREATE TABLE foo (bar, goo);");
+    }
+
+    @Override
+    public void onUpgrade(SupportSQLiteDatabase db, int oldVersion,
+                          int newVersion) {
+
+    }
+  }
+}
@@ -0,0 +1,204 @@
+package com.commonsware.cwac.saferoom.test;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.text.SpannableStringBuilder;
+import android.util.Log;
+import com.commonsware.cwac.saferoom.Database;
+import com.commonsware.cwac.saferoom.SafeHelperFactory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import java.io.File;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import androidx.sqlite.db.SimpleSQLiteQuery;
+import androidx.sqlite.db.SupportSQLiteDatabase;
+import androidx.sqlite.db.SupportSQLiteOpenHelper;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(AndroidJUnit4.class)
+public class PrefetchingCursorTest {
+  private static final String TAG="PrefetchingCursorTest";
+  private static final String DB_NAME="db";
+  private static final String PASSPHRASE="cufflink powerboat mundane vagrancy ragweed waving";
+  private static final String SQL="SELECT bar, goo FROM foo ORDER BY bar";
+  private static final int ROWS=1000000;
+  private static final int CHUNK_ROWS=1000;
+
+  private SupportSQLiteOpenHelper helper;
+  private Database db;
+  private ExecutorService executor;
+
+  @Before
+  public void setUp() {
+    SafeHelperFactory factory=
+      SafeHelperFactory.fromUser(new SpannableStringBuilder(PASSPHRASE));
+
+    helper=factory.create(InstrumentationRegistry.getTargetContext(), DB_NAME,
+      new Callback(1));
+    db=(Database)helper.getWritableDatabase();
+    executor=Executors.newSingleThreadExecutor();
+  }
+
+  @After
+  public void tearDown() throws InterruptedException {
+    executor.shutdown();
+    executor.awaitTermination(10, TimeUnit.SECONDS);
+    helper.close();
+
+    Context ctxt=InstrumentationRegistry.getTargetContext();
+    File db=ctxt.getDatabasePath(DB_NAME);
+
+    for (File f : db.getParentFile().listFiles()) {
+      f.delete();
+    }
+  }
+
+  @Test
+  public void contents() {
+    Cursor c=db.queryPrefetching(new SimpleSQLiteQuery(SQL), executor, 7);
+
+    try {
+      assertEquals(ROWS, c.getCount());
+
+      int i=0;
+
+      while (c.moveToNext()) {
+        assertEquals(i, c.getLong(0));
+        assertEquals("row "+i, c.getString(1));
+        i++;
+      }
+
+      assertEquals(ROWS, i);
+
+      // the worker quit once it handed over the last chunk, even though
+      // the cursor is still open, so the executor is free again
+      assertWorkerStopped();
+    }
+    finally {
+      c.close();
+    }
+  }
+
+  @Test
+  public void earlyClose() {
+    Cursor c=db.queryPrefetching(new SimpleSQLiteQuery(SQL), executor, 100);
+
+    c.moveToPosition(150);
+    assertEquals(150, c.getLong(0));
+    c.close();
+    assertWorkerStopped();
+  }
+
+  @Test
+  public void directExecutor() {
+    Executor direct=new Executor() {
+      @Override
+      public void execute(Runnable command) {
+        command.run();
+      }
+    };
+    Cursor c=db.queryPrefetching(
+      new SimpleSQLiteQuery("SELECT bar FROM foo WHERE bar<?", new Object[] {500}),
+      direct, 7);
+
+    try {
+      int i=0;
+
+      while (c.moveToNext()) {
+        assertEquals(i++, c.getLong(0));
+      }
+
+      assertEquals(500, i);
+    }
+    finally {
+      c.close();
+    }
+  }
+
+  @Test(expected=RejectedExecutionException.class)
+  public void rejected() {
+    executor.shutdown();
+    db.queryPrefetching(new SimpleSQLiteQuery(SQL), executor, CHUNK_ROWS);
+  }
+
+  @Test
+  public void overlapBenchmark() {
+    long forwardOnly=scan(db.queryForwardOnly(new SimpleSQLiteQuery(SQL)));
+    long prefetched=
+      scan(db.queryPrefetching(new SimpleSQLiteQuery(SQL), executor, CHUNK_ROWS));
+
+    Log.i(TAG, String.format("%d rows: forward-only %.0fms, prefetching %.0fms",
+      ROWS, forwardOnly/1e6d, prefetched/1e6d));
+
+    // the same single pass, but with the reading overlapped with the work
+    assertTrue(prefetched<forwardOnly);
+  }
+
+  private void assertWorkerStopped() {
+    Future<?> next=executor.submit(new Runnable() {
+      @Override
+      public void run() {
+        // nothing to do, other than prove that the thread is free
+      }
+    });
+
+    try {
+      next.get(5, TimeUnit.SECONDS);
+    }
+    catch (Exception e) {
+      throw new AssertionError("Worker is still running", e);
+    }
+  }
+
+  private long scan(Cursor c) {
+    long start=System.nanoTime();
+    long checksum=0;
+
+    try {
+      while (c.moveToNext()) {
+        // stand-in for per-row work done by the app
+        checksum+=c.getString(1).hashCode();
+
+        for (int i=0;i<200;i++) {
+          checksum=checksum*31+i;
+        }
+      }
+    }
+    finally {
+      c.close();
+    }
+
+    Log.d(TAG, "checksum "+checksum);
+
+    return(System.nanoTime()-start);
+  }
+
+  private static final class Callback extends SupportSQLiteOpenHelper.Callback {
+    public Callback(int version) {
+      super(version);
+    }
+
+    @Override
+    public void onCreate(SupportSQLiteDatabase db) {
+      db.execSQL("CREATE TABLE foo (bar INTEGER PRIMARY KEY, goo TEXT);");
+      db.execSQL("WITH RECURSIVE n(x) AS (SELECT 0 UNION ALL SELECT x+1 FROM n LIMIT "+
+        ROWS+") INSERT INTO foo SELECT x, 'row '||x FROM n;");
+    }
+
+    @Override
+    public void onUpgrade(SupportSQLiteDatabase db, int oldVersion,
+                          int newVersion) {
+
+    }
+  }
+}
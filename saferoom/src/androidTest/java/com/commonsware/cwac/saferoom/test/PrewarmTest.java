@@ -0,0 +1,86 @@
+package com.commonsware.cwac.saferoom.test;
+
+import android.content.Context;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.text.SpannableStringBuilder;
+import com.commonsware.cwac.saferoom.SafeHelperFactory;
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import java.io.File;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import androidx.sqlite.db.SupportSQLiteDatabase;
+import androidx.sqlite.db.SupportSQLiteOpenHelper;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+@RunWith(AndroidJUnit4.class)
+public class PrewarmTest {
+  private static final String DB_NAME="db";
+  private static final String PASSPHRASE="cufflink powerboat mundane vagrancy ragweed waving";
+
+  @After
+  public void tearDown() {
+    Context ctxt=InstrumentationRegistry.getTargetContext();
+    File db=ctxt.getDatabasePath(DB_NAME);
+
+    for (File f : db.getParentFile().listFiles()) {
+      f.delete();
+    }
+  }
+
+  @Test
+  public void prewarm() throws Exception {
+    SafeHelperFactory factory=
+      SafeHelperFactory.fromUser(new SpannableStringBuilder(PASSPHRASE));
+    Callback callback=new Callback(1);
+    SupportSQLiteOpenHelper helper=
+      factory.create(InstrumentationRegistry.getTargetContext(), DB_NAME,
+        callback);
+    ExecutorService executor=Executors.newSingleThreadExecutor();
+
+    try {
+      Future<SupportSQLiteDatabase> future=SafeHelperFactory.prewarm(helper, executor);
+
+      // joins the open started by prewarm()
+      SupportSQLiteDatabase db=helper.getWritableDatabase();
+
+      assertSame(future.get(), db);
+      assertSame(db, helper.getWritableDatabase());
+      assertEquals(1, callback.opens.get());
+      assertEquals(1, db.getVersion());
+    }
+    finally {
+      executor.shutdown();
+      helper.close();
+    }
+  }
+
+  private static final class Callback extends SupportSQLiteOpenHelper.Callback {
+    final AtomicInteger opens=new AtomicInteger();
+
+    public Callback(int version) {
+      super(version);
+    }
+
+    @Override
+    public void onCreate(SupportSQLiteDatabase db) {
+      db.execSQL("CREATE TABLE foo (bar, goo);");
+    }
+
+    @Override
+    public void onUpgrade(SupportSQLiteDatabase db, int oldVersion,
+                          int newVersion) {
+
+    }
+
+    @Override
+    public void onOpen(SupportSQLiteDatabase db) {
+      opens.incrementAndGet();
+    }
+  }
+}
@@ -0,0 +1,317 @@
+package com.commonsware.cwac.saferoom.test;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.os.Debug;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.text.SpannableStringBuilder;
+import android.util.Log;
+import android.util.SparseArray;
+import com.commonsware.cwac.saferoom.SafeHelperFactory;
+import net.sqlcipher.database.SQLiteCursor;
+import net.sqlcipher.database.SQLiteCursorDriver;
+import net.sqlcipher.database.SQLiteDatabase;
+import net.sqlcipher.database.SQLiteQuery;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import java.io.File;
+import androidx.sqlite.db.SimpleSQLiteQuery;
+import androidx.sqlite.db.SupportSQLiteDatabase;
+import androidx.sqlite.db.SupportSQLiteOpenHelper;
+import androidx.sqlite.db.SupportSQLiteProgram;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(AndroidJUnit4.class)
+public class QueryBindingTest {
+  private static final String TAG="QueryBindingTest";
+  private static final String DB_NAME="db";
+  private static final String PASSPHRASE="cufflink powerboat mundane vagrancy ragweed waving";
+  private static final String SQL="SELECT bar, goo, blobby FROM foo WHERE bar=? AND goo=? AND blobby=?";
+  private static final byte[] BLOB={1, 2, 3, 4};
+  private static final int ITERATIONS=1000;
+
+  private SupportSQLiteOpenHelper helper;
+  private SupportSQLiteDatabase db;
+
+  @Before
+  public void setUp() {
+    SafeHelperFactory factory=
+      SafeHelperFactory.fromUser(new SpannableStringBuilder(PASSPHRASE));
+
+    helper=factory.create(InstrumentationRegistry.getTargetContext(), DB_NAME,
+      new Callback(1));
+    db=helper.getWritableDatabase();
+  }
+
+  @After
+  public void tearDown() {
+    helper.close();
+
+    Context ctxt=InstrumentationRegistry.getTargetContext();
+    File db=ctxt.getDatabasePath(DB_NAME);
+
+    for (File f : db.getParentFile().listFiles()) {
+      f.delete();
+    }
+  }
+
+  @Test
+  public void typedBindings() {
+    Cursor c=db.query(SQL, new Object[] {1L, 2.5d, BLOB});
+
+    try {
+      assertEquals(1, c.getCount());
+      assertTrue(c.moveToFirst());
+      assertEquals(1L, c.getLong(0));
+      assertEquals(2.5d, c.getDouble(1), 0.0001d);
+      assertArrayEquals(BLOB, c.getBlob(2));
+    }
+    finally {
+      c.close();
+    }
+  }
+
+  @Test
+  public void stringAndNullBindings() {
+    Cursor c=db.query("SELECT COUNT(*) FROM foo WHERE goo=? OR blobby IS ?",
+      new Object[] {"2.5", null});
+
+    try {
+      assertTrue(c.moveToFirst());
+      // "2.5" compares equal to the REAL column via type affinity
+      assertEquals(1, c.getInt(0));
+    }
+    finally {
+      c.close();
+    }
+  }
+
+  @Test
+  public void allocationBenchmark() {
+    final Object[] args={1L, 2.5d, "2.5"};
+    final String sql="SELECT bar FROM foo WHERE bar=? AND goo=? AND goo=?";
+    File path=InstrumentationRegistry.getTargetContext().getDatabasePath(DB_NAME);
+
+    // the old path ran on SQLCipher directly, so give it its own connection
+    // to the same database
+    final SQLiteDatabase raw=SQLiteDatabase.openDatabase(path.getAbsolutePath(),
+      PASSPHRASE.toCharArray(), null, SQLiteDatabase.OPEN_READONLY);
+
+    try {
+      // warm up both paths, so class loading and the SQL caches do not
+      // count against either
+      runTyped(sql, args);
+      runRecorded(raw, sql, args);
+
+      long typed=countAllocations(new Runnable() {
+        @Override
+        public void run() {
+          runTyped(sql, args);
+        }
+      });
+      long recorded=countAllocations(new Runnable() {
+        @Override
+        public void run() {
+          runRecorded(raw, sql, args);
+        }
+      });
+
+      Log.i(TAG, String.format("allocations per query: typed=%.1f recorded=%.1f",
+        (double)typed/ITERATIONS, (double)recorded/ITERATIONS));
+
+      // per query, the recorder costs itself, a SparseArray and its two
+      // arrays, and a boxed Double, before any of the toString() calls
+      assertTrue(typed>0);
+      assertTrue(recorded-typed>=(long)ITERATIONS*5);
+    }
+    finally {
+      raw.close();
+    }
+  }
+
+  private long countAllocations(Runnable work) {
+    Debug.resetThreadAllocCount();
+    Debug.startAllocCounting();
+
+    try {
+      work.run();
+
+      return(Debug.getThreadAllocCount());
+    }
+    finally {
+      Debug.stopAllocCounting();
+    }
+  }
+
+  private void runTyped(String sql, Object[] args) {
+    for (int i=0;i<ITERATIONS;i++) {
+      Cursor c=db.query(sql, args);
+
+      try {
+        assertTrue(c.moveToFirst());
+      }
+      finally {
+        c.close();
+      }
+    }
+  }
+
+  /**
+   * What Database.query() did before: record the bindings, turn them into
+   * Strings for SQLCipher's selection arguments, then bind them again, with
+   * their types, from the cursor factory
+   */
+  private void runRecorded(SQLiteDatabase raw, String sql, Object[] args) {
+    for (int i=0;i<ITERATIONS;i++) {
+      final SimpleSQLiteQuery query=new SimpleSQLiteQuery(sql, args);
+      BindingsRecorder recorder=new BindingsRecorder();
+
+      query.bindTo(recorder);
+
+      Cursor c=raw.rawQueryWithFactory(new SQLiteDatabase.CursorFactory() {
+        @Override
+        public net.sqlcipher.Cursor newCursor(SQLiteDatabase db,
+                                              SQLiteCursorDriver masterQuery,
+                                              String editTable,
+                                              SQLiteQuery sqlQuery) {
+          query.bindTo(new QueryProgram(sqlQuery));
+
+          return(new SQLiteCursor(db, masterQuery, editTable, sqlQuery));
+        }
+      }, sql, recorder.getBindings(), null);
+
+      try {
+        assertTrue(c.moveToFirst());
+      }
+      finally {
+        c.close();
+      }
+    }
+  }
+
+  // copy of the BindingsRecorder that Database.query() used to use
+  private static class BindingsRecorder implements SupportSQLiteProgram {
+    private SparseArray<Object> bindings=new SparseArray<>();
+
+    @Override
+    public void bindNull(int index) {
+      bindings.put(index, null);
+    }
+
+    @Override
+    public void bindLong(int index, long value) {
+      bindings.put(index, value);
+    }
+
+    @Override
+    public void bindDouble(int index, double value) {
+      bindings.put(index, value);
+    }
+
+    @Override
+    public void bindString(int index, String value) {
+      bindings.put(index, value);
+    }
+
+    @Override
+    public void bindBlob(int index, byte[] value) {
+      bindings.put(index, value);
+    }
+
+    @Override
+    public void clearBindings() {
+      bindings.clear();
+    }
+
+    @Override
+    public void close() {
+      clearBindings();
+    }
+
+    String[] getBindings() {
+      final String[] result=new String[bindings.size()];
+
+      for (int i=0;i<bindings.size();i++) {
+        int key=bindings.keyAt(i);
+        Object binding=bindings.get(key);
+
+        if (binding!=null) {
+          result[i]=bindings.get(key).toString();
+        }
+        else {
+          result[i]="";
+        }
+      }
+
+      return(result);
+    }
+  }
+
+  // binds straight into SQLCipher's query, like the library's Program
+  private static class QueryProgram implements SupportSQLiteProgram {
+    private final SQLiteQuery query;
+
+    QueryProgram(SQLiteQuery query) {
+      this.query=query;
+    }
+
+    @Override
+    public void bindNull(int index) {
+      query.bindNull(index);
+    }
+
+    @Override
+    public void bindLong(int index, long value) {
+      query.bindLong(index, value);
+    }
+
+    @Override
+    public void bindDouble(int index, double value) {
+      query.bindDouble(index, value);
+    }
+
+    @Override
+    public void bindString(int index, String value) {
+      query.bindString(index, value);
+    }
+
+    @Override
+    public void bindBlob(int index, byte[] value) {
+      query.bindBlob(index, value);
+    }
+
+    @Override
+    public void clearBindings() {
+      query.clearBindings();
+    }
+
+    @Override
+    public void close() {
+      // the cursor owns the query
+    }
+  }
+
+  private static final class Callback extends SupportSQLiteOpenHelper.Callback {
+    public Callback(int version) {
+      super(version);
+    }
+
+    @Override
+    public void onCreate(SupportSQLiteDatabase db) {
+      db.execSQL("CREATE TABLE foo (bar INTEGER, goo REAL, blobby BLOB);");
+      db.execSQL("INSERT INTO foo (bar, goo, blobby) VALUES (?, ?, ?)",
+        new Object[] {1, 2.5d, BLOB});
+    }
+
+    @Override
+    public void onUpgrade(SupportSQLiteDatabase db, int oldVersion,
+                          int newVersion) {
+
+    }
+  }
+}
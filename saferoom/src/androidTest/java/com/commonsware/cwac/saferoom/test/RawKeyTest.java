@@ -0,0 +1,179 @@
+package com.commonsware.cwac.saferoom.test;
+
+import android.content.Context;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+import com.commonsware.cwac.saferoom.OpenTrace;
+import com.commonsware.cwac.saferoom.SQLCipherUtils;
+import com.commonsware.cwac.saferoom.SafeHelperFactory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import net.sqlcipher.database.SQLiteDatabase;
+import androidx.sqlite.db.SupportSQLiteDatabase;
+import androidx.sqlite.db.SupportSQLiteOpenHelper;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+@RunWith(AndroidJUnit4.class)
+public class RawKeyTest {
+  private static final String TAG="RawKeyTest";
+  private static final String DB_NAME="db";
+  private static final String PASSPHRASE="cufflink powerboat mundane vagrancy ragweed waving";
+
+  private Context ctxt;
+
+  @Before
+  public void setUp() {
+    ctxt=InstrumentationRegistry.getTargetContext();
+  }
+
+  @After
+  public void tearDown() {
+    File db=ctxt.getDatabasePath(DB_NAME);
+
+    for (File f : db.getParentFile().listFiles()) {
+      f.delete();
+    }
+  }
+
+  @Test
+  public void createWithRawKey() throws IOException {
+    byte[] rawKey=SQLCipherUtils.deriveRawKey(ctxt, DB_NAME, PASSPHRASE.toCharArray());
+
+    assertEquals(SQLCipherUtils.RAW_KEY_LENGTH+SQLCipherUtils.SALT_LENGTH,
+      rawKey.length);
+    openAndCheck(SafeHelperFactory.fromRawKey(rawKey));
+
+    // the passphrase must lead to the same key
+    openAndCheck(new SafeHelperFactory(PASSPHRASE.toCharArray()));
+  }
+
+  @Test
+  public void existingDatabase() throws IOException {
+    openAndCheck(new SafeHelperFactory(PASSPHRASE.toCharArray()));
+
+    byte[] rawKey=SQLCipherUtils.deriveRawKey(ctxt, DB_NAME, PASSPHRASE.toCharArray());
+    byte[] header=new byte[SQLCipherUtils.SALT_LENGTH];
+    InputStream in=new FileInputStream(ctxt.getDatabasePath(DB_NAME));
+
+    try {
+      assertEquals(header.length, in.read(header));
+    }
+    finally {
+      in.close();
+    }
+
+    // the salt comes from the database, so the key opens it
+    assertArrayEquals(header, Arrays.copyOfRange(rawKey,
+      SQLCipherUtils.RAW_KEY_LENGTH, rawKey.length));
+    openAndCheck(SafeHelperFactory.fromRawKey(rawKey));
+  }
+
+  @Test(expected=IllegalArgumentException.class)
+  public void emptyPassphrase() throws IOException {
+    SQLCipherUtils.deriveRawKey(ctxt, DB_NAME, new char[0]);
+  }
+
+  @Test
+  public void unencryptedDatabase() throws IOException {
+    File path=ctxt.getDatabasePath(DB_NAME);
+    SQLiteDatabase plainDb=
+      SQLiteDatabase.openOrCreateDatabase(path.getAbsolutePath(), "", null);
+
+    plainDb.execSQL("CREATE TABLE foo (bar, goo);");
+    plainDb.close();
+
+    long length=path.length();
+
+    try {
+      SQLCipherUtils.deriveRawKey(ctxt, DB_NAME, PASSPHRASE.toCharArray());
+      fail("Expected an unencrypted database to be rejected");
+    }
+    catch (IllegalStateException e) {
+      // expected
+    }
+
+    assertEquals(SQLCipherUtils.State.UNENCRYPTED,
+      SQLCipherUtils.getDatabaseState(ctxt, DB_NAME));
+    assertEquals(length, path.length());
+  }
+
+  @Test
+  public void coldOpenBenchmark() throws IOException {
+    final List<OpenTrace> traces=new CopyOnWriteArrayList<>();
+    SafeHelperFactory.Options options=SafeHelperFactory.Options.builder()
+      .setOpenTraceListener(new OpenTrace.Listener() {
+        @Override
+        public void onOpenTraced(OpenTrace trace) {
+          traces.add(trace);
+        }
+      })
+      .build();
+
+    openAndCheck(new SafeHelperFactory(PASSPHRASE.toCharArray()));
+
+    long start=System.nanoTime();
+
+    openAndCheck(new SafeHelperFactory(PASSPHRASE.toCharArray(), options));
+
+    long passphraseNanos=System.nanoTime()-start;
+    byte[] rawKey=SQLCipherUtils.deriveRawKey(ctxt, DB_NAME, PASSPHRASE.toCharArray());
+
+    start=System.nanoTime();
+    openAndCheck(SafeHelperFactory.fromRawKey(rawKey, options));
+
+    long rawKeyNanos=System.nanoTime()-start;
+
+    Log.i(TAG, String.format("cold open: passphrase=%.1fms raw key=%.1fms",
+      passphraseNanos/1e6d, rawKeyNanos/1e6d));
+
+    // the raw key skips the 256,000 PBKDF2 iterations, which dominate the
+    // passphrase open
+    assertEquals(2, traces.size());
+
+    long passphraseKdf=traces.get(0).getNanos(OpenTrace.Phase.KEY_DERIVATION);
+    long rawKeyKdf=traces.get(1).getNanos(OpenTrace.Phase.KEY_DERIVATION);
+
+    assertTrue(rawKeyKdf<passphraseKdf/2);
+    assertTrue(rawKeyNanos<passphraseNanos);
+  }
+
+  private void openAndCheck(SafeHelperFactory factory) {
+    SupportSQLiteOpenHelper helper=factory.create(ctxt, DB_NAME, new Callback(1));
+    SupportSQLiteDatabase db=helper.getWritableDatabase();
+
+    assertEquals(1, db.compileStatement("SELECT COUNT(*) FROM foo").simpleQueryForLong());
+    helper.close();
+  }
+
+  private static final class Callback extends SupportSQLiteOpenHelper.Callback {
+    public Callback(int version) {
+      super(version);
+    }
+
+    @Override
+    public void onCreate(SupportSQLiteDatabase db) {
+      db.execSQL("CREATE TABLE foo (bar, goo);");
+      db.execSQL("INSERT INTO foo (bar, goo) VALUES (?, ?)",
+        new Object[] {1, "two"});
+    }
+
+    @Override
+    public void onUpgrade(SupportSQLiteDatabase db, int oldVersion,
+                          int newVersion) {
+
+    }
+  }
+}
@@ -0,0 +1,251 @@
+package com.commonsware.cwac.saferoom.test;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.text.SpannableStringBuilder;
+import android.util.Log;
+import com.commonsware.cwac.saferoom.Database;
+import com.commonsware.cwac.saferoom.SafeHelperFactory;
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import androidx.sqlite.db.SupportSQLiteDatabase;
+import androidx.sqlite.db.SupportSQLiteOpenHelper;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(AndroidJUnit4.class)
+public class ReadPoolTest {
+  private static final String TAG="ReadPoolTest";
+  private static final String DB_NAME="db";
+  private static final String PASSPHRASE="cufflink powerboat mundane vagrancy ragweed waving";
+  private static final int ROWS=5000;
+  private static final int THREADS=4;
+  private static final int QUERIES_PER_THREAD=100;
+
+  @After
+  public void tearDown() {
+    Context ctxt=InstrumentationRegistry.getTargetContext();
+    File db=ctxt.getDatabasePath(DB_NAME);
+
+    for (File f : db.getParentFile().listFiles()) {
+      f.delete();
+    }
+  }
+
+  @Test
+  public void throughputBenchmark() throws Exception {
+    int[] poolSizes={0, 1, 2, 4};
+    long[] elapsedByPool=new long[poolSizes.length];
+
+    for (int p=0;p<poolSizes.length;p++) {
+      int poolSize=poolSizes[p];
+      SupportSQLiteOpenHelper helper=open(poolSize);
+      final Database db=(Database)helper.getWritableDatabase();
+
+      assertTrue(db.isWriteAheadLoggingEnabled());
+
+      ExecutorService executor=Executors.newFixedThreadPool(THREADS);
+      List<Future<Long>> results=new ArrayList<>();
+      long start=System.nanoTime();
+
+      for (int i=0;i<THREADS;i++) {
+        results.add(executor.submit(new Callable<Long>() {
+          @Override
+          public Long call() {
+            long total=0;
+
+            for (int j=0;j<QUERIES_PER_THREAD;j++) {
+              Cursor c=db.query("SELECT COUNT(*) FROM foo WHERE goo LIKE ?",
+                new Object[] {"%"+(j%10)});
+
+              try {
+                c.moveToFirst();
+                total+=c.getLong(0);
+              }
+              finally {
+                c.close();
+              }
+            }
+
+            return(total);
+          }
+        }));
+      }
+
+      for (Future<Long> result : results) {
+        assertEquals(ROWS/10*QUERIES_PER_THREAD, result.get().longValue());
+      }
+
+      long elapsed=System.nanoTime()-start;
+
+      elapsedByPool[p]=elapsed;
+      executor.shutdown();
+
+      // every one of those reads should have gone to the pool, if there is one
+      assertEquals(poolSize==0 ? 0 : THREADS*QUERIES_PER_THREAD,
+        db.getPooledReadCount());
+      helper.close();
+
+      Log.i(TAG, String.format("pool size %d: %.0f queries/second", poolSize,
+        THREADS*QUERIES_PER_THREAD*1e9d/elapsed));
+    }
+
+    // without a pool, every query takes the primary connection's lock in
+    // turn; with one reader per thread, they run side by side
+    assertTrue(elapsedByPool[poolSizes.length-1]<elapsedByPool[0]);
+  }
+
+  @Test
+  public void readsDoNotWaitForWriter() throws Exception {
+    SupportSQLiteOpenHelper helper=open(2);
+    final Database db=(Database)helper.getWritableDatabase();
+    final CountDownLatch written=new CountDownLatch(1);
+    final CountDownLatch release=new CountDownLatch(1);
+    ExecutorService executor=Executors.newFixedThreadPool(2);
+
+    try {
+      Future<?> writer=executor.submit(new Callable<Void>() {
+        @Override
+        public Void call() throws Exception {
+          db.beginTransaction();
+
+          try {
+            db.execSQL("DELETE FROM foo");
+            db.setTransactionSuccessful();
+            written.countDown();
+            release.await();
+          }
+          finally {
+            db.endTransaction();
+          }
+
+          return(null);
+        }
+      });
+
+      assertTrue(written.await(10, TimeUnit.SECONDS));
+
+      // the writer holds the primary connection, so this would block until
+      // it committed if it were not going to a reader; the reader sees the
+      // last committed state, before the DELETE
+      Future<Integer> read=executor.submit(new Callable<Integer>() {
+        @Override
+        public Integer call() {
+          return(count(db, "SELECT * FROM foo"));
+        }
+      });
+
+      assertEquals(ROWS, read.get(5, TimeUnit.SECONDS).intValue());
+      release.countDown();
+      writer.get(10, TimeUnit.SECONDS);
+      assertEquals(0, count(db, "SELECT * FROM foo"));
+    }
+    finally {
+      release.countDown();
+      executor.shutdown();
+      helper.close();
+    }
+  }
+
+  @Test
+  public void routing() {
+    SupportSQLiteOpenHelper helper=open(2);
+
+    try {
+      Database db=(Database)helper.getWritableDatabase();
+
+      count(db, "WITH n AS (SELECT 1) SELECT * FROM n");
+      assertEquals(1, db.getPooledReadCount());
+
+      // a write behind a WITH has to stay on the primary connection
+      count(db, "WITH n(x) AS (SELECT 1) DELETE FROM foo WHERE bar IN n");
+      assertEquals(1, db.getPooledReadCount());
+
+      // as do reads inside of a transaction
+      db.beginTransaction();
+
+      try {
+        count(db, "SELECT * FROM foo WHERE bar=0");
+      }
+      finally {
+        db.endTransaction();
+      }
+
+      assertEquals(1, db.getPooledReadCount());
+
+      count(db, "SELECT * FROM foo WHERE bar=0");
+      assertEquals(2, db.getPooledReadCount());
+    }
+    finally {
+      helper.close();
+    }
+  }
+
+  private static int count(Database db, String sql) {
+    Cursor c=db.query(sql);
+
+    try {
+      return(c.getCount());
+    }
+    finally {
+      c.close();
+    }
+  }
+
+  private SupportSQLiteOpenHelper open(int poolSize) {
+    SafeHelperFactory.Options options=SafeHelperFactory.Options.builder()
+      .setReadConnectionPoolSize(poolSize)
+      .build();
+    SafeHelperFactory factory=
+      SafeHelperFactory.fromUser(new SpannableStringBuilder(PASSPHRASE), options);
+    SupportSQLiteOpenHelper helper=
+      factory.create(InstrumentationRegistry.getTargetContext(), DB_NAME,
+        new Callback(1));
+
+    helper.setWriteAheadLoggingEnabled(true);
+
+    return(helper);
+  }
+
+  private static final class Callback extends SupportSQLiteOpenHelper.Callback {
+    public Callback(int version) {
+      super(version);
+    }
+
+    @Override
+    public void onCreate(SupportSQLiteDatabase db) {
+      List<ContentValues> rows=new ArrayList<>();
+
+      db.execSQL("CREATE TABLE foo (bar, goo);");
+
+      for (int i=0;i<ROWS;i++) {
+        ContentValues values=new ContentValues();
+
+        values.put("bar", i);
+        values.put("goo", "row "+i);
+        rows.add(values);
+      }
+
+      ((Database)db).insertBatch("foo", SupportSQLiteDatabase.CONFLICT_NONE, rows);
+    }
+
+    @Override
+    public void onUpgrade(SupportSQLiteDatabase db, int oldVersion,
+                          int newVersion) {
+
+    }
+  }
+}
@@ -0,0 +1,375 @@
+package com.commonsware.cwac.saferoom.test;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.text.SpannableStringBuilder;
+import android.util.Log;
+import com.commonsware.cwac.saferoom.Database;
+import com.commonsware.cwac.saferoom.ResultCache;
+import com.commonsware.cwac.saferoom.SafeHelperFactory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import java.io.File;
+import androidx.sqlite.db.SimpleSQLiteQuery;
+import androidx.sqlite.db.SupportSQLiteDatabase;
+import androidx.sqlite.db.SupportSQLiteOpenHelper;
+import androidx.sqlite.db.SupportSQLiteStatement;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(AndroidJUnit4.class)
+public class ResultCacheTest {
+  private static final String TAG="ResultCacheTest";
+  private static final String DB_NAME="db";
+  private static final String PASSPHRASE="cufflink powerboat mundane vagrancy ragweed waving";
+  private static final String FOO_SQL="SELECT COUNT(*) FROM foo WHERE bar > ?";
+  private static final String BAZ_SQL="SELECT COUNT(*) FROM baz";
+  private static final String BLOB_SQL="SELECT data FROM blobs WHERE id = 1";
+  private static final byte[] BLOB={1, 2, 3, 4};
+  private static final String TEXTS_SQL=
+    "SELECT v, CAST(v AS INTEGER), CAST(v AS REAL) FROM texts";
+  private static final int ROWS=1000;
+  private static final int MAX_ENTRIES=4;
+  private static final long MAX_BYTES=64*1024;
+
+  private SupportSQLiteOpenHelper helper;
+  private Database db;
+  private ResultCache cache;
+
+  @Before
+  public void setUp() {
+    SafeHelperFactory.Options options=SafeHelperFactory.Options.builder()
+      .setResultCache(MAX_ENTRIES, MAX_BYTES)
+      .build();
+    SafeHelperFactory factory=
+      SafeHelperFactory.fromUser(new SpannableStringBuilder(PASSPHRASE), options);
+
+    helper=factory.create(InstrumentationRegistry.getTargetContext(), DB_NAME,
+      new Callback(1));
+    db=(Database)helper.getWritableDatabase();
+    cache=db.getResultCache();
+  }
+
+  @After
+  public void tearDown() {
+    helper.close();
+
+    Context ctxt=InstrumentationRegistry.getTargetContext();
+    File db=ctxt.getDatabasePath(DB_NAME);
+
+    for (File f : db.getParentFile().listFiles()) {
+      f.delete();
+    }
+  }
+
+  @Test
+  public void repeatedQueries() {
+    assertEquals(ROWS-1, countFoo());
+    assertEquals(ROWS-1, countFoo());
+    assertEquals(ROWS-1, countFoo());
+    assertEquals(1, cache.getMissCount());
+    assertEquals(2, cache.getHitCount());
+    assertEquals(1, cache.size());
+
+    // different bindings are a different entry
+    Cursor c=db.query(new SimpleSQLiteQuery(FOO_SQL, new Object[] {ROWS-10}));
+
+    try {
+      assertTrue(c.moveToFirst());
+      assertEquals(9, c.getInt(0));
+    }
+    finally {
+      c.close();
+    }
+
+    assertEquals(2, cache.getMissCount());
+    assertEquals(2, cache.size());
+  }
+
+  @Test
+  public void insertInvalidates() {
+    warm();
+
+    ContentValues values=new ContentValues();
+
+    values.put("bar", ROWS);
+    values.put("goo", "inserted");
+    db.insert("foo", SupportSQLiteDatabase.CONFLICT_ABORT, values);
+
+    assertInvalidated(ROWS);
+  }
+
+  @Test
+  public void updateInvalidates() {
+    warm();
+
+    ContentValues values=new ContentValues();
+
+    values.put("bar", -1);
+    assertEquals(1, db.update("foo", SupportSQLiteDatabase.CONFLICT_ABORT,
+      values, "bar = ?", new Object[] {ROWS-1}));
+
+    assertInvalidated(ROWS-2);
+  }
+
+  @Test
+  public void deleteInvalidates() {
+    warm();
+
+    assertEquals(10, db.delete("foo", "bar < ?", new Object[] {10}));
+
+    assertInvalidated(ROWS-10);
+  }
+
+  @Test
+  public void execSQLInvalidates() {
+    warm();
+
+    db.execSQL("DELETE FROM foo WHERE bar >= ?", new Object[] {ROWS/2});
+
+    assertInvalidated(ROWS/2-1);
+  }
+
+  @Test
+  public void statementInvalidates() throws Exception {
+    warm();
+
+    SupportSQLiteStatement statement=
+      db.compileStatement("INSERT INTO foo (bar, goo) VALUES (?, ?)");
+
+    try {
+      statement.bindLong(1, ROWS);
+      statement.bindString(2, "compiled");
+      statement.executeInsert();
+    }
+    finally {
+      statement.close();
+    }
+
+    assertInvalidated(ROWS);
+  }
+
+  @Test
+  public void writeInTransaction() {
+    warm();
+
+    db.beginTransaction();
+
+    try {
+      db.execSQL("DELETE FROM foo WHERE bar > 0");
+
+      // reads in a transaction see uncommitted changes, so skip the cache
+      assertEquals(0, countFoo());
+      db.setTransactionSuccessful();
+    }
+    finally {
+      db.endTransaction();
+    }
+
+    assertInvalidated(0);
+  }
+
+  @Test
+  public void schemaChangeInvalidatesAll() {
+    warm();
+
+    long misses=cache.getMissCount();
+
+    db.execSQL("CREATE TABLE goo (id INTEGER PRIMARY KEY)");
+
+    assertEquals(0, cache.size());
+    assertEquals(2, cache.getInvalidationCount());
+    assertEquals(ROWS-1, countFoo());
+    assertEquals(misses+1, cache.getMissCount());
+  }
+
+  @Test
+  public void uncacheable() {
+    db.query("SELECT COUNT(*) FROM foo WHERE bar > random()").close();
+    db.query("SELECT * FROM foo_view").close();
+    db.query("SELECT COUNT(*) FROM foo").close();
+    db.query("SELECT COUNT(*) FROM foo").close();
+
+    assertEquals(1, cache.size());
+    assertEquals(1, cache.getHitCount());
+    assertEquals(1, cache.getMissCount());
+  }
+
+  @Test
+  public void entryLimit() {
+    for (int i=0;i<MAX_ENTRIES*2;i++) {
+      db.query(new SimpleSQLiteQuery(FOO_SQL, new Object[] {i})).close();
+    }
+
+    assertEquals(MAX_ENTRIES, cache.size());
+    assertEquals(MAX_ENTRIES, cache.getEvictionCount());
+  }
+
+  @Test
+  public void byteLimit() {
+    // all of foo is over the limit, so it is not cached at all, and its
+    // rows come from the query's own cursor
+    Cursor c=db.query("SELECT * FROM foo ORDER BY bar");
+
+    try {
+      assertEquals(ROWS, c.getCount());
+
+      for (int i=0;i<ROWS;i++) {
+        assertTrue(c.moveToNext());
+        assertEquals(i, c.getInt(0));
+      }
+
+      assertFalse(c.moveToNext());
+    }
+    finally {
+      c.close();
+    }
+
+    assertEquals(0, cache.size());
+
+    for (int i=0;i<MAX_ENTRIES;i++) {
+      db.query(new SimpleSQLiteQuery("SELECT * FROM foo WHERE bar < ?",
+        new Object[] {ROWS/3+i})).close();
+    }
+
+    assertTrue(cache.getByteCount()<=MAX_BYTES);
+    assertTrue(cache.getEvictionCount()>0);
+    Log.i(TAG, String.format("%d entries, %d bytes, %d evictions",
+      cache.size(), cache.getByteCount(), cache.getEvictionCount()));
+  }
+
+  @Test
+  public void blobsAreCopied() {
+    byte[] first=blob();
+
+    assertArrayEquals(BLOB, first);
+    first[0]=0;
+
+    // the cached row is shared, so scribbling on one copy must not affect it
+    assertArrayEquals(BLOB, blob());
+    assertEquals(1, cache.getHitCount());
+  }
+
+  @Test
+  public void textCoercesLikeSQLite() {
+    for (int i=0;i<2;i++) {
+      Cursor c=db.query(TEXTS_SQL);
+
+      try {
+        assertEquals(5, c.getCount());
+
+        // the cached values must convert as SQLite's own CASTs do
+        while (c.moveToNext()) {
+          assertEquals(c.getLong(1), c.getLong(0));
+          assertEquals(c.getDouble(2), c.getDouble(0), 0);
+        }
+      }
+      finally {
+        c.close();
+      }
+    }
+
+    assertEquals(1, cache.getHitCount());
+  }
+
+  @Test
+  public void disabledByDefault() {
+    SafeHelperFactory factory=
+      SafeHelperFactory.fromUser(new SpannableStringBuilder(PASSPHRASE));
+    SupportSQLiteOpenHelper plain=factory.create(
+      InstrumentationRegistry.getTargetContext(), "plain", new Callback(1));
+
+    try {
+      assertNull(((Database)plain.getWritableDatabase()).getResultCache());
+    }
+    finally {
+      plain.close();
+    }
+  }
+
+  private void warm() {
+    assertEquals(ROWS-1, countFoo());
+    assertEquals(1, countBaz());
+    assertEquals(2, cache.size());
+  }
+
+  private void assertInvalidated(int expectedFoo) {
+    long hits=cache.getHitCount();
+
+    assertEquals(1, cache.getInvalidationCount());
+    assertEquals(expectedFoo, countFoo());
+    assertEquals(1, countBaz());
+    assertEquals(hits+1, cache.getHitCount());
+    Log.i(TAG, String.format("%d hits, %d misses, %d invalidations",
+      cache.getHitCount(), cache.getMissCount(), cache.getInvalidationCount()));
+  }
+
+  private byte[] blob() {
+    Cursor c=db.query(BLOB_SQL);
+
+    try {
+      assertTrue(c.moveToFirst());
+
+      return(c.getBlob(0));
+    }
+    finally {
+      c.close();
+    }
+  }
+
+  private int countFoo() {
+    return(count(new SimpleSQLiteQuery(FOO_SQL, new Object[] {0})));
+  }
+
+  private int countBaz() {
+    return(count(new SimpleSQLiteQuery(BAZ_SQL)));
+  }
+
+  private int count(SimpleSQLiteQuery query) {
+    Cursor c=db.query(query);
+
+    try {
+      assertTrue(c.moveToFirst());
+
+      return(c.getInt(0));
+    }
+    finally {
+      c.close();
+    }
+  }
+
+  private static final class Callback extends SupportSQLiteOpenHelper.Callback {
+    public Callback(int version) {
+      super(version);
+    }
+
+    @Override
+    public void onCreate(SupportSQLiteDatabase db) {
+      db.execSQL("CREATE TABLE foo (bar INTEGER PRIMARY KEY, goo TEXT);");
+      db.execSQL("CREATE TABLE baz (id INTEGER PRIMARY KEY);");
+      db.execSQL("CREATE VIEW foo_view AS SELECT * FROM foo;");
+      db.execSQL("WITH RECURSIVE n(x) AS (SELECT 0 UNION ALL SELECT x+1 FROM n LIMIT "+
+        ROWS+") INSERT INTO foo SELECT x, 'group '||(x%50) FROM n;");
+      db.execSQL("INSERT INTO baz (id) VALUES (1);");
+      db.execSQL("CREATE TABLE blobs (id INTEGER PRIMARY KEY, data BLOB);");
+      db.execSQL("INSERT INTO blobs (id, data) VALUES (1, x'01020304');");
+      db.execSQL("CREATE TABLE texts (v);");
+      db.execSQL("INSERT INTO texts (v) VALUES (' 12.5e1x'), ('abc'), "+
+        "('-7 apples'), ('99999999999999999999'), (x'3432');");
+    }
+
+    @Override
+    public void onUpgrade(SupportSQLiteDatabase db, int oldVersion,
+                          int newVersion) {
+
+    }
+  }
+}
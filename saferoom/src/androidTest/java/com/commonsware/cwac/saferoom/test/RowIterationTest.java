@@ -0,0 +1,155 @@
+package com.commonsware.cwac.saferoom.test;
+
+import android.content.Context;
+import android.database.CharArrayBuffer;
+import android.os.Debug;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.text.SpannableStringBuilder;
+import android.util.Log;
+import com.commonsware.cwac.saferoom.Database;
+import com.commonsware.cwac.saferoom.Rows;
+import com.commonsware.cwac.saferoom.SafeHelperFactory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import java.io.File;
+import androidx.sqlite.db.SimpleSQLiteQuery;
+import androidx.sqlite.db.SupportSQLiteDatabase;
+import androidx.sqlite.db.SupportSQLiteOpenHelper;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(AndroidJUnit4.class)
+public class RowIterationTest {
+  private static final String TAG="RowIterationTest";
+  private static final String DB_NAME="db";
+  private static final String PASSPHRASE="cufflink powerboat mundane vagrancy ragweed waving";
+  private static final String SQL="SELECT bar, price, goo FROM foo ORDER BY bar";
+  private static final String NUMERIC_SQL="SELECT bar, price FROM foo";
+  private static final int ROWS=100000;
+  private static final int FEW_ROWS=1000;
+
+  private SupportSQLiteOpenHelper helper;
+  private Database db;
+
+  @Before
+  public void setUp() {
+    SafeHelperFactory factory=
+      SafeHelperFactory.fromUser(new SpannableStringBuilder(PASSPHRASE));
+
+    helper=factory.create(InstrumentationRegistry.getTargetContext(), DB_NAME,
+      new Callback(1));
+    db=(Database)helper.getWritableDatabase();
+  }
+
+  @After
+  public void tearDown() {
+    helper.close();
+
+    Context ctxt=InstrumentationRegistry.getTargetContext();
+    File db=ctxt.getDatabasePath(DB_NAME);
+
+    for (File f : db.getParentFile().listFiles()) {
+      f.delete();
+    }
+  }
+
+  @Test
+  public void contents() {
+    CharArrayBuffer buffer=new CharArrayBuffer(32);
+    int expected=0;
+
+    for (Rows.Row row : db.iterate(new SimpleSQLiteQuery(SQL))) {
+      assertEquals(expected, row.getLong("bar"));
+      assertEquals(expected/2.0d, row.getDouble("PRICE"), 0.0001d);
+      row.copyText("goo", buffer);
+      assertEquals("row "+expected,
+        new String(buffer.data, 0, buffer.sizeCopied));
+      expected++;
+    }
+
+    assertEquals(ROWS, expected);
+  }
+
+  @Test(expected=IllegalArgumentException.class)
+  public void unknownColumn() {
+    Rows rows=db.iterate(new SimpleSQLiteQuery(SQL));
+
+    try {
+      rows.next().getLong("nope");
+    }
+    finally {
+      rows.close();
+    }
+  }
+
+  @Test
+  public void allocationBenchmark() {
+    String fewSql=NUMERIC_SQL+" LIMIT "+FEW_ROWS;
+
+    // warm up the column index cache and the cursor classes
+    scan(NUMERIC_SQL);
+    scan(fewSql);
+
+    int few=countAllocations(fewSql);
+    int all=countAllocations(NUMERIC_SQL);
+
+    Log.i(TAG, String.format("%d rows: %d allocations, %d rows: %d allocations",
+      FEW_ROWS, few, ROWS, all));
+
+    // the query and its cursor window cost the same either way, so any
+    // difference is per-row garbage; allow a little for extra window fills
+    assertTrue(all-few<(ROWS-FEW_ROWS)/1000);
+    assertTrue(all<ROWS/100);
+  }
+
+  @SuppressWarnings("deprecation")
+  private int countAllocations(String sql) {
+    Debug.startAllocCounting();
+
+    try {
+      int before=Debug.getThreadAllocCount();
+      long sum=scan(sql);
+      int allocations=Debug.getThreadAllocCount()-before;
+
+      assertTrue(sum>0);
+
+      return(allocations);
+    }
+    finally {
+      Debug.stopAllocCounting();
+    }
+  }
+
+  private long scan(String sql) {
+    long sum=0;
+
+    for (Rows.Row row : db.iterate(new SimpleSQLiteQuery(sql))) {
+      sum+=row.getLong("bar");
+      sum+=(long)row.getDouble("price");
+    }
+
+    return(sum);
+  }
+
+  private static final class Callback extends SupportSQLiteOpenHelper.Callback {
+    public Callback(int version) {
+      super(version);
+    }
+
+    @Override
+    public void onCreate(SupportSQLiteDatabase db) {
+      db.execSQL("CREATE TABLE foo (bar INTEGER PRIMARY KEY, price REAL, goo TEXT);");
+      db.execSQL("WITH RECURSIVE n(x) AS (SELECT 0 UNION ALL SELECT x+1 FROM n LIMIT "+
+        ROWS+") INSERT INTO foo SELECT x, x/2.0, 'row '||x FROM n;");
+    }
+
+    @Override
+    public void onUpgrade(SupportSQLiteDatabase db, int oldVersion,
+                          int newVersion) {
+
+    }
+  }
+}
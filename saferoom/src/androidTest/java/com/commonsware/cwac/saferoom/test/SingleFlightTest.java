@@ -0,0 +1,285 @@
+package com.commonsware.cwac.saferoom.test;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.text.SpannableStringBuilder;
+import android.util.Log;
+import com.commonsware.cwac.saferoom.CursorWindowStats;
+import com.commonsware.cwac.saferoom.Database;
+import com.commonsware.cwac.saferoom.SafeHelperFactory;
+import com.commonsware.cwac.saferoom.SingleFlight;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import androidx.sqlite.db.SimpleSQLiteQuery;
+import androidx.sqlite.db.SupportSQLiteDatabase;
+import androidx.sqlite.db.SupportSQLiteOpenHelper;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(AndroidJUnit4.class)
+public class SingleFlightTest {
+  private static final String TAG="SingleFlightTest";
+  private static final String DB_NAME="db";
+  private static final String PASSPHRASE="cufflink powerboat mundane vagrancy ragweed waving";
+  private static final String SQL=
+    "SELECT goo, COUNT(*) FROM foo WHERE bar % ? = 0 GROUP BY goo ORDER BY goo LIMIT 100";
+  // the subquery is slow, so the flight is still running when the write lands
+  private static final String SLOW_SQL=
+    "SELECT COUNT(*), (SELECT COUNT(*) FROM foo a JOIN foo b ON a.goo<b.goo "+
+      "WHERE a.bar<?) FROM foo";
+  // about 10MB of results, more than a window holds
+  private static final String BIG_SQL=
+    "SELECT bar, zeroblob(1000) FROM foo WHERE bar<?";
+  private static final int ROWS=100000;
+  private static final int THREADS=8;
+  private static final int ROUNDS=10;
+
+  private SupportSQLiteOpenHelper helper;
+  private Database db;
+
+  @Before
+  public void setUp() {
+    SafeHelperFactory.Options options=SafeHelperFactory.Options.builder()
+      .setSingleFlightQueries(true)
+      .build();
+    SafeHelperFactory factory=
+      SafeHelperFactory.fromUser(new SpannableStringBuilder(PASSPHRASE), options);
+
+    helper=factory.create(InstrumentationRegistry.getTargetContext(), DB_NAME,
+      new Callback(1));
+    db=(Database)helper.getWritableDatabase();
+  }
+
+  @After
+  public void tearDown() {
+    helper.close();
+
+    Context ctxt=InstrumentationRegistry.getTargetContext();
+    File db=ctxt.getDatabasePath(DB_NAME);
+
+    for (File f : db.getParentFile().listFiles()) {
+      f.delete();
+    }
+  }
+
+  @Test
+  public void independentCursors() {
+    Cursor first=db.query(new SimpleSQLiteQuery(SQL, new Object[] {3}));
+    Cursor second=db.query(new SimpleSQLiteQuery(SQL, new Object[] {3}));
+
+    try {
+      assertEquals(first.getCount(), second.getCount());
+      assertTrue(first.moveToLast());
+      assertTrue(second.moveToFirst());
+      assertEquals(first.getCount()-1, first.getPosition());
+      assertEquals(0, second.getPosition());
+    }
+    finally {
+      first.close();
+      second.close();
+    }
+  }
+
+  @Test
+  public void loneQueryIsNotCopied() {
+    CursorWindowStats stats=db.getCursorWindowStats();
+    long fills=stats.getFillCount();
+    Cursor c=db.query(new SimpleSQLiteQuery(BIG_SQL, new Object[] {10000}));
+
+    try {
+      // nobody joined, so this is the query's own cursor, which has filled
+      // its first window, rather than a copy, which would have needed to
+      // fill a window for every 8MB or so
+      assertEquals(fills+1, stats.getFillCount());
+      assertEquals(10000, c.getCount());
+      assertEquals(0, db.getSingleFlight().getSharedCount());
+    }
+    finally {
+      c.close();
+    }
+  }
+
+  @Test
+  public void noSharingInTransaction() {
+    SingleFlight flight=db.getSingleFlight();
+    long before=flight.getExecutionCount();
+
+    db.beginTransaction();
+
+    try {
+      db.query(new SimpleSQLiteQuery(SQL, new Object[] {5})).close();
+    }
+    finally {
+      db.endTransaction();
+    }
+
+    assertEquals(before, flight.getExecutionCount());
+  }
+
+  @Test
+  public void concurrentIdenticalQueries() throws Exception {
+    final CyclicBarrier barrier=new CyclicBarrier(THREADS);
+    ExecutorService executor=Executors.newFixedThreadPool(THREADS);
+    List<Future<Integer>> results=new ArrayList<>();
+
+    for (int i=0;i<THREADS;i++) {
+      results.add(executor.submit(new Callable<Integer>() {
+        @Override
+        public Integer call() throws Exception {
+          int total=0;
+
+          for (int round=0;round<ROUNDS;round++) {
+            barrier.await();
+
+            Cursor c=db.query(new SimpleSQLiteQuery(SQL, new Object[] {2}));
+
+            try {
+              while (c.moveToNext()) {
+                total+=c.getInt(1);
+              }
+            }
+            finally {
+              c.close();
+            }
+          }
+
+          return(total);
+        }
+      }));
+    }
+
+    Integer expected=null;
+
+    for (Future<Integer> result : results) {
+      if (expected==null) {
+        expected=result.get();
+      }
+      else {
+        assertEquals(expected, result.get());
+      }
+    }
+
+    executor.shutdown();
+
+    SingleFlight flight=db.getSingleFlight();
+
+    assertEquals(THREADS*ROUNDS,
+      flight.getExecutionCount()+flight.getSharedCount());
+    assertTrue(flight.getSharedCount()>0);
+    Log.i(TAG, String.format("%d executions, %d shared, hit rate %.2f",
+      flight.getExecutionCount(), flight.getSharedCount(),
+      flight.getHitRate()));
+  }
+
+  @Test
+  public void writeDuringFlight() throws Exception {
+    SafeHelperFactory.Options options=SafeHelperFactory.Options.builder()
+      .setSingleFlightQueries(true)
+      .setReadConnectionPoolSize(2)
+      .build();
+    SafeHelperFactory factory=
+      SafeHelperFactory.fromUser(new SpannableStringBuilder(PASSPHRASE), options);
+    SupportSQLiteOpenHelper wal=factory.create(
+      InstrumentationRegistry.getTargetContext(), "wal", new Callback(1));
+
+    // so the write does not wait for the slow read to finish
+    wal.setWriteAheadLoggingEnabled(true);
+
+    try {
+      final Database walDb=(Database)wal.getWritableDatabase();
+      final SimpleSQLiteQuery query=
+        new SimpleSQLiteQuery(SLOW_SQL, new Object[] {50});
+      SingleFlight flight=walDb.getSingleFlight();
+      ExecutorService executor=Executors.newSingleThreadExecutor();
+      Future<Integer> early=executor.submit(new Callable<Integer>() {
+        @Override
+        public Integer call() {
+          return(countRows(walDb, query));
+        }
+      });
+
+      while (flight.getExecutionCount()==0) {
+        Thread.sleep(1);
+      }
+
+      ContentValues values=new ContentValues();
+
+      values.put("bar", ROWS);
+      values.put("goo", "late");
+      walDb.insert("foo", SupportSQLiteDatabase.CONFLICT_ABORT, values);
+
+      assertFalse("the first query finished too soon", early.isDone());
+      assertEquals(ROWS+1, countRows(walDb, query));
+      early.get();
+      executor.shutdown();
+
+      assertEquals(2, flight.getExecutionCount());
+      assertEquals(0, flight.getSharedCount());
+    }
+    finally {
+      wal.close();
+    }
+  }
+
+  @Test
+  public void disabledByDefault() {
+    SafeHelperFactory factory=
+      SafeHelperFactory.fromUser(new SpannableStringBuilder(PASSPHRASE));
+    SupportSQLiteOpenHelper plain=factory.create(
+      InstrumentationRegistry.getTargetContext(), "plain", new Callback(1));
+
+    try {
+      assertNull(((Database)plain.getWritableDatabase()).getSingleFlight());
+    }
+    finally {
+      plain.close();
+    }
+  }
+
+  private static int countRows(Database db, SimpleSQLiteQuery query) {
+    Cursor c=db.query(query);
+
+    try {
+      assertTrue(c.moveToFirst());
+
+      return(c.getInt(0));
+    }
+    finally {
+      c.close();
+    }
+  }
+
+  private static final class Callback extends SupportSQLiteOpenHelper.Callback {
+    public Callback(int version) {
+      super(version);
+    }
+
+    @Override
+    public void onCreate(SupportSQLiteDatabase db) {
+      db.execSQL("CREATE TABLE foo (bar INTEGER PRIMARY KEY, goo TEXT);");
+      db.execSQL("WITH RECURSIVE n(x) AS (SELECT 0 UNION ALL SELECT x+1 FROM n LIMIT "+
+        ROWS+") INSERT INTO foo SELECT x, 'group '||(x%500) FROM n;");
+    }
+
+    @Override
+    public void onUpgrade(SupportSQLiteDatabase db, int oldVersion,
+                          int newVersion) {
+
+    }
+  }
+}
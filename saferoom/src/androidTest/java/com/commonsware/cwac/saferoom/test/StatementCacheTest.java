@@ -0,0 +1,165 @@
+package com.commonsware.cwac.saferoom.test;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.text.SpannableStringBuilder;
+import com.commonsware.cwac.saferoom.Database;
+import com.commonsware.cwac.saferoom.SafeHelperFactory;
+import com.commonsware.cwac.saferoom.StatementCache;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import java.io.File;
+import androidx.sqlite.db.SupportSQLiteDatabase;
+import androidx.sqlite.db.SupportSQLiteOpenHelper;
+import androidx.sqlite.db.SupportSQLiteStatement;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+@RunWith(AndroidJUnit4.class)
+public class StatementCacheTest {
+  private static final String DB_NAME="db";
+  private static final String PASSPHRASE="cufflink powerboat mundane vagrancy ragweed waving";
+  private static final String COUNT_SQL="SELECT COUNT(*) FROM foo WHERE bar=?";
+
+  private SupportSQLiteOpenHelper helper;
+  private Database db;
+
+  @Before
+  public void setUp() {
+    SafeHelperFactory.Options options=SafeHelperFactory.Options.builder()
+      .setStatementCacheSize(2)
+      .build();
+    SafeHelperFactory factory=
+      SafeHelperFactory.fromUser(new SpannableStringBuilder(PASSPHRASE), options);
+
+    helper=factory.create(InstrumentationRegistry.getTargetContext(), DB_NAME,
+      new Callback(1));
+    db=(Database)helper.getWritableDatabase();
+  }
+
+  @After
+  public void tearDown() {
+    helper.close();
+
+    Context ctxt=InstrumentationRegistry.getTargetContext();
+    File db=ctxt.getDatabasePath(DB_NAME);
+
+    for (File f : db.getParentFile().listFiles()) {
+      f.delete();
+    }
+  }
+
+  @Test
+  public void reuse() throws Exception {
+    StatementCache cache=db.getStatementCache();
+
+    assertNotNull(cache);
+
+    SupportSQLiteStatement first=db.compileStatement(COUNT_SQL);
+
+    first.bindLong(1, 1);
+    assertEquals(1, first.simpleQueryForLong());
+    first.close();
+
+    SupportSQLiteStatement second=db.compileStatement(COUNT_SQL);
+
+    assertSame(first, second);
+    second.bindLong(1, 2);
+    assertEquals(0, second.simpleQueryForLong());
+
+    // the cached one is in use, so we should get a fresh statement
+    SupportSQLiteStatement third=db.compileStatement(COUNT_SQL);
+
+    assertNotSame(second, third);
+    second.close();
+    third.close();
+
+    assertEquals(1, cache.getHitCount());
+    assertEquals(2, cache.getMissCount());
+    assertEquals(1, cache.size());
+  }
+
+  @Test
+  public void doubleClose() throws Exception {
+    StatementCache cache=db.getStatementCache();
+    SupportSQLiteStatement first=db.compileStatement(COUNT_SQL);
+
+    first.close();
+    first.close();
+
+    assertEquals(1, cache.size());
+
+    // the idle statement must still be usable after the second close()
+    SupportSQLiteStatement second=db.compileStatement(COUNT_SQL);
+
+    assertSame(first, second);
+    second.bindLong(1, 1);
+    assertEquals(1, second.simpleQueryForLong());
+    second.close();
+
+    // and a stale close() must not return it while it is checked out again
+    SupportSQLiteStatement third=db.compileStatement(COUNT_SQL);
+
+    assertSame(second, third);
+    third.close();
+    third.close();
+    assertEquals(1, cache.size());
+    assertEquals(2, cache.getHitCount());
+  }
+
+  @Test
+  public void eviction() throws Exception {
+    StatementCache cache=db.getStatementCache();
+
+    db.compileStatement("SELECT 1").close();
+    db.compileStatement("SELECT 2").close();
+    db.compileStatement("SELECT 3").close();
+
+    assertEquals(2, cache.size());
+    assertEquals(1, cache.getEvictionCount());
+  }
+
+  @Test
+  public void updateAndDelete() {
+    StatementCache cache=db.getStatementCache();
+    ContentValues values=new ContentValues();
+
+    values.put("goo", "three");
+
+    for (int i=0;i<10;i++) {
+      assertEquals(1, db.update("foo", SupportSQLiteDatabase.CONFLICT_NONE,
+        values, "bar=?", new Object[] {1}));
+    }
+
+    assertEquals(0, db.delete("foo", "bar=?", new Object[] {2}));
+    assertEquals(1, db.delete("foo", "bar=?", new Object[] {1}));
+
+    assertEquals(10, cache.getHitCount());
+    assertEquals(2, cache.getMissCount());
+  }
+
+  private static final class Callback extends SupportSQLiteOpenHelper.Callback {
+    public Callback(int version) {
+      super(version);
+    }
+
+    @Override
+    public void onCreate(SupportSQLiteDatabase db) {
+      db.execSQL("CREATE TABLE foo (bar, goo);");
+      db.execSQL("INSERT INTO foo (bar, goo) VALUES (?, ?)",
+        new Object[] {1, "two"});
+    }
+
+    @Override
+    public void onUpgrade(SupportSQLiteDatabase db, int oldVersion,
+                          int newVersion) {
+
+    }
+  }
+}
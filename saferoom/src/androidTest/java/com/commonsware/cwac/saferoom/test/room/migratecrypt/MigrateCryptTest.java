@@ -4,9 +4,11 @@ import android.content.Context;
 import android.support.test.InstrumentationRegistry;
 import android.support.test.runner.AndroidJUnit4;
 import android.text.SpannableStringBuilder;
+import android.util.Log;
 
 import androidx.room.Room;
 
+import com.commonsware.cwac.saferoom.OpenTrace;
 import com.commonsware.cwac.saferoom.SQLCipherUtils;
 import com.commonsware.cwac.saferoom.SafeHelperFactory;
 import com.commonsware.cwac.saferoom.test.room.migratecrypt.v1.TestEntity;
@@ -21,11 +23,14 @@ import org.junit.runner.RunWith;
 import java.io.IOException;
 import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 @RunWith(AndroidJUnit4.class)
 public class MigrateCryptTest {
+  private static final String TAG = "MigrateCryptTest";
   private static final String DB_NAME = "test.db";
   private static final String PASSPHRASE="Call me Ishmael. Some years ago—never mind how long precisely—having little or no money in my purse, and nothing particular to interest me on shore, I thought I would sail about a little and see the watery part of the world. It is a way I have of driving off the spleen and regulating the circulation. Whenever I find myself growing grim about the mouth; whenever it is a damp, drizzly November in my soul; whenever I find myself involuntarily pausing before coffin warehouses, and bringing up the rear of every funeral I meet; and especially whenever my hypos get such an upper hand of me, that it requires a strong moral principle to prevent me from deliberately stepping into the street, and methodically knocking people’s hats off—then, I account it high time to get to sea as soon as I can. This is my substitute for pistol and ball. With a philosophical flourish Cato throws himself upon his sword; I quietly take to the ship. There is nothing surprising in this. If they but knew it, almost all men in their degree, some time or other, cherish very nearly the same feelings towards the ocean with me.";
 
@@ -43,6 +48,68 @@ public class MigrateCryptTest {
 
   @Test
   public void encryptAndMigrate() throws IOException {
+    String keyOne = createEncryptedV1();
+    SafeHelperFactory factory=
+        SafeHelperFactory.fromUser(new SpannableStringBuilder(PASSPHRASE));
+    TestV2Database v2 = Room.databaseBuilder(ctxt, TestV2Database.class, DB_NAME)
+        .addMigrations(TestV2Database.MIGRATION_1_2)
+        .openHelperFactory(factory)
+        .build();
+
+    List<com.commonsware.cwac.saferoom.test.room.migratecrypt.v2.TestEntity> entitiesTwo =
+        v2.testStore().loadAll();
+
+    assertEquals(1, entitiesTwo.size());
+    assertEquals(keyOne, entitiesTwo.get(0).id);
+  }
+
+  @Test
+  public void migrationDerivesKeyOnce() throws IOException {
+    String keyOne = createEncryptedV1();
+    List<OpenTrace> traces = new CopyOnWriteArrayList<>();
+    TestV2Database v2 = Room.databaseBuilder(ctxt, TestV2Database.class, DB_NAME)
+        .addMigrations(TestV2Database.MIGRATION_1_2)
+        .openHelperFactory(tracedFactory(traces))
+        .build();
+    List<com.commonsware.cwac.saferoom.test.room.migratecrypt.v2.TestEntity> entitiesTwo =
+        v2.testStore().loadAll();
+
+    assertEquals(1, entitiesTwo.size());
+    assertEquals(keyOne, entitiesTwo.get(0).id);
+    v2.close();
+
+    // the migration reuses the keyed connection: one native open, one key
+    // derivation, and Room still gets its onOpen() after the upgrade
+    assertEquals(1, traces.size());
+
+    OpenTrace migrated = traces.get(0);
+
+    assertEquals(1, migrated.getCount(OpenTrace.Phase.UPGRADE));
+    assertEquals(1, migrated.getCount(OpenTrace.Phase.NATIVE_OPEN));
+    assertEquals(1, migrated.getCount(OpenTrace.Phase.KEY));
+    assertEquals(1, migrated.getCount(OpenTrace.Phase.KEY_DERIVATION));
+    assertEquals(1, migrated.getCount(OpenTrace.Phase.OPEN));
+
+    traces.clear();
+    v2 = Room.databaseBuilder(ctxt, TestV2Database.class, DB_NAME)
+        .openHelperFactory(tracedFactory(traces))
+        .build();
+    assertEquals(1, v2.testStore().loadAll().size());
+    v2.close();
+    assertEquals(1, traces.size());
+
+    OpenTrace plain = traces.get(0);
+
+    assertEquals(0, plain.getCount(OpenTrace.Phase.UPGRADE));
+    Log.i(TAG, String.format("open with v1->v2 migration=%.1fms, without=%.1fms",
+        migrated.getTotalNanos() / 1e6d, plain.getTotalNanos() / 1e6d));
+
+    // key derivation dominates both opens, so a second one during the
+    // migration would double its cost
+    assertTrue(migrated.getTotalNanos() < 2 * plain.getTotalNanos());
+  }
+
+  private String createEncryptedV1() throws IOException {
     assertEquals(SQLCipherUtils.State.DOES_NOT_EXIST, SQLCipherUtils.getDatabaseState(ctxt, DB_NAME));
 
     TestV1Database v1 = Room.databaseBuilder(ctxt, TestV1Database.class, DB_NAME).build();
@@ -62,17 +129,19 @@ public class MigrateCryptTest {
     SQLCipherUtils.encrypt(ctxt, ctxt.getDatabasePath(DB_NAME), PASSPHRASE.toCharArray());
     assertEquals(SQLCipherUtils.State.ENCRYPTED, SQLCipherUtils.getDatabaseState(ctxt, DB_NAME));
 
-    SafeHelperFactory factory=
-        SafeHelperFactory.fromUser(new SpannableStringBuilder(PASSPHRASE));
-    TestV2Database v2 = Room.databaseBuilder(ctxt, TestV2Database.class, DB_NAME)
-        .addMigrations(TestV2Database.MIGRATION_1_2)
-        .openHelperFactory(factory)
-        .build();
+    return keyOne;
+  }
 
-    List<com.commonsware.cwac.saferoom.test.room.migratecrypt.v2.TestEntity> entitiesTwo =
-        v2.testStore().loadAll();
+  private SafeHelperFactory tracedFactory(final List<OpenTrace> traces) {
+    SafeHelperFactory.Options options = SafeHelperFactory.Options.builder()
+        .setOpenTraceListener(new OpenTrace.Listener() {
+          @Override
+          public void onOpenTraced(OpenTrace trace) {
+            traces.add(trace);
+          }
+        })
+        .build();
 
-    assertEquals(1, entitiesTwo.size());
-    assertEquals(keyOne, entitiesTwo.get(0).id);
+    return SafeHelperFactory.fromUser(new SpannableStringBuilder(PASSPHRASE), options);
   }
 }
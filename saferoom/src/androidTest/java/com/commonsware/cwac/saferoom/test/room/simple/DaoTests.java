@@ -16,6 +16,7 @@ package com.commonsware.cwac.saferoom.test.room.simple;
 
 import android.support.test.InstrumentationRegistry;
 import android.support.test.runner.AndroidJUnit4;
+import com.commonsware.cwac.saferoom.ArrayBinding;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
@@ -61,6 +62,22 @@ public class DaoTests {
     assertEquals(firstThingy.versionCode, retrievedThingy.versionCode);
   }
 
+  @Test
+  public void boundQueries() {
+    final VersionedThingy first=new VersionedThingy("first", 1);
+    final VersionedThingy second=new VersionedThingy("first", 2);
+
+    store.insert(first, second);
+
+    // a String and an int bound into one @Query, through Database.query()
+    VersionedThingy found=store.findById("first", 2);
+
+    assertNotNull(found);
+    assertEquals(2, found.versionCode);
+    assertNull(store.findById("first", 3));
+    assertNull(store.findById("second", 1));
+  }
+
   @Test
   public void customer() {
     final HashSet<String> tags=new HashSet<>();
@@ -136,6 +153,30 @@ public class DaoTests {
     assertEquals(0, store.getCustomerCount());
   }
 
+  @Test
+  public void customerArrays() {
+    final LocationColumns loc=new LocationColumns(40.7047282, -74.0148544);
+    final Customer first=new Customer("10001", "Fearless Girl", loc,
+      new HashSet<String>());
+    final Customer second=new Customer("10002", "Charging Bull", loc,
+      new HashSet<String>());
+    final Customer third=new Customer("10003", "Sphere", loc,
+      new HashSet<String>());
+
+    store.insert(first, second, third);
+
+    List<Customer> result=store.findByPostalCodeArray(10,
+      ArrayBinding.toJson(first.postalCode, third.postalCode, "99999"));
+
+    assertEquals(2, result.size());
+
+    final int deleted=store.nukeCustomerArrayFromOrbit(
+      ArrayBinding.toJson(first.id, second.id));
+
+    assertEquals(2, deleted);
+    assertEquals(1, store.getCustomerCount());
+  }
+
   @Test
   public void categories() {
     final Category root=new Category("Root!");
@@ -35,6 +35,9 @@ interface StuffStore {
   @Query("SELECT * FROM Customer WHERE postalCode IN (:postalCodes) LIMIT :max")
   List<Customer> findByPostalCodes(int max, String... postalCodes);
 
+  @Query("SELECT * FROM Customer WHERE postalCode IN (SELECT value FROM json_each(:postalCodesJson)) LIMIT :max")
+  List<Customer> findByPostalCodeArray(int max, String postalCodesJson);
+
   @Query("SELECT id, displayName FROM Customer WHERE postalCode IN (:postalCodes) LIMIT :max")
   List<CustomerDisplayTuple> loadDisplayTuplesByPostalCodes(int max,
                                                             String... postalCodes);
@@ -48,6 +51,9 @@ interface StuffStore {
   @Query("DELETE FROM Customer WHERE id IN (:ids)")
   int nukeCertainCustomersFromOrbit(String... ids);
 
+  @Query("DELETE FROM Customer WHERE id IN (SELECT value FROM json_each(:idsJson))")
+  int nukeCustomerArrayFromOrbit(String idsJson);
+
   @Query("SELECT * FROM Customer WHERE ABS(latitude-:lat)<.000001 AND ABS(longitude-:lon)<.000001")
   List<Customer> findCustomersAt(double lat, double lon);
 
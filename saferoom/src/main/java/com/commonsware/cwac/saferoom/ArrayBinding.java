@@ -0,0 +1,160 @@
+/***
+ Copyright (c) 2020 CommonsWare, LLC
+ Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ use this file except in compliance with the License. You may obtain	a copy
+ of the License at http://www.apache.org/licenses/LICENSE-2.0. Unless required
+ by applicable law or agreed to in writing, software distributed under the
+ License is distributed on an "AS IS" BASIS,	WITHOUT	WARRANTIES OR CONDITIONS
+ OF ANY KIND, either express or implied. See the License for the specific
+ language governing permissions and limitations under the License.
+ */
+
+package com.commonsware.cwac.saferoom;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Locale;
+
+/**
+ * Binds a whole array of values to a single SQL parameter, by encoding it
+ * as a JSON array and unpacking it in SQL with json_each(). Unlike one ?
+ * per element, the SQL text is the same no matter how many values there
+ * are, so it compiles (and caches) once, and it is not subject to SQLite's
+ * limit on the number of bound variables.
+ *
+ * In SQL, use IN_ARRAY in place of the parenthesized list:
+ *
+ * <pre>
+ * "SELECT * FROM Customer WHERE postalCode IN "+ArrayBinding.IN_ARRAY
+ * </pre>
+ *
+ * and bind the result of toJson() to that parameter. From a Room DAO, write
+ * the same subquery into the @Query, with a String parameter for the JSON.
+ */
+public final class ArrayBinding {
+  /**
+   * Subquery that yields the elements of a JSON array bound to its ?
+   */
+  public static final String IN_ARRAY="(SELECT value FROM json_each(?))";
+
+  private ArrayBinding() {
+    // static methods only
+  }
+
+  /**
+   * @param values the values to bind: Strings, Numbers, Booleans, or null
+   * @return a JSON array of those values, to bind in place of IN_ARRAY's ?
+   */
+  public static String toJson(Object... values) {
+    return(toJson(Arrays.asList(values)));
+  }
+
+  /**
+   * @param values the values to bind: Strings, Numbers, Booleans, or null
+   * @return a JSON array of those values, to bind in place of IN_ARRAY's ?
+   */
+  public static String toJson(Collection<?> values) {
+    StringBuilder result=new StringBuilder(values.size()*8+2);
+
+    result.append('[');
+
+    for (Object value : values) {
+      if (result.length()>1) {
+        result.append(',');
+      }
+
+      append(result, value);
+    }
+
+    return(result.append(']').toString());
+  }
+
+  /**
+   * @param values the values to bind
+   * @return a JSON array of those values, to bind in place of IN_ARRAY's ?
+   */
+  public static String toJson(long[] values) {
+    StringBuilder result=new StringBuilder(values.length*8+2);
+
+    result.append('[');
+
+    for (int i=0;i<values.length;i++) {
+      if (i>0) {
+        result.append(',');
+      }
+
+      result.append(values[i]);
+    }
+
+    return(result.append(']').toString());
+  }
+
+  private static void append(StringBuilder result, Object value) {
+    if (value==null) {
+      result.append("null");
+    }
+    else if (value instanceof String) {
+      appendString(result, (String)value);
+    }
+    else if (value instanceof Double || value instanceof Float) {
+      double d=((Number)value).doubleValue();
+
+      if (Double.isNaN(d) || Double.isInfinite(d)) {
+        throw new IllegalArgumentException("Cannot bind "+value+" in an array");
+      }
+
+      result.append(d);
+    }
+    else if (value instanceof Number) {
+      result.append(((Number)value).longValue());
+    }
+    else if (value instanceof Boolean) {
+      // SQLite has no boolean type; Room and SimpleSQLiteQuery use 1 and 0
+      result.append((Boolean)value ? 1 : 0);
+    }
+    else {
+      throw new IllegalArgumentException("Cannot bind "+
+        value.getClass().getName()+" in an array");
+    }
+  }
+
+  private static void appendString(StringBuilder result, String value) {
+    result.append('"');
+
+    for (int i=0;i<value.length();i++) {
+      char c=value.charAt(i);
+
+      switch (c) {
+        case '"':
+          result.append("\\\"");
+          break;
+
+        case '\\':
+          result.append("\\\\");
+          break;
+
+        case '\n':
+          result.append("\\n");
+          break;
+
+        case '\r':
+          result.append("\\r");
+          break;
+
+        case '\t':
+          result.append("\\t");
+          break;
+
+        default:
+          if (c<0x20) {
+            result.append(String.format(Locale.US, "\\u%04x", (int)c));
+          }
+          else {
+            result.append(c);
+          }
+      }
+    }
+
+    result.append('"');
+  }
+}
@@ -0,0 +1,326 @@
+/***
+ Copyright (c) 2020 CommonsWare, LLC
+ Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ use this file except in compliance with the License. You may obtain	a copy
+ of the License at http://www.apache.org/licenses/LICENSE-2.0. Unless required
+ by applicable law or agreed to in writing, software distributed under the
+ License is distributed on an "AS IS" BASIS,	WITHOUT	WARRANTIES OR CONDITIONS
+ OF ANY KIND, either express or implied. See the License for the specific
+ language governing permissions and limitations under the License.
+ */
+
+package com.commonsware.cwac.saferoom;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.os.Build;
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import androidx.annotation.RequiresApi;
+import androidx.sqlite.db.SupportSQLiteQuery;
+
+/**
+ * Runs Database work on an Executor of your choosing, handing back
+ * CompletableFutures. Get one by calling async() on Database.
+ *
+ * At most a fixed number of operations are handed to the Executor at once;
+ * beyond that, operations wait in a bounded queue here until an earlier one
+ * finishes. Once that queue is full too, new operations are turned away:
+ * their futures fail right away with a RejectedExecutionException, so the
+ * caller can shed or retry the work. Submitting never blocks the calling
+ * thread. The limits bound how much work contends for the connection, and
+ * how much piles up behind it. They do not bound open cursors, as an
+ * operation is finished once its Cursor is handed over, not once the
+ * caller closes it.
+ *
+ * If a future is cancelled before its operation runs, the operation is
+ * skipped. If it is cancelled while its operation runs, the result is
+ * closed, if it is Closeable (such as a Cursor), since nobody will get it.
+ *
+ * Any Executor works. Android does not offer virtual threads, so a small
+ * fixed pool is usually the best fit, as SQLCipher serializes work on the
+ * connection anyway.
+ */
+@RequiresApi(api = Build.VERSION_CODES.N)
+public final class AsyncDatabase {
+  private final Database db;
+  private final Executor executor;
+  private final int maxInFlight;
+  private final int maxQueued;
+  private final ArrayDeque<Job<?>> waiting=new ArrayDeque<>(); // guarded by itself
+  private int running; // guarded by waiting
+  // set while this thread is in the dispatch loop, so that a Job run inline
+  // by the Executor leaves its slot to that loop, rather than dispatching
+  // the next Job from inside itself and recursing once per queued Job
+  private final ThreadLocal<Dispatch> dispatching=new ThreadLocal<>();
+
+  AsyncDatabase(Database db, Executor executor, int maxInFlight,
+                int maxQueued) {
+    if (maxInFlight<1) {
+      throw new IllegalArgumentException("maxInFlight must be positive");
+    }
+
+    if (maxQueued<0) {
+      throw new IllegalArgumentException("maxQueued cannot be negative");
+    }
+
+    this.db=db;
+    this.executor=executor;
+    this.maxInFlight=maxInFlight;
+    this.maxQueued=maxQueued;
+  }
+
+  /**
+   * @return the most operations that may be handed to the Executor at once
+   */
+  public int getMaxInFlight() {
+    return(maxInFlight);
+  }
+
+  /**
+   * @return the most operations that may wait for a slot before new ones
+   * are rejected
+   */
+  public int getMaxQueued() {
+    return(maxQueued);
+  }
+
+  /**
+   * @return the number of operations submitted but not yet finished
+   */
+  public int getInFlight() {
+    synchronized(waiting) {
+      return(running+waiting.size());
+    }
+  }
+
+  /**
+   * @return the number of operations waiting for an earlier one to finish
+   * before they can be handed to the Executor
+   */
+  public int getQueued() {
+    synchronized(waiting) {
+      return(waiting.size());
+    }
+  }
+
+  /**
+   * Runs a query. The Cursor's first window is filled before the future
+   * completes, so reading the first rows will not block the caller.
+   *
+   * @param query the query to run
+   * @return a future for the Cursor, which the caller needs to close
+   */
+  public CompletableFuture<Cursor> queryAsync(final SupportSQLiteQuery query) {
+    return(submit(new DatabaseOperation<Cursor>() {
+      @Override
+      public Cursor execute(Database db) {
+        Cursor result=db.query(query);
+
+        try {
+          result.getCount();
+        }
+        catch (RuntimeException e) {
+          result.close();
+          throw e;
+        }
+
+        return(result);
+      }
+    }));
+  }
+
+  /**
+   * Inserts a row.
+   *
+   * @param table the table to insert into
+   * @param conflictAlgorithm one of the CONFLICT_* constants from
+   *                          SupportSQLiteDatabase
+   * @param values the values for the row
+   * @return a future for the row ID of the new row
+   */
+  public CompletableFuture<Long> insertAsync(final String table,
+                                             final int conflictAlgorithm,
+                                             final ContentValues values) {
+    return(submit(new DatabaseOperation<Long>() {
+      @Override
+      public Long execute(Database db) {
+        return(db.insert(table, conflictAlgorithm, values));
+      }
+    }));
+  }
+
+  /**
+   * Executes a SQL statement that returns no data.
+   *
+   * @param sql the SQL to execute
+   * @param bindArgs values for the ? placeholders in the SQL, or null
+   * @return a future that completes when the statement has run
+   */
+  public CompletableFuture<Void> execAsync(final String sql,
+                                           final Object[] bindArgs) {
+    return(submit(new DatabaseOperation<Void>() {
+      @Override
+      public Void execute(Database db) {
+        if (bindArgs==null) {
+          db.execSQL(sql);
+        }
+        else {
+          db.execSQL(sql, bindArgs);
+        }
+
+        return(null);
+      }
+    }));
+  }
+
+  /**
+   * Runs an arbitrary operation against the database.
+   *
+   * @param op the work to do
+   * @param <T> the type of the operation's result
+   * @return a future for the operation's result, which fails with a
+   * RejectedExecutionException if too much work is already waiting
+   */
+  public <T> CompletableFuture<T> submit(DatabaseOperation<T> op) {
+    Job<T> job=new Job<>(op);
+    boolean dispatch=false;
+
+    synchronized(waiting) {
+      if (running<maxInFlight) {
+        running++;
+        dispatch=true;
+      }
+      else if (waiting.size()<maxQueued) {
+        waiting.add(job);
+      }
+      else {
+        job.future.completeExceptionally(new RejectedExecutionException(
+          "Too many database operations are waiting: "+waiting.size()));
+      }
+    }
+
+    if (dispatch) {
+      dispatch(job);
+    }
+
+    return(job.future);
+  }
+
+  /**
+   * Hands a Job to the Executor, then keeps handing over waiting Jobs for
+   * as long as Jobs finish while this thread is here, such as when the
+   * Executor runs them inline
+   */
+  private void dispatch(Job<?> job) {
+    Dispatch outer=dispatching.get();
+    Dispatch loop=new Dispatch();
+
+    dispatching.set(loop);
+
+    try {
+      while (job!=null) {
+        try {
+          executor.execute(job);
+        }
+        catch (RuntimeException e) {
+          // the executor rejected the work
+          job.future.completeExceptionally(e);
+          loop.freed++;
+        }
+
+        job=null;
+
+        while (job==null && loop.freed>0) {
+          loop.freed--;
+          job=next();
+        }
+      }
+    }
+    finally {
+      dispatching.set(outer);
+    }
+  }
+
+  /**
+   * Hands the slot of an operation that just finished to the next waiting
+   * one, if any
+   */
+  private void finished() {
+    Dispatch loop=dispatching.get();
+
+    if (loop!=null) {
+      loop.freed++;
+    }
+    else {
+      Job<?> next=next();
+
+      if (next!=null) {
+        dispatch(next);
+      }
+    }
+  }
+
+  /**
+   * @return the next waiting Job, which takes over a freed slot, or null
+   * if none are waiting, in which case the slot is released
+   */
+  private Job<?> next() {
+    synchronized(waiting) {
+      Job<?> result=waiting.poll();
+
+      if (result==null) {
+        running--;
+      }
+
+      return(result);
+    }
+  }
+
+  private static final class Dispatch {
+    int freed;
+  }
+
+  private final class Job<T> implements Runnable {
+    final CompletableFuture<T> future=new CompletableFuture<>();
+    private final DatabaseOperation<T> op;
+
+    Job(DatabaseOperation<T> op) {
+      this.op=op;
+    }
+
+    @Override
+    public void run() {
+      try {
+        if (!future.isDone()) {
+          T result=op.execute(db);
+
+          if (!future.complete(result)) {
+            discard(result);
+          }
+        }
+      }
+      catch (Throwable t) {
+        future.completeExceptionally(t);
+      }
+      finally {
+        finished();
+      }
+    }
+
+    private void discard(T result) {
+      if (result instanceof Closeable) {
+        try {
+          ((Closeable)result).close();
+        }
+        catch (IOException e) {
+          // nobody is left to tell
+        }
+      }
+    }
+  }
+}
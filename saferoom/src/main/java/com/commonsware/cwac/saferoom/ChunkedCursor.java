@@ -0,0 +1,475 @@
+/***
+ Copyright (c) 2020 CommonsWare, LLC
+ Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ use this file except in compliance with the License. You may obtain	a copy
+ of the License at http://www.apache.org/licenses/LICENSE-2.0. Unless required
+ by applicable law or agreed to in writing, software distributed under the
+ License is distributed on an "AS IS" BASIS,	WITHOUT	WARRANTIES OR CONDITIONS
+ OF ANY KIND, either express or implied. See the License for the specific
+ language governing permissions and limitations under the License.
+ */
+
+package com.commonsware.cwac.saferoom;
+
+import android.database.CharArrayBuffer;
+import android.database.Cursor;
+import android.database.CursorIndexOutOfBoundsException;
+import android.database.CursorWrapper;
+import android.database.MatrixCursor;
+import android.os.CancellationSignal;
+import android.os.OperationCanceledException;
+import androidx.sqlite.db.SupportSQLiteQuery;
+
+/**
+ * Cursor that reads its query in chunks, so that no native call steps
+ * through much more of the result than the caller has asked for.
+ *
+ * SQLCipher's SQLiteCursor steps through every row of the result on each
+ * window fill, to count them, and it has no way to interrupt a fill that
+ * is underway. So, even the first row of a large scan costs a full pass,
+ * and a CancellationSignal cannot cut that pass short. This cursor instead
+ * reads the query via "SELECT * FROM (query) LIMIT ? OFFSET ?". Chunks
+ * start small, so the first row comes back quickly, and double in size
+ * each time, so a full scan steps through each row about three times in
+ * all. The CancellationSignal, if any, is checked on every move and
+ * between chunks, so a canceled scan stops within the chunk being read.
+ *
+ * Each chunk is a separate query, so rows written between chunks can be
+ * skipped or repeated, and results without an ORDER BY should be in a
+ * stable order. A query that has to sort its whole result, because no
+ * index supplies its ORDER BY, repeats that sort for every chunk. Statements that cannot be wrapped in a SELECT, such as
+ * PRAGMAs, are read in one chunk. In forward-only mode, moving backwards
+ * throws IllegalStateException; otherwise, moving back before the current
+ * chunk starts over with a small chunk at the new position. getCount()
+ * runs a separate COUNT(*) query unless the cursor has already reached the
+ * end; with a CancellationSignal, that count also goes in growing chunks.
+ */
+class ChunkedCursor extends CursorWrapper {
+  static final int FIRST_CHUNK_ROWS=64;
+  private final Database db;
+  private final SupportSQLiteQuery query;
+  private final String chunkSql;
+  private final CancellationSignal signal;
+  private final boolean forwardOnly;
+  private volatile boolean canceled;
+  private Cursor chunk;
+  private int chunkStart;
+  private int chunkLimit;
+  private int pos=-1;
+  private int count=-1;
+
+  static ChunkedCursor open(Database db, SupportSQLiteQuery query,
+                            CancellationSignal signal, boolean forwardOnly) {
+    String chunkSql=chunkSql(query.getSql());
+
+    // creating the cursor compiles the query but does not step it, so this
+    // gets the column names, with any duplicates, without reading any rows;
+    // if the query cannot be chunked, it is the one and only chunk
+    Cursor first=db.execute(query, forwardOnly);
+
+    try {
+      return(new ChunkedCursor(db, query, signal, forwardOnly, chunkSql,
+        first));
+    }
+    catch (RuntimeException e) {
+      first.close();
+      throw e;
+    }
+  }
+
+  private ChunkedCursor(Database db, SupportSQLiteQuery query,
+                        CancellationSignal signal, boolean forwardOnly,
+                        String chunkSql, Cursor first) {
+    super(new MatrixCursor(first.getColumnNames(), 0));
+    this.db=db;
+    this.query=query;
+    this.signal=signal;
+    this.forwardOnly=forwardOnly;
+    this.chunkSql=chunkSql;
+
+    if (chunkSql==null) {
+      chunk=first;
+      chunkLimit=Integer.MAX_VALUE;
+    }
+    else {
+      first.close();
+    }
+
+    if (signal!=null) {
+      signal.setOnCancelListener(new CancellationSignal.OnCancelListener() {
+        @Override
+        public void onCancel() {
+          canceled=true;
+        }
+      });
+    }
+  }
+
+  /**
+   * @return the SQL for reading one chunk of the query, or null if the
+   * query cannot be wrapped in a SELECT
+   */
+  static String chunkSql(String sql) {
+    return(wrappable(sql) ?
+      "SELECT * FROM ("+trim(sql)+"\n) LIMIT ? OFFSET ?" : null);
+  }
+
+  /**
+   * @return the SQL for counting up to some number of rows of the query,
+   * or null if the query cannot be wrapped in a SELECT
+   */
+  static String countSql(String sql) {
+    return(wrappable(sql) ?
+      "SELECT COUNT(*) FROM (SELECT 1 FROM ("+trim(sql)+"\n) LIMIT ?)" : null);
+  }
+
+  private static boolean wrappable(String sql) {
+    String verb=SqlTables.verb(sql);
+
+    return("select".equals(verb) || "values".equals(verb));
+  }
+
+  private static String trim(String sql) {
+    int end=sql.length();
+
+    while (end>0 &&
+      (sql.charAt(end-1)==';' || Character.isWhitespace(sql.charAt(end-1)))) {
+      end--;
+    }
+
+    return(sql.substring(0, end));
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public int getCount() {
+    throwIfCanceled();
+
+    if (count<0) {
+      if (chunkSql==null) {
+        count=chunk.getCount();
+      }
+      else if (signal==null) {
+        count=(int)countUpTo(-1);
+      }
+      else {
+        long limit=FIRST_CHUNK_ROWS;
+        long rows;
+
+        while ((rows=countUpTo(limit))==limit) {
+          throwIfCanceled();
+          limit*=2;
+        }
+
+        count=(int)rows;
+      }
+    }
+
+    return(count);
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public int getPosition() {
+    return(pos);
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public boolean move(int offset) {
+    return(moveToPosition(pos+offset));
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public boolean moveToFirst() {
+    return(moveToPosition(0));
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public boolean moveToLast() {
+    return(moveToPosition(getCount()-1));
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public boolean moveToNext() {
+    return(moveToPosition(pos+1));
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public boolean moveToPrevious() {
+    return(moveToPosition(pos-1));
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public boolean moveToPosition(int position) {
+    throwIfCanceled();
+
+    if (position<pos && forwardOnly) {
+      throw new IllegalStateException("Cannot move a forward-only cursor from "+
+        pos+" back to "+position);
+    }
+
+    if (position<0) {
+      pos=-1;
+
+      return(false);
+    }
+
+    if (position==pos) {
+      return(!isAfterLast());
+    }
+
+    if (position<chunkStart) {
+      if (chunk!=null) {
+        chunk.close();
+        chunk=null;
+      }
+
+      chunkStart=position;
+      chunkLimit=0;
+    }
+
+    while (count<0 || position<count) {
+      if (chunk==null) {
+        nextChunk();
+      }
+
+      int rows=chunk.getCount();
+
+      if (position<chunkStart+rows) {
+        chunk.moveToPosition(position-chunkStart);
+        pos=position;
+
+        return(true);
+      }
+
+      if (rows<chunkLimit) {
+        count=chunkStart+rows;
+      }
+      else {
+        chunkStart+=rows;
+        chunkLimit=(chunkLimit>Integer.MAX_VALUE/2 ?
+          Integer.MAX_VALUE : chunkLimit*2);
+        chunk.close();
+        chunk=null;
+      }
+    }
+
+    pos=count;
+
+    return(false);
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public boolean isFirst() {
+    return(pos==0 && !isAfterLast());
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public boolean isLast() {
+    if (pos<0 || isAfterLast()) {
+      return(false);
+    }
+
+    // only go to the database if this is the last row of a full chunk
+    if (count<0 && pos+1-chunkStart<chunk.getCount()) {
+      return(false);
+    }
+
+    return(pos==getCount()-1);
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public boolean isBeforeFirst() {
+    return(pos==-1);
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public boolean isAfterLast() {
+    return(count>=0 && pos>=count);
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public byte[] getBlob(int columnIndex) {
+    return(current().getBlob(columnIndex));
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public String getString(int columnIndex) {
+    return(current().getString(columnIndex));
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public void copyStringToBuffer(int columnIndex, CharArrayBuffer buffer) {
+    current().copyStringToBuffer(columnIndex, buffer);
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public short getShort(int columnIndex) {
+    return(current().getShort(columnIndex));
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public int getInt(int columnIndex) {
+    return(current().getInt(columnIndex));
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public long getLong(int columnIndex) {
+    return(current().getLong(columnIndex));
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public float getFloat(int columnIndex) {
+    return(current().getFloat(columnIndex));
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public double getDouble(int columnIndex) {
+    return(current().getDouble(columnIndex));
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public int getType(int columnIndex) {
+    return(current().getType(columnIndex));
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public boolean isNull(int columnIndex) {
+    return(current().isNull(columnIndex));
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public boolean requery() {
+    return(false);
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public void close() {
+    if (signal!=null) {
+      signal.setOnCancelListener(null);
+    }
+
+    if (chunk!=null) {
+      chunk.close();
+      chunk=null;
+    }
+
+    super.close();
+  }
+
+  private void nextChunk() {
+    if (isClosed()) {
+      throw new IllegalStateException("Cursor is closed");
+    }
+
+    throwIfCanceled();
+
+    if (chunkLimit==0) {
+      chunkLimit=FIRST_CHUNK_ROWS;
+    }
+
+    chunk=db.wrapped(query, chunkSql, chunkLimit, chunkStart);
+  }
+
+  private long countUpTo(long limit) {
+    Cursor c=db.wrapped(query, countSql(query.getSql()), limit);
+
+    try {
+      c.moveToFirst();
+
+      return(c.getLong(0));
+    }
+    finally {
+      c.close();
+    }
+  }
+
+  private Cursor current() {
+    if (chunk==null || pos<0 || isAfterLast()) {
+      throw new CursorIndexOutOfBoundsException("No row at position "+pos);
+    }
+
+    return(chunk);
+  }
+
+  private void throwIfCanceled() {
+    if (canceled) {
+      if (!isClosed()) {
+        close();
+      }
+
+
+      throw new OperationCanceledException();
+    }
+  }
+}
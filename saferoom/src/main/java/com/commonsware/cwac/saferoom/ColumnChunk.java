@@ -0,0 +1,325 @@
+/***
+ Copyright (c) 2020 CommonsWare, LLC
+ Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ use this file except in compliance with the License. You may obtain	a copy
+ of the License at http://www.apache.org/licenses/LICENSE-2.0. Unless required
+ by applicable law or agreed to in writing, software distributed under the
+ License is distributed on an "AS IS" BASIS,	WITHOUT	WARRANTIES OR CONDITIONS
+ OF ANY KIND, either express or implied. See the License for the specific
+ language governing permissions and limitations under the License.
+ */
+
+package com.commonsware.cwac.saferoom;
+
+import android.database.CharArrayBuffer;
+import android.database.Cursor;
+
+/**
+ * A block of query results, stored by column in primitive arrays, as
+ * delivered by fetchColumns() on Database. One ColumnChunk is reused for
+ * every block of a fetch, so its contents are only valid during the call to
+ * your Receiver; copy out anything that you need to keep.
+ *
+ * LONG and DOUBLE columns are held in long[] and double[] arrays, indexed
+ * by row within the chunk. TEXT columns are held as characters packed into
+ * one char[] per column, and BLOB columns as bytes packed into one byte[]
+ * per column, with each row's offset and length alongside. Each column
+ * also has a boolean[] marking its NULL cells.
+ *
+ * LONG, DOUBLE, and TEXT columns are read without allocating anything per
+ * row, once the arrays have grown to fit. The Cursor API has no way to copy
+ * a BLOB into an existing array, so each non-NULL BLOB cell costs one
+ * short-lived byte[] on the way into the chunk's packed buffer.
+ */
+public final class ColumnChunk {
+  /**
+   * How a column should be read and stored.
+   */
+  public enum Type {
+    LONG, DOUBLE, TEXT, BLOB
+  }
+
+  /**
+   * Receives the chunks of a fetchColumns() call.
+   */
+  public interface Receiver {
+    /**
+     * @param chunk the next block of rows
+     * @return true to keep fetching, false to stop
+     */
+    boolean onChunk(ColumnChunk chunk);
+  }
+
+  private final Type[] types;
+  private final int capacity;
+  private final long[][] longs;
+  private final double[][] doubles;
+  private final boolean[][] nulls;
+  private final char[][] chars;
+  private final byte[][] bytes;
+  private final int[][] offsets;
+  private final int[][] lengths;
+  private final CharArrayBuffer scratch=new CharArrayBuffer(64);
+  private int startRow;
+  private int rowCount;
+
+  ColumnChunk(Type[] types, int capacity) {
+    this.types=types.clone();
+    this.capacity=capacity;
+    longs=new long[types.length][];
+    doubles=new double[types.length][];
+    nulls=new boolean[types.length][capacity];
+    chars=new char[types.length][];
+    bytes=new byte[types.length][];
+    offsets=new int[types.length][];
+    lengths=new int[types.length][];
+
+    for (int i=0;i<types.length;i++) {
+      switch (types[i]) {
+        case LONG:
+          longs[i]=new long[capacity];
+          break;
+
+        case DOUBLE:
+          doubles[i]=new double[capacity];
+          break;
+
+        case TEXT:
+          chars[i]=new char[capacity*16];
+          offsets[i]=new int[capacity];
+          lengths[i]=new int[capacity];
+          break;
+
+        case BLOB:
+          bytes[i]=new byte[capacity*16];
+          offsets[i]=new int[capacity];
+          lengths[i]=new int[capacity];
+          break;
+      }
+    }
+  }
+
+  /**
+   * @return the number of columns
+   */
+  public int getColumnCount() {
+    return(types.length);
+  }
+
+  /**
+   * @return the position, within the whole result, of this chunk's first row
+   */
+  public int getStartRow() {
+    return(startRow);
+  }
+
+  /**
+   * @return the number of rows in this chunk; the arrays may be longer
+   */
+  public int getRowCount() {
+    return(rowCount);
+  }
+
+  /**
+   * @param column index of a LONG column
+   * @return the values of that column; NULLs are stored as 0
+   */
+  public long[] getLongs(int column) {
+    return(checked(longs, column, Type.LONG));
+  }
+
+  /**
+   * @param column index of a DOUBLE column
+   * @return the values of that column; NULLs are stored as 0
+   */
+  public double[] getDoubles(int column) {
+    return(checked(doubles, column, Type.DOUBLE));
+  }
+
+  /**
+   * @param column index of a TEXT column
+   * @return the characters of that column, with each row's text at
+   * getTextOffsets()[row] for getTextLengths()[row] characters
+   */
+  public char[] getChars(int column) {
+    return(checked(chars, column, Type.TEXT));
+  }
+
+  /**
+   * @param column index of a TEXT column
+   * @return where each row's text starts in getChars()
+   */
+  public int[] getTextOffsets(int column) {
+    return(checked(offsets, column, Type.TEXT));
+  }
+
+  /**
+   * @param column index of a TEXT column
+   * @return the number of characters in each row's text
+   */
+  public int[] getTextLengths(int column) {
+    return(checked(lengths, column, Type.TEXT));
+  }
+
+  /**
+   * @param column index of a BLOB column
+   * @return the bytes of that column, with each row's value at
+   * getBlobOffsets()[row] for getBlobLengths()[row] bytes
+   */
+  public byte[] getBytes(int column) {
+    return(checked(bytes, column, Type.BLOB));
+  }
+
+  /**
+   * @param column index of a BLOB column
+   * @return where each row's value starts in getBytes()
+   */
+  public int[] getBlobOffsets(int column) {
+    return(checked(offsets, column, Type.BLOB));
+  }
+
+  /**
+   * @param column index of a BLOB column
+   * @return the number of bytes in each row's value
+   */
+  public int[] getBlobLengths(int column) {
+    return(checked(lengths, column, Type.BLOB));
+  }
+
+  /**
+   * @param column index of any column
+   * @return flags indicating which rows have NULL in that column
+   */
+  public boolean[] getNulls(int column) {
+    return(nulls[column]);
+  }
+
+  /**
+   * Convenience method for getting one TEXT cell as a String. This
+   * allocates, so avoid it in hot loops.
+   *
+   * @param column index of a TEXT column
+   * @param row index of the row within this chunk
+   * @return the text, or null if the cell is NULL
+   */
+  public String getText(int column, int row) {
+    if (nulls[column][row]) {
+      return(null);
+    }
+
+    return(new String(getChars(column), offsets[column][row],
+      lengths[column][row]));
+  }
+
+  /**
+   * Convenience method for getting one BLOB cell as its own byte[]. This
+   * allocates, so avoid it in hot loops.
+   *
+   * @param column index of a BLOB column
+   * @param row index of the row within this chunk
+   * @return a copy of the value, or null if the cell is NULL
+   */
+  public byte[] getBlob(int column, int row) {
+    if (nulls[column][row]) {
+      return(null);
+    }
+
+    byte[] result=new byte[lengths[column][row]];
+
+    System.arraycopy(getBytes(column), offsets[column][row], result, 0,
+      result.length);
+
+    return(result);
+  }
+
+  /**
+   * Refills this chunk from the cursor, starting from its next row.
+   *
+   * @return false if the cursor had no more rows
+   */
+  boolean fill(Cursor c) {
+    startRow+=rowCount;
+    rowCount=0;
+
+    while (rowCount<capacity && c.moveToNext()) {
+      for (int i=0;i<types.length;i++) {
+        boolean isNull=c.isNull(i);
+
+        nulls[i][rowCount]=isNull;
+
+        switch (types[i]) {
+          case LONG:
+            longs[i][rowCount]=(isNull ? 0 : c.getLong(i));
+            break;
+
+          case DOUBLE:
+            doubles[i][rowCount]=(isNull ? 0 : c.getDouble(i));
+            break;
+
+          case TEXT:
+            int offset=nextOffset(i);
+
+            offsets[i][rowCount]=offset;
+            lengths[i][rowCount]=0;
+
+            if (!isNull) {
+              c.copyStringToBuffer(i, scratch);
+
+              if (offset+scratch.sizeCopied>chars[i].length) {
+                char[] bigger=
+                  new char[Math.max(chars[i].length*2, offset+scratch.sizeCopied)];
+
+                System.arraycopy(chars[i], 0, bigger, 0, offset);
+                chars[i]=bigger;
+              }
+
+              System.arraycopy(scratch.data, 0, chars[i], offset,
+                scratch.sizeCopied);
+              lengths[i][rowCount]=scratch.sizeCopied;
+            }
+            break;
+
+          case BLOB:
+            int blobOffset=nextOffset(i);
+
+            offsets[i][rowCount]=blobOffset;
+            lengths[i][rowCount]=0;
+
+            if (!isNull) {
+              byte[] value=c.getBlob(i);
+
+              if (blobOffset+value.length>bytes[i].length) {
+                byte[] bigger=
+                  new byte[Math.max(bytes[i].length*2, blobOffset+value.length)];
+
+                System.arraycopy(bytes[i], 0, bigger, 0, blobOffset);
+                bytes[i]=bigger;
+              }
+
+              System.arraycopy(value, 0, bytes[i], blobOffset, value.length);
+              lengths[i][rowCount]=value.length;
+            }
+            break;
+        }
+      }
+
+      rowCount++;
+    }
+
+    return(rowCount>0);
+  }
+
+  private int nextOffset(int column) {
+    return(rowCount==0 ? 0 :
+      offsets[column][rowCount-1]+lengths[column][rowCount-1]);
+  }
+
+  private <T> T checked(T[] arrays, int column, Type type) {
+    if (types[column]!=type) {
+      throw new IllegalArgumentException("Column "+column+" is "+types[column]+
+        ", not "+type);
+    }
+
+    return(arrays[column]);
+  }
+}
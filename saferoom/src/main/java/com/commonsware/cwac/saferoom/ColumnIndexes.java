@@ -0,0 +1,83 @@
+/***
+ Copyright (c) 2020 CommonsWare, LLC
+ Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ use this file except in compliance with the License. You may obtain	a copy
+ of the License at http://www.apache.org/licenses/LICENSE-2.0. Unless required
+ by applicable law or agreed to in writing, software distributed under the
+ License is distributed on an "AS IS" BASIS,	WITHOUT	WARRANTIES OR CONDITIONS
+ OF ANY KIND, either express or implied. See the License for the specific
+ language governing permissions and limitations under the License.
+ */
+
+package com.commonsware.cwac.saferoom;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Column name to index mappings for query results, cached by SQL text, so
+ * repeated queries do not rebuild them. An entry is only reused if the
+ * result's column names still match, so schema changes behind a SELECT *
+ * do not hand back stale indexes.
+ */
+class ColumnIndexes {
+  private final int maxSize;
+  private final LinkedHashMap<String, Mapping> mappings=
+    new LinkedHashMap<String, Mapping>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, Mapping> eldest) {
+        return(size()>maxSize);
+      }
+    };
+
+  ColumnIndexes(int maxSize) {
+    this.maxSize=maxSize;
+  }
+
+  synchronized Mapping forQuery(String sql, String[] columnNames) {
+    Mapping result=mappings.get(sql);
+
+    if (result==null || !Arrays.equals(result.names, columnNames)) {
+      result=new Mapping(columnNames);
+      mappings.put(sql, result);
+    }
+
+    return(result);
+  }
+
+  static final class Mapping {
+    private final String[] names;
+    private final HashMap<String, Integer> indexes=new HashMap<>();
+
+    Mapping(String[] names) {
+      this.names=names.clone();
+
+      for (int i=names.length-1;i>=0;i--) {
+        indexes.put(names[i], i);
+      }
+    }
+
+    /**
+     * @return the index of the named column, matching the way that
+     * Cursor.getColumnIndexOrThrow() does: exact match first, then ignoring
+     * case
+     */
+    int indexOf(String name) {
+      Integer result=indexes.get(name);
+
+      if (result!=null) {
+        return(result);
+      }
+
+      for (int i=0;i<names.length;i++) {
+        if (names[i].equalsIgnoreCase(name)) {
+          return(i);
+        }
+      }
+
+      throw new IllegalArgumentException("column '"+name+"' does not exist");
+    }
+  }
+}
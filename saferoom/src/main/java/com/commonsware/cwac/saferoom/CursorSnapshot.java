@@ -0,0 +1,163 @@
+/***
+ Copyright (c) 2020 CommonsWare, LLC
+ Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ use this file except in compliance with the License. You may obtain	a copy
+ of the License at http://www.apache.org/licenses/LICENSE-2.0. Unless required
+ by applicable law or agreed to in writing, software distributed under the
+ License is distributed on an "AS IS" BASIS,	WITHOUT	WARRANTIES OR CONDITIONS
+ OF ANY KIND, either express or implied. See the License for the specific
+ language governing permissions and limitations under the License.
+ */
+
+package com.commonsware.cwac.saferoom;
+
+import android.database.Cursor;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * An immutable copy of a query's results, from which any number of
+ * independent cursors can be created. The rows are shared; each cursor has
+ * only its own position.
+ */
+final class CursorSnapshot {
+  private final String[] columnNames;
+  private final Object[][] rows;
+  private final long bytes;
+
+  private CursorSnapshot(String[] columnNames, Object[][] rows, long bytes) {
+    this.columnNames=columnNames;
+    this.rows=rows;
+    this.bytes=bytes;
+  }
+
+  /**
+   * Copies all of the rows out of a cursor and closes it. A cursor that
+   * came from a snapshot already has one, so that gets used as-is.
+   */
+  static CursorSnapshot of(Cursor c) {
+    return(of(c, Long.MAX_VALUE));
+  }
+
+  /**
+   * Copies the rows out of a cursor and closes it, unless they come to
+   * more than maxBytes. In that case, this stops copying as soon as it
+   * goes over, moves the cursor back before its first row, and returns
+   * null, leaving the cursor open for the caller to read directly.
+   */
+  static CursorSnapshot of(Cursor c, long maxBytes) {
+    if (c instanceof SnapshotCursor) {
+      CursorSnapshot result=((SnapshotCursor)c).getSnapshot();
+
+      if (result.bytes>maxBytes) {
+        c.moveToPosition(-1);
+
+        return(null);
+      }
+
+      c.close();
+
+      return(result);
+    }
+
+    boolean tooBig=false;
+
+    try {
+      int columns=c.getColumnCount();
+      List<Object[]> rows=new ArrayList<>(Math.max(c.getCount(), 0));
+      long bytes=0;
+
+      while (c.moveToNext()) {
+        Object[] row=new Object[columns];
+
+        for (int i=0;i<columns;i++) {
+          row[i]=ValueCursor.readValue(c, i);
+        }
+
+        bytes+=estimateBytes(row);
+
+        if (bytes>maxBytes) {
+          tooBig=true;
+          c.moveToPosition(-1);
+
+          return(null);
+        }
+
+        rows.add(row);
+      }
+
+      return(new CursorSnapshot(c.getColumnNames(),
+        rows.toArray(new Object[rows.size()][]), bytes));
+    }
+    finally {
+      if (!tooBig) {
+        c.close();
+      }
+    }
+  }
+
+  int getRowCount() {
+    return(rows.length);
+  }
+
+  /**
+   * @return a rough estimate of the memory held by the copied values
+   */
+  long estimateBytes() {
+    return(bytes);
+  }
+
+  private static long estimateBytes(Object[] row) {
+    long result=16+row.length*8;
+
+    for (Object value : row) {
+      if (value instanceof String) {
+        result+=40+((String)value).length()*2;
+      }
+      else if (value instanceof byte[]) {
+        result+=16+((byte[])value).length;
+      }
+      else if (value!=null) {
+        result+=16;
+      }
+    }
+
+    return(result);
+  }
+
+  Cursor newCursor() {
+    return(new SnapshotCursor());
+  }
+
+  private final class SnapshotCursor extends ValueCursor {
+    CursorSnapshot getSnapshot() {
+      return(CursorSnapshot.this);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getCount() {
+      return(rows.length);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String[] getColumnNames() {
+      return(columnNames);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    Object getValue(int column) {
+      checkPosition();
+
+      return(rows[mPos][column]);
+    }
+  }
+}
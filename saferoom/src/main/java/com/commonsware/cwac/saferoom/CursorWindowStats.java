@@ -0,0 +1,81 @@
+/***
+ Copyright (c) 2020 CommonsWare, LLC
+ Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ use this file except in compliance with the License. You may obtain	a copy
+ of the License at http://www.apache.org/licenses/LICENSE-2.0. Unless required
+ by applicable law or agreed to in writing, software distributed under the
+ License is distributed on an "AS IS" BASIS,	WITHOUT	WARRANTIES OR CONDITIONS
+ OF ANY KIND, either express or implied. See the License for the specific
+ language governing permissions and limitations under the License.
+ */
+
+package com.commonsware.cwac.saferoom;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters for the CursorWindows filled by a Database's cursors, for use in
+ * tuning the window size against real row shapes. Get one by calling
+ * getCursorWindowStats() on Database.
+ */
+public final class CursorWindowStats {
+  private final AtomicLong fillCount=new AtomicLong();
+  private final AtomicLong rowCount=new AtomicLong();
+  private final AtomicLong windowCount=new AtomicLong();
+  private final AtomicLong windowBytes=new AtomicLong();
+
+  CursorWindowStats() {
+    // created by Database
+  }
+
+  /**
+   * @return the number of times that a window was filled with rows
+   */
+  public long getFillCount() {
+    return(fillCount.get());
+  }
+
+  /**
+   * @return the total number of rows put into windows by those fills
+   */
+  public long getRowCount() {
+    return(rowCount.get());
+  }
+
+  /**
+   * @return the average number of rows per fill, or 0 if there have not
+   * been any fills
+   */
+  public double getRowsPerFill() {
+    long fills=fillCount.get();
+
+    return(fills==0 ? 0 : (double)rowCount.get()/fills);
+  }
+
+  /**
+   * @return the number of windows created for this database's cursors
+   */
+  public long getWindowCount() {
+    return(windowCount.get());
+  }
+
+  /**
+   * @return the total capacity, in bytes, of the windows created for this
+   * database's cursors, as SQLCipher actually sized them; the size is set
+   * process-wide, so this may differ from this database's own
+   * setCursorWindowSize() if another database set a different one
+   */
+  public long getWindowBytes() {
+    return(windowBytes.get());
+  }
+
+  void recordFill(int rows) {
+    fillCount.incrementAndGet();
+    rowCount.addAndGet(rows);
+  }
+
+  void recordWindow(long bytes) {
+    windowCount.incrementAndGet();
+    windowBytes.addAndGet(bytes);
+  }
+}
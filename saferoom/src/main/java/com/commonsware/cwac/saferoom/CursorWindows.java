@@ -0,0 +1,57 @@
+/***
+ Copyright (c) 2020 CommonsWare, LLC
+ Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ use this file except in compliance with the License. You may obtain	a copy
+ of the License at http://www.apache.org/licenses/LICENSE-2.0. Unless required
+ by applicable law or agreed to in writing, software distributed under the
+ License is distributed on an "AS IS" BASIS,	WITHOUT	WARRANTIES OR CONDITIONS
+ OF ANY KIND, either express or implied. See the License for the specific
+ language governing permissions and limitations under the License.
+ */
+
+package com.commonsware.cwac.saferoom;
+
+import net.sqlcipher.CursorWindow;
+import net.sqlcipher.CursorWindowAllocation;
+import net.sqlcipher.CustomCursorWindowAllocation;
+
+/**
+ * Sets the size of SQLCipher's CursorWindows. SQLCipher only offers a
+ * process-wide allocation policy, read whenever any window is created, so
+ * this is set once, when a database is opened with a window size, rather
+ * than being swapped per window, which would leak the size into windows
+ * created on other threads at the same time.
+ */
+final class CursorWindows {
+  private static long size;
+
+  private CursorWindows() {
+    // static methods only
+  }
+
+  /**
+   * Makes every SQLCipher CursorWindow created from now on, by any
+   * connection in this process, hold up to this many bytes
+   */
+  static synchronized void setSize(long bytes) {
+    if (bytes!=size) {
+      CursorWindow.setCursorWindowAllocation(
+        new CustomCursorWindowAllocation(bytes, 0, bytes));
+      size=bytes;
+    }
+  }
+
+  /**
+   * Creates a window for a cursor, recording the size that SQLCipher gave
+   * it, which is whatever the process-wide policy says at the time, not
+   * necessarily what the cursor's own database asked for
+   */
+  static synchronized CursorWindow newWindow(CursorWindowStats stats) {
+    CursorWindow result=new CursorWindow(true);
+    CursorWindowAllocation allocation=CursorWindow.getCursorWindowAllocation();
+
+    stats.recordWindow(allocation==null ? 0 : allocation.getMaxAllocationSize());
+
+    return(result);
+  }
+}
@@ -18,40 +18,110 @@ import android.content.ContentValues;
 import android.database.Cursor;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteTransactionListener;
+import android.os.Build;
 import android.os.CancellationSignal;
 import android.text.Editable;
-import android.text.TextUtils;
 import android.util.Pair;
-import net.sqlcipher.database.SQLiteCursor;
 import net.sqlcipher.database.SQLiteCursorDriver;
 import net.sqlcipher.database.SQLiteQuery;
+import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import androidx.annotation.RequiresApi;
 import androidx.sqlite.db.SimpleSQLiteQuery;
 import androidx.sqlite.db.SupportSQLiteDatabase;
+import androidx.sqlite.db.SupportSQLiteProgram;
 import androidx.sqlite.db.SupportSQLiteQuery;
 import androidx.sqlite.db.SupportSQLiteStatement;
 
 /**
  * A SupportSQLiteDatabase implementation that delegates to a SQLCipher
- * for Android implementation of SQLiteDatabase
+ * for Android implementation of SQLiteDatabase. The SupportSQLiteDatabase
+ * objects handed out by SafeHelperFactory's helpers are instances of this
+ * class, so you can cast to Database to get at its SafeRoom-specific methods.
  */
-class Database implements SupportSQLiteDatabase {
-  private static final String[] CONFLICT_VALUES = new String[]
+public class Database implements SupportSQLiteDatabase {
+  static final String[] CONFLICT_VALUES = new String[]
     {"", " OR ROLLBACK ", " OR ABORT ", " OR FAIL ", " OR IGNORE ", " OR REPLACE "};
+  private static final String[] NO_BINDINGS=new String[0];
+  private static final int COLUMN_INDEX_CACHE_SIZE=64;
 
   private final net.sqlcipher.database.SQLiteDatabase safeDb;
+  private final StatementCache statementCache;
+  private final SqlTemplates templates;
+  private volatile ReaderPool readers;
+  private final boolean forwardOnlyCursors;
+  private final SingleFlight singleFlight;
+  private final ResultCache resultCache;
+  private volatile Schema schema;
+  private final Set<String> pendingWrites=new HashSet<>();
+  private boolean pendingWriteAll; // guarded by pendingWrites
+  private final AtomicLong writeGeneration=new AtomicLong();
+  private final CursorWindowStats windowStats=new CursorWindowStats();
+  private final ColumnIndexes columnIndexes=new ColumnIndexes(COLUMN_INDEX_CACHE_SIZE);
 
-  Database(net.sqlcipher.database.SQLiteDatabase safeDb) {
+  Database(net.sqlcipher.database.SQLiteDatabase safeDb,
+           SafeHelperFactory.Options options) {
     this.safeDb=safeDb;
+
+    if (options!=null && options.cursorWindowSize>0) {
+      CursorWindows.setSize(options.cursorWindowSize);
+    }
+
+    this.forwardOnlyCursors=(options!=null && options.forwardOnlyCursors);
+    this.singleFlight=
+      (options!=null && options.singleFlightQueries) ? new SingleFlight() : null;
+    this.resultCache=
+      (options!=null && options.resultCacheSize>0 && options.resultCacheBytes>0) ?
+        new ResultCache(options.resultCacheSize, options.resultCacheBytes) : null;
+
+    if (options!=null && options.statementCacheSize>0) {
+      statementCache=new StatementCache(options.statementCacheSize);
+      templates=new SqlTemplates(options.statementCacheSize);
+    }
+    else {
+      statementCache=null;
+      templates=null;
+    }
   }
 
   /**
    * {@inheritDoc}
+   *
+   * NOTE: if a statement cache is enabled via SafeHelperFactory.Options,
+   * closing the returned statement hands it back to that cache
    */
   @Override
   public SupportSQLiteStatement compileStatement(String sql) {
-    return(new Statement(safeDb.compileStatement(sql)));
+    return(compile(sql));
+  }
+
+  private Statement compile(String sql) {
+    if (statementCache==null) {
+      return(new Statement(safeDb.compileStatement(sql), sql, null, this));
+    }
+
+    Statement result=statementCache.acquire(sql);
+
+    if (result==null) {
+      result=new Statement(safeDb.compileStatement(sql), sql, statementCache,
+        this);
+    }
+
+    return(result);
+  }
+
+  /**
+   * @return the cache of compiled statements used by compileStatement(),
+   * or null if the statement cache is not enabled
+   */
+  public StatementCache getStatementCache() {
+    return(statementCache);
   }
 
   /**
@@ -123,7 +193,14 @@ class Database implements SupportSQLiteDatabase {
    */
   @Override
   public void endTransaction() {
-    safeDb.endTransaction();
+    try {
+      safeDb.endTransaction();
+    }
+    finally {
+      if (!safeDb.inTransaction()) {
+        flushPendingWrites();
+      }
+    }
   }
 
   /**
@@ -164,7 +241,7 @@ class Database implements SupportSQLiteDatabase {
   @Override
   public boolean yieldIfContendedSafely() {
     if (safeDb.isOpen()) {
-      return(safeDb.yieldIfContendedSafely());
+      return(yielded(safeDb.yieldIfContendedSafely()));
     }
 
     throw new IllegalStateException("You should not be doing this on a closed database");
@@ -176,12 +253,21 @@ class Database implements SupportSQLiteDatabase {
   @Override
   public boolean yieldIfContendedSafely(long sleepAfterYieldDelay) {
     if (safeDb.isOpen()) {
-      return(safeDb.yieldIfContendedSafely(sleepAfterYieldDelay));
+      return(yielded(safeDb.yieldIfContendedSafely(sleepAfterYieldDelay)));
     }
 
     throw new IllegalStateException("You should not be doing this on a closed database");
   }
 
+  private boolean yielded(boolean result) {
+    // a yield commits, so other connections can now see what was written
+    if (result) {
+      flushPendingWrites();
+    }
+
+    return(result);
+  }
+
   /**
    * {@inheritDoc}
    */
@@ -255,16 +341,301 @@ class Database implements SupportSQLiteDatabase {
   }
 
   /**
-   * {@inheritDoc}
+   * Runs a query that can be canceled. SQLCipher cannot stop a native step
+   * that is underway, so when the signal is not null, the Cursor reads the
+   * results in growing chunks and checks the signal between them, rather
+   * than stepping through the whole result on its first window fill. Once
+   * canceled, the Cursor closes and throws OperationCanceledException on
+   * its next move or count. Such queries bypass the result cache and
+   * single-flight sharing.
+   *
+   * @param supportQuery the query to run
+   * @param signal the CancellationSignal for the query, or null
+   * @return a Cursor with the results
    */
   @Override
   public Cursor query(final SupportSQLiteQuery supportQuery,
-                      CancellationSignal signal) {
-    BindingsRecorder hack=new BindingsRecorder();
+                      final CancellationSignal signal) {
+    return(query(supportQuery, signal, forwardOnlyCursors));
+  }
+
+  /**
+   * Runs a query, returning a forward-only Cursor. The Cursor reads the
+   * results in chunks that start small and grow, so the first rows come
+   * back without stepping through the whole result, and memory stays
+   * bounded by the window size no matter how large the result is. Each
+   * chunk is a separate query, so the results should have a stable order.
+   * Moving the Cursor backwards throws an IllegalStateException, and
+   * getCount() runs a separate COUNT(*) query until the end is reached.
+   *
+   * @param supportQuery the query to run
+   * @return a forward-only Cursor with the results
+   */
+  public Cursor queryForwardOnly(SupportSQLiteQuery supportQuery) {
+    return(queryForwardOnly(supportQuery, null));
+  }
+
+  /**
+   * Runs a query, returning a forward-only Cursor, per
+   * queryForwardOnly(SupportSQLiteQuery).
+   *
+   * @param supportQuery the query to run
+   * @param signal the CancellationSignal for the query, or null
+   * @return a forward-only Cursor with the results
+   */
+  public Cursor queryForwardOnly(SupportSQLiteQuery supportQuery,
+                                 CancellationSignal signal) {
+    return(query(supportQuery, signal, true));
+  }
+
+  /**
+   * Runs a query, returning a forward-only Cursor whose rows are read on
+   * the supplied Executor, a chunk at a time, while the caller works
+   * through the previous chunk. At most two chunks are held in memory.
+   * Use this for long scans with real per-row work, where the time spent
+   * stepping and decrypting can overlap with the caller's own processing.
+   *
+   * @param supportQuery the query to run
+   * @param executor where the rows get read; this ties up one of its
+   *                 threads until the last chunk is handed over or the
+   *                 Cursor is closed, so it should not be the executor
+   *                 that the caller itself runs on
+   * @param chunkRows number of rows per chunk
+   * @return a forward-only Cursor with the results
+   */
+  public Cursor queryPrefetching(SupportSQLiteQuery supportQuery,
+                                 Executor executor, int chunkRows) {
+    if (chunkRows<1) {
+      throw new IllegalArgumentException("chunkRows must be positive");
+    }
+
+    return(new PrefetchingCursor(this, supportQuery, chunkRows, executor));
+  }
+
+  private Cursor query(final SupportSQLiteQuery supportQuery,
+                       final CancellationSignal signal,
+                       final boolean forwardOnly) {
+    if (signal!=null) {
+      signal.throwIfCanceled();
+    }
+
+    if (forwardOnly || signal!=null) {
+      // SQLCipher's cursor cannot stop partway through a window fill, and
+      // its first fill steps through the whole result, so read in chunks
+      // to check the signal between them
+      return(ChunkedCursor.open(this, supportQuery, signal, forwardOnly));
+    }
+    else if ((resultCache!=null || singleFlight!=null) && !inTransaction()) {
+      return(shared(supportQuery));
+    }
+
+    return(execute(supportQuery, false));
+  }
+
+  /**
+   * Answers a query from the result cache, or from an identical query that
+   * is already running, if those are enabled and the query qualifies
+   */
+  private Cursor shared(final SupportSQLiteQuery supportQuery) {
+    final QueryKey key=new QueryKey(supportQuery);
+    final Set<String> tables=
+      (resultCache==null ? null : cacheableTables(key.getSql()));
+
+    if (tables!=null) {
+      CursorSnapshot hit=resultCache.get(key);
+
+      if (hit!=null) {
+        return(hit.newCursor());
+      }
+    }
+    else if (singleFlight==null) {
+      return(execute(supportQuery, false));
+    }
+
+    if (singleFlight==null) {
+      return(load(supportQuery, key, tables));
+    }
+
+    return(singleFlight.load(key, writeGeneration.get(),
+      new SingleFlight.Loader() {
+        @Override
+        public Cursor run() {
+          return(load(supportQuery, key, tables));
+        }
+
+        @Override
+        public CursorSnapshot copy(Cursor live) {
+          return(CursorSnapshot.of(live));
+        }
+      }));
+  }
+
+  /**
+   * Runs a query, and fills its first window so the work is done before
+   * this returns. If tables is not null, the results are copied into the
+   * result cache, and the Cursor is on that copy, unless they turn out to
+   * be too big for the cache, in which case copying stops there.
+   */
+  private Cursor load(SupportSQLiteQuery supportQuery, QueryKey key,
+                      Set<String> tables) {
+    if (tables==null) {
+      Cursor result=execute(supportQuery, false);
+
+      try {
+        result.getCount();
+      }
+      catch (RuntimeException e) {
+        result.close();
+        throw e;
+      }
+
+      return(result);
+    }
+
+    long generation=resultCache.getGeneration();
+    Cursor live=execute(supportQuery, false);
+    CursorSnapshot result=CursorSnapshot.of(live, resultCache.getMaxBytes());
+
+    // too big to cache, so hand back the query's own cursor
+    if (result==null) {
+      return(live);
+    }
+
+    resultCache.put(key, result, tables, generation);
+
+    return(result.newCursor());
+  }
+
+  /**
+   * @return the tables read by this SQL, if its results can be cached, or
+   * null otherwise; results can be cached if the SQL is a deterministic
+   * SELECT that reads only from tables, not views, CTEs, and the like
+   */
+  private Set<String> cacheableTables(String sql) {
+    Set<String> result=SqlTables.readTables(sql);
+
+    if (result!=null && !schema().tables.containsAll(result)) {
+      result=null;
+    }
+
+    return(result);
+  }
+
+  private Schema schema() {
+    Schema result=schema;
 
-    supportQuery.bindTo(hack);
+    if (result==null) {
+      long generation=resultCache.getGeneration();
 
-    return(safeDb.rawQueryWithFactory(
+      result=Schema.load(safeDb);
+
+      // skip saving it if the schema may have changed while we read it
+      if (generation==resultCache.getGeneration()) {
+        schema=result;
+      }
+    }
+
+    return(result);
+  }
+
+  /**
+   * Drops cached results that this SQL, just executed, may have made stale
+   */
+  void wrote(String sql) {
+    if (tracksWrites()) {
+      wroteTables(SqlTables.writtenTables(sql));
+    }
+  }
+
+  /**
+   * @return true if the result cache or single-flight layer needs to hear
+   * about writes
+   */
+  boolean tracksWrites() {
+    return(resultCache!=null || singleFlight!=null);
+  }
+
+  /**
+   * Drops cached results that read from these tables, or all cached results
+   * if tables is null, and stops later queries from sharing ones that are
+   * already running. If a transaction is open, the tables are noted and
+   * invalidated again when it ends, as until then other connections may
+   * still be reading, and caching, the old data.
+   */
+  void wroteTables(Set<String> tables) {
+    if (!tracksWrites() || tables==SqlTables.NONE) {
+      return;
+    }
+
+    writeGeneration.incrementAndGet();
+
+    Schema current=schema;
+    boolean all=(tables==null || current==null || current.cascades);
+
+    if (tables==null) {
+      // an unrecognized write, which may have changed the schema
+      schema=null;
+    }
+
+    if (resultCache!=null) {
+      if (all) {
+        resultCache.invalidateAll();
+      }
+      else {
+        resultCache.invalidate(tables);
+      }
+    }
+
+    if (safeDb.inTransaction()) {
+      synchronized(pendingWrites) {
+        if (all) {
+          pendingWriteAll=true;
+        }
+        else {
+          pendingWrites.addAll(tables);
+        }
+      }
+    }
+  }
+
+  private void flushPendingWrites() {
+    if (!tracksWrites()) {
+      return;
+    }
+
+    Set<String> tables;
+    boolean all;
+
+    synchronized(pendingWrites) {
+      if (!pendingWriteAll && pendingWrites.isEmpty()) {
+        return;
+      }
+
+      all=pendingWriteAll;
+      tables=new HashSet<>(pendingWrites);
+      pendingWriteAll=false;
+      pendingWrites.clear();
+    }
+
+    writeGeneration.incrementAndGet();
+
+    if (resultCache==null) {
+      return;
+    }
+
+    if (all) {
+      resultCache.invalidateAll();
+    }
+    else {
+      resultCache.invalidate(tables);
+    }
+  }
+
+  Cursor execute(final SupportSQLiteQuery supportQuery,
+                 final boolean fillForwardOnly) {
+    // bind the typed values once, straight into the native query, rather
+    // than stringifying them for SQLCipher and then binding them again
+    return(rawQuery(supportQuery.getSql(), supportQuery.getArgCount(),
       new net.sqlcipher.database.SQLiteDatabase.CursorFactory() {
         @Override
         public net.sqlcipher.Cursor newCursor(
@@ -272,9 +643,331 @@ class Database implements SupportSQLiteDatabase {
           SQLiteCursorDriver masterQuery, String editTable,
           SQLiteQuery query) {
           supportQuery.bindTo(new Program(query));
-          return new SQLiteCursor(db, masterQuery, editTable, query);
+          return(newCursor(db, masterQuery, editTable, query,
+            fillForwardOnly));
+        }
+      }));
+  }
+
+  /**
+   * Runs a query wrapped in other SQL, such as "SELECT COUNT(*) FROM (...)",
+   * binding the query's own values and then the extra ones after them. The
+   * cursor refills its window from the next row, for single-pass reads.
+   */
+  Cursor wrapped(final SupportSQLiteQuery supportQuery, String sql,
+                 final long... extraArgs) {
+    final int argCount=supportQuery.getArgCount();
+
+    return(rawQuery(sql, argCount+extraArgs.length,
+      new net.sqlcipher.database.SQLiteDatabase.CursorFactory() {
+        @Override
+        public net.sqlcipher.Cursor newCursor(
+          net.sqlcipher.database.SQLiteDatabase db,
+          SQLiteCursorDriver masterQuery, String editTable,
+          SQLiteQuery query) {
+          supportQuery.bindTo(new Program(query));
+
+          for (int i=0;i<extraArgs.length;i++) {
+            query.bindLong(argCount+i+1, extraArgs[i]);
+          }
+
+          return(newCursor(db, masterQuery, editTable, query, true));
+        }
+      }));
+  }
+
+  /**
+   * @return the single-flight layer used by query(), or null if identical
+   * concurrent queries are not being shared
+   */
+  public SingleFlight getSingleFlight() {
+    return(singleFlight);
+  }
+
+  /**
+   * @return the cache of query results used by query(), or null if the
+   * result cache is not enabled
+   */
+  public ResultCache getResultCache() {
+    return(resultCache);
+  }
+
+  /**
+   * @return counters for the CursorWindows filled by this database's cursors
+   */
+  public CursorWindowStats getCursorWindowStats() {
+    return(windowStats);
+  }
+
+  SafeCursor newCursor(net.sqlcipher.database.SQLiteDatabase db,
+                       SQLiteCursorDriver masterQuery, String editTable,
+                       SQLiteQuery query) {
+    return(newCursor(db, masterQuery, editTable, query, false));
+  }
+
+  private SafeCursor newCursor(net.sqlcipher.database.SQLiteDatabase db,
+                               SQLiteCursorDriver masterQuery, String editTable,
+                               SQLiteQuery query, boolean fillForwardOnly) {
+    SafeCursor result=new SafeCursor(db, masterQuery, editTable, query,
+      windowStats);
+
+    result.setFillWindowForwardOnly(fillForwardOnly);
+
+    return(result);
+  }
+
+  /**
+   * Compiles a query into the compiled-SQL cache of each connection, for
+   * repeated execution with different bindings via the returned
+   * PreparedQuery. See PreparedQuery for how long that lasts.
+   *
+   * @param sql the query, with ? placeholders for its bindings
+   * @return a PreparedQuery for that SQL
+   */
+  public PreparedQuery prepareQuery(String sql) {
+    return(new PreparedQuery(this, sql));
+  }
+
+  /**
+   * Runs a query and returns its rows for single-pass iteration, such as
+   * in a for-each loop. The same Rows.Row object is reused for each row,
+   * and column name lookups use a mapping cached for this SQL, so reading
+   * numeric columns does not allocate per row.
+   *
+   * @param supportQuery the query to run
+   * @return Rows for iterating over the results; close it if you stop
+   * before the end
+   */
+  public Rows iterate(SupportSQLiteQuery supportQuery) {
+    Cursor c=queryForwardOnly(supportQuery);
+
+    try {
+      return(new Rows(c,
+        columnIndexes.forQuery(supportQuery.getSql(), c.getColumnNames())));
+    }
+    catch (RuntimeException e) {
+      c.close();
+      throw e;
+    }
+  }
+
+  /**
+   * Runs a query and delivers its results in chunks, stored by column in
+   * primitive arrays, so that analytics-style loops can work on long[] and
+   * double[] arrays rather than calling getLong() and getDouble() per cell.
+   * The same ColumnChunk is refilled and passed to the Receiver for each
+   * chunk, so the fetch allocates nothing per row for LONG, DOUBLE, and
+   * TEXT columns; BLOB columns cost one byte[] per non-NULL cell, as
+   * explained on ColumnChunk.
+   *
+   * @param supportQuery the query to run
+   * @param types how to read each column of the result, in order
+   * @param chunkRows maximum number of rows in each chunk
+   * @param receiver gets each chunk, on the calling thread
+   * @return the number of rows delivered
+   */
+  public int fetchColumns(SupportSQLiteQuery supportQuery,
+                          ColumnChunk.Type[] types, int chunkRows,
+                          ColumnChunk.Receiver receiver) {
+    if (chunkRows<1) {
+      throw new IllegalArgumentException("chunkRows must be positive");
+    }
+
+    ColumnChunk chunk=new ColumnChunk(types, chunkRows);
+    Cursor c=queryForwardOnly(supportQuery);
+
+    try {
+      if (c.getColumnCount()<types.length) {
+        throw new IllegalArgumentException("Query has "+c.getColumnCount()+
+          " columns, but "+types.length+" types were supplied");
+      }
+
+      while (chunk.fill(c)) {
+        if (!receiver.onChunk(chunk)) {
+          break;
         }
-      }, supportQuery.getSql(), hack.getBindings(), null));
+      }
+    }
+    finally {
+      c.close();
+    }
+
+    return(chunk.getStartRow()+chunk.getRowCount());
+  }
+
+  /**
+   * Creates an AsyncDatabase, for running work against this database on
+   * the supplied Executor and getting CompletableFutures back.
+   *
+   * Up to maxInFlight operations may wait for a slot; past that, new
+   * operations are rejected.
+   *
+   * @param executor where the work gets done
+   * @param maxInFlight most operations that may be handed to the Executor
+   *                    at once
+   * @return a new AsyncDatabase for this database
+   */
+  @RequiresApi(api = Build.VERSION_CODES.N)
+  public AsyncDatabase async(Executor executor, int maxInFlight) {
+    return(async(executor, maxInFlight, maxInFlight));
+  }
+
+  /**
+   * Creates an AsyncDatabase, for running work against this database on
+   * the supplied Executor and getting CompletableFutures back.
+   *
+   * @param executor where the work gets done
+   * @param maxInFlight most operations that may be handed to the Executor
+   *                    at once
+   * @param maxQueued most operations that may wait for a slot; further
+   *                  submissions fail right away with a
+   *                  RejectedExecutionException, rather than blocking
+   * @return a new AsyncDatabase for this database
+   */
+  @RequiresApi(api = Build.VERSION_CODES.N)
+  public AsyncDatabase async(Executor executor, int maxInFlight,
+                             int maxQueued) {
+    return(new AsyncDatabase(this, executor, maxInFlight, maxQueued));
+  }
+
+  /**
+   * Creates a LaneScheduler, which runs interactive and background work on
+   * separate threads and has background batches step aside for interactive
+   * work. Close the scheduler when you are done with it.
+   *
+   * @return a new LaneScheduler for this database
+   */
+  public LaneScheduler laneScheduler() {
+    return(new LaneScheduler(this));
+  }
+
+  /**
+   * Creates a GroupCommitWriter, which runs write operations from any
+   * thread on one writer thread, committing them in groups to amortize
+   * the cost of each commit. Close the writer when you are done with it.
+   *
+   * @param maxGroupSize most operations to commit in one transaction
+   * @param maxDelay longest that an operation waits for others to join
+   *                 its group
+   * @param unit the unit of maxDelay
+   * @return a new GroupCommitWriter for this database
+   */
+  public GroupCommitWriter groupCommitWriter(int maxGroupSize, long maxDelay,
+                                             TimeUnit unit) {
+    return(new GroupCommitWriter(this, maxGroupSize, maxDelay, unit));
+  }
+
+  /**
+   * Creates a KeysetPager, for paging through the rows of a table by
+   * seeking on a unique ordering key instead of using LIMIT/OFFSET.
+   *
+   * @param table the table to page through
+   * @param columns the columns to return, which must include keyColumn, or
+   *                null for all of them
+   * @param selection a WHERE clause, without the WHERE, to filter rows by,
+   *                  or null for all rows
+   * @param selectionArgs values for the ? placeholders in selection, or null
+   * @param keyColumn name of a column of the table that is unique and
+   *                  non-null, such as the primary key, that pages are
+   *                  ordered by; it needs an index, or every page scans
+   * @param pageSize number of rows in each page
+   * @return a KeysetPager for that table
+   */
+  public KeysetPager keysetPager(String table, String[] columns,
+                                 String selection, Object[] selectionArgs,
+                                 String keyColumn, int pageSize) {
+    return(new KeysetPager(this, table, columns, selection, selectionArgs,
+      keyColumn, pageSize));
+  }
+
+  /**
+   * Runs a query whose factory binds the real, typed values. SQLCipher's
+   * SQLiteQuery records every binding in an array sized from the selection
+   * arguments, so it gets one placeholder per argument for the factory's
+   * binds to overwrite.
+   */
+  Cursor rawQuery(String sql, int argCount,
+                  net.sqlcipher.database.SQLiteDatabase.CursorFactory factory) {
+    return(connectionFor(sql).rawQueryWithFactory(factory, sql,
+      placeholders(argCount), null));
+  }
+
+  private static String[] placeholders(int count) {
+    if (count==0) {
+      return(NO_BINDINGS);
+    }
+
+    String[] result=new String[count];
+
+    // SQLCipher rejects null selection arguments
+    Arrays.fill(result, "");
+
+    return(result);
+  }
+
+  /**
+   * Routes plain reads made outside of a transaction to a pooled reader, if
+   * there is one, so they do not queue up behind the primary connection.
+   * Anything else stays on the primary connection, which is the only one
+   * that can see this thread's transaction, temp tables, changes(), etc.
+   */
+  private net.sqlcipher.database.SQLiteDatabase connectionFor(String sql) {
+    ReaderPool pool=readers;
+
+    if (pool!=null && isPlainRead(sql) && !safeDb.inTransaction()) {
+      return(pool.acquire());
+    }
+
+    return(safeDb);
+  }
+
+  private static boolean isPlainRead(String sql) {
+    int i=0;
+
+    while (i<sql.length() && Character.isWhitespace(sql.charAt(i))) {
+      i++;
+    }
+
+    if (sql.regionMatches(true, i, "SELECT", 0, 6)) {
+      return(true);
+    }
+
+    // WITH can lead into an INSERT, UPDATE, or DELETE, which a read-only
+    // connection cannot run, so check what follows the CTEs
+    return(sql.regionMatches(true, i, "WITH", 0, 4) &&
+      "select".equals(SqlTables.verb(sql)));
+  }
+
+  boolean hasReaders() {
+    return(readers!=null);
+  }
+
+  /**
+   * @return the number of queries run on the pool of read-only connections,
+   * or 0 if there is no pool
+   */
+  public long getPooledReadCount() {
+    ReaderPool pool=readers;
+
+    return(pool==null ? 0 : pool.getAcquireCount());
+  }
+
+  void attachReaders(ReaderPool pool) {
+    readers=pool;
+  }
+
+  /**
+   * Compiles the SQL on each connection that may run it, so it is in that
+   * connection's SQL cache ahead of time
+   */
+  void precompile(String sql) {
+    safeDb.compileStatement(sql).close();
+
+    ReaderPool pool=readers;
+
+    if (pool!=null && isPlainRead(sql)) {
+      pool.precompile(sql);
+    }
   }
 
   /**
@@ -283,37 +976,160 @@ class Database implements SupportSQLiteDatabase {
   @Override
   public long insert(String table, int conflictAlgorithm,
                      ContentValues values) {
-    return(safeDb.insertWithOnConflict(table, null, values, conflictAlgorithm));
+    long result=safeDb.insertWithOnConflict(table, null, values, conflictAlgorithm);
+
+    if (tracksWrites()) {
+      wroteTables(SqlTables.named(table));
+    }
+
+    return(result);
+  }
+
+  /**
+   * Inserts a series of rows, using one compiled statement inside of one
+   * transaction. The statement is compiled once per distinct set of columns,
+   * so ideally all rows have the same keys.
+   *
+   * @param table the table to insert into
+   * @param conflictAlgorithm one of the CONFLICT_* constants from
+   *                          SupportSQLiteDatabase
+   * @param rows the values for each row to insert
+   * @return the row IDs of the inserted rows, in order, with -1 for any row
+   * that was not inserted
+   */
+  public long[] insertBatch(String table, int conflictAlgorithm,
+                            Iterable<ContentValues> rows) {
+    long[] result=new long[16];
+    int count=0;
+    Statement statement=null;
+    String[] columns=null;
+    Set<String> columnSet=null;
+
+    beginTransaction();
+
+    try {
+      for (ContentValues values : rows) {
+        if (statement==null || !columnSet.equals(values.keySet())) {
+          if (statement!=null) {
+            statement.close();
+          }
+
+          columnSet=new HashSet<>(values.keySet());
+          columns=columnSet.toArray(new String[0]);
+          statement=compile(buildInsertSql(table, conflictAlgorithm, columns));
+        }
+
+        statement.clearBindings();
+
+        for (int i=0;i<columns.length;i++) {
+          bind(statement, i+1, values.get(columns[i]));
+        }
+
+        if (count==result.length) {
+          result=Arrays.copyOf(result, count*2);
+        }
+
+        result[count++]=statement.executeInsert();
+      }
+
+      setTransactionSuccessful();
+    }
+    finally {
+      try {
+        if (statement!=null) {
+          statement.close();
+        }
+      }
+      finally {
+        endTransaction();
+      }
+    }
+
+    return(Arrays.copyOf(result, count));
+  }
+
+  private static String buildInsertSql(String table, int conflictAlgorithm,
+                                       String[] columns) {
+    StringBuilder sql=new StringBuilder(120);
+
+    sql.append("INSERT");
+    sql.append(CONFLICT_VALUES[conflictAlgorithm]);
+    sql.append(" INTO ");
+    sql.append(table);
+
+    if (columns.length==0) {
+      sql.append(" DEFAULT VALUES");
+    }
+    else {
+      sql.append(" (");
+
+      for (int i=0;i<columns.length;i++) {
+        sql.append((i > 0) ? "," : "");
+        sql.append(columns[i]);
+      }
+
+      sql.append(") VALUES (");
+
+      for (int i=0;i<columns.length;i++) {
+        sql.append((i > 0) ? ",?" : "?");
+      }
+
+      sql.append(")");
+    }
+
+    return(sql.toString());
+  }
+
+  // same conversions as SimpleSQLiteQuery.bind(), one value at a time
+  private static void bind(SupportSQLiteProgram program, int index, Object arg) {
+    if (arg == null) {
+      program.bindNull(index);
+    }
+    else if (arg instanceof byte[]) {
+      program.bindBlob(index, (byte[])arg);
+    }
+    else if (arg instanceof Float || arg instanceof Double) {
+      program.bindDouble(index, ((Number)arg).doubleValue());
+    }
+    else if (arg instanceof Long || arg instanceof Integer
+      || arg instanceof Short || arg instanceof Byte) {
+      program.bindLong(index, ((Number)arg).longValue());
+    }
+    else if (arg instanceof String) {
+      program.bindString(index, (String)arg);
+    }
+    else if (arg instanceof Boolean) {
+      program.bindLong(index, ((Boolean)arg) ? 1 : 0);
+    }
+    else {
+      throw new IllegalArgumentException("Cannot bind " + arg + " at index " + index
+        + " Supported types: null, byte[], float, double, long, int, short, byte,"
+        + " string");
+    }
   }
 
   /**
    * {@inheritDoc}
    */
-  @SuppressWarnings("ThrowFromFinallyBlock")
   @Override
   public int delete(String table, String whereClause, Object[] whereArgs) {
-    String query = "DELETE FROM " + table
-      + (TextUtils.isEmpty(whereClause) ? "" : " WHERE " + whereClause);
-    SupportSQLiteStatement statement = compileStatement(query);
+    SqlTemplates.Template template=templates==null ?
+      SqlTemplates.buildDelete(table, whereClause) :
+      templates.forDelete(table, whereClause);
+    Statement statement = compile(template.sql);
 
     try {
-      SimpleSQLiteQuery.bind(statement, whereArgs);
+      bind(statement, 0, whereArgs);
       return statement.executeUpdateDelete();
     }
     finally {
-      try {
-        statement.close();
-      }
-      catch (Exception e) {
-        throw new RuntimeException("Exception attempting to close statement", e);
-      }
+      statement.close();
     }
   }
 
   /**
    * {@inheritDoc}
    */
-  @SuppressWarnings("ThrowFromFinallyBlock")
   @Override
   public int update(String table, int conflictAlgorithm, ContentValues values,
                     String whereClause, Object[] whereArgs) {
@@ -321,44 +1137,30 @@ class Database implements SupportSQLiteDatabase {
     if (values == null || values.size() == 0) {
       throw new IllegalArgumentException("Empty values");
     }
-    StringBuilder sql = new StringBuilder(120);
-    sql.append("UPDATE ");
-    sql.append(CONFLICT_VALUES[conflictAlgorithm]);
-    sql.append(table);
-    sql.append(" SET ");
-
-    // move all bind args to one array
-    int setValuesSize = values.size();
-    int bindArgsSize = (whereArgs == null) ? setValuesSize : (setValuesSize + whereArgs.length);
-    Object[] bindArgs = new Object[bindArgsSize];
-    int i = 0;
-    for (String colName : values.keySet()) {
-      sql.append((i > 0) ? "," : "");
-      sql.append(colName);
-      bindArgs[i++] = values.get(colName);
-      sql.append("=?");
-    }
-    if (whereArgs != null) {
-      for (i = setValuesSize; i < bindArgsSize; i++) {
-        bindArgs[i] = whereArgs[i - setValuesSize];
-      }
-    }
-    if (!TextUtils.isEmpty(whereClause)) {
-      sql.append(" WHERE ");
-      sql.append(whereClause);
-    }
-    SupportSQLiteStatement statement = compileStatement(sql.toString());
+
+    SqlTemplates.Template template=templates==null ?
+      SqlTemplates.buildUpdate(table, conflictAlgorithm, values.keySet(), whereClause) :
+      templates.forUpdate(table, conflictAlgorithm, values.keySet(), whereClause);
+    Statement statement = compile(template.sql);
 
     try {
-      SimpleSQLiteQuery.bind(statement, bindArgs);
+      for (int i=0;i<template.columns.length;i++) {
+        bind(statement, i+1, values.get(template.columns[i]));
+      }
+
+      bind(statement, template.columns.length, whereArgs);
       return statement.executeUpdateDelete();
     }
     finally {
-      try {
-        statement.close();
-      }
-      catch (Exception e) {
-        throw new RuntimeException("Exception attempting to close statement", e);
+      statement.close();
+    }
+  }
+
+  private static void bind(SupportSQLiteProgram program, int offset,
+                           Object[] args) {
+    if (args != null) {
+      for (int i=0;i<args.length;i++) {
+        bind(program, offset+i+1, args[i]);
       }
     }
   }
@@ -369,6 +1171,7 @@ class Database implements SupportSQLiteDatabase {
   @Override
   public void execSQL(String sql) throws SQLException {
     safeDb.execSQL(sql);
+    wrote(sql);
   }
 
   /**
@@ -377,6 +1180,7 @@ class Database implements SupportSQLiteDatabase {
   @Override
   public void execSQL(String sql, Object[] bindArgs) throws SQLException {
     safeDb.execSQL(sql, bindArgs);
+    wrote(sql);
   }
 
   /**
@@ -481,9 +1285,45 @@ class Database implements SupportSQLiteDatabase {
    */
   @Override
   public void close() {
+    closeCaches();
     safeDb.close();
   }
 
+  /**
+   * Drops cached state that may be stale after a schema change
+   */
+  void clearCaches() {
+    if (statementCache!=null) {
+      statementCache.clear();
+    }
+
+    if (resultCache!=null) {
+      schema=null;
+      resultCache.invalidateAll();
+    }
+  }
+
+  /**
+   * Releases whatever this Database holds on to from the SQLCipher
+   * connection, in advance of that connection being closed
+   */
+  void closeCaches() {
+    if (statementCache!=null) {
+      statementCache.close();
+    }
+
+    if (resultCache!=null) {
+      resultCache.invalidateAll();
+    }
+
+    ReaderPool pool=readers;
+
+    if (pool!=null) {
+      readers=null;
+      pool.close();
+    }
+  }
+
   /**
    * Changes the passphrase associated with this database. The
    * char[] is *not* cleared by this method -- please zero it
@@ -513,4 +1353,50 @@ class Database implements SupportSQLiteDatabase {
       editor.clear();
     }
   }
+
+  /**
+   * What the result cache needs to know about the schema: which names are
+   * real tables, and whether a write to one table can change others, via
+   * triggers or foreign key actions
+   */
+  private static final class Schema {
+    final Set<String> tables;
+    final boolean cascades;
+
+    private Schema(Set<String> tables, boolean cascades) {
+      this.tables=tables;
+      this.cascades=cascades;
+    }
+
+    static Schema load(net.sqlcipher.database.SQLiteDatabase db) {
+      Set<String> tables=new HashSet<>();
+      boolean cascades=false;
+      Cursor c=db.rawQuery("SELECT type, name, sql FROM sqlite_master",
+        NO_BINDINGS);
+
+      try {
+        while (c.moveToNext()) {
+          String type=c.getString(0);
+
+          if ("trigger".equals(type)) {
+            cascades=true;
+          }
+          else if ("table".equals(type)) {
+            String sql=c.getString(2);
+
+            tables.add(c.getString(1).toLowerCase(Locale.US));
+
+            if (sql!=null && sql.toUpperCase(Locale.US).contains("REFERENCES")) {
+              cascades=true;
+            }
+          }
+        }
+      }
+      finally {
+        c.close();
+      }
+
+      return(new Schema(tables, cascades));
+    }
+  }
 }
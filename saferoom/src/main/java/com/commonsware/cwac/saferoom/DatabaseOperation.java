@@ -0,0 +1,26 @@
+/***
+ Copyright (c) 2020 CommonsWare, LLC
+ Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ use this file except in compliance with the License. You may obtain	a copy
+ of the License at http://www.apache.org/licenses/LICENSE-2.0. Unless required
+ by applicable law or agreed to in writing, software distributed under the
+ License is distributed on an "AS IS" BASIS,	WITHOUT	WARRANTIES OR CONDITIONS
+ OF ANY KIND, either express or implied. See the License for the specific
+ language governing permissions and limitations under the License.
+ */
+
+package com.commonsware.cwac.saferoom;
+
+/**
+ * A unit of database work, to be run on a thread owned by SafeRoom, such as
+ * the one behind a GroupCommitWriter.
+ *
+ * @param <T> the type of the operation's result
+ */
+public interface DatabaseOperation<T> {
+  /**
+   * @param db the database to work with
+   * @return the result of the operation, handed to whoever submitted it
+   */
+  T execute(Database db);
+}
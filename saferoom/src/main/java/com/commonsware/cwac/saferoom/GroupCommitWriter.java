@@ -0,0 +1,388 @@
+/***
+ Copyright (c) 2020 CommonsWare, LLC
+ Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ use this file except in compliance with the License. You may obtain	a copy
+ of the License at http://www.apache.org/licenses/LICENSE-2.0. Unless required
+ by applicable law or agreed to in writing, software distributed under the
+ License is distributed on an "AS IS" BASIS,	WITHOUT	WARRANTIES OR CONDITIONS
+ OF ANY KIND, either express or implied. See the License for the specific
+ language governing permissions and limitations under the License.
+ */
+
+package com.commonsware.cwac.saferoom;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs write operations submitted from any thread on one writer thread,
+ * committing them in groups. Each write outside of a transaction pays for
+ * its own journal sync and page encryption; a group of N writes in one
+ * transaction pays for those once. Get one by calling groupCommitWriter()
+ * on Database.
+ *
+ * A group closes when it reaches the maximum group size or when its oldest
+ * operation has waited for the maximum delay, whichever comes first. Each
+ * operation runs inside its own SAVEPOINT, so one that throws is rolled
+ * back and fails its own Future without affecting the rest of its group.
+ * Futures complete only once their group has committed. Operations should
+ * not begin or end transactions of their own.
+ */
+public final class GroupCommitWriter implements Closeable {
+  private static final String SAVEPOINT="saferoom_group_op";
+  // queued by close() to wake the writer thread, rather than interrupting it
+  private static final Pending<Object> STOP=new Pending<>(null);
+  private final Database db;
+  private final int maxGroupSize;
+  private final long maxDelayNanos;
+  private final LinkedBlockingQueue<Pending<?>> queue=new LinkedBlockingQueue<>();
+  private final AtomicLong groupCount=new AtomicLong();
+  private final AtomicLong operationCount=new AtomicLong();
+  private final Object lock=new Object();
+  private final Thread writer;
+  private volatile boolean closed; // set while holding lock
+
+  GroupCommitWriter(Database db, int maxGroupSize, long maxDelay,
+                    TimeUnit unit) {
+    if (maxGroupSize<1) {
+      throw new IllegalArgumentException("Group size must be positive");
+    }
+
+    this.db=db;
+    this.maxGroupSize=maxGroupSize;
+    this.maxDelayNanos=unit.toNanos(maxDelay);
+
+    writer=new Thread("SafeRoom-GroupCommitWriter") {
+      @Override
+      public void run() {
+        runGroups();
+      }
+    };
+    writer.setDaemon(true);
+    writer.start();
+  }
+
+  /**
+   * Queues an operation for the writer thread.
+   *
+   * @param op the work to do
+   * @param <T> the type of the operation's result
+   * @return a Future that completes once the operation's group commits
+   */
+  public <T> Future<T> submit(DatabaseOperation<T> op) {
+    Pending<T> result=new Pending<>(op);
+
+    // checked and queued together, so nothing is queued after the writer
+    // thread has seen that it is closed with an empty queue
+    synchronized(lock) {
+      if (closed) {
+        throw new IllegalStateException("This writer has been closed");
+      }
+
+      queue.add(result);
+    }
+
+    return(result);
+  }
+
+  /**
+   * @return the number of groups committed so far
+   */
+  public long getGroupCount() {
+    return(groupCount.get());
+  }
+
+  /**
+   * @return the number of operations run so far, across all groups
+   */
+  public long getOperationCount() {
+    return(operationCount.get());
+  }
+
+  /**
+   * @return the average number of operations per group, or 0 if no groups
+   * have been committed
+   */
+  public double getAverageGroupSize() {
+    long groups=groupCount.get();
+
+    return(groups==0 ? 0 : (double)operationCount.get()/groups);
+  }
+
+  /**
+   * Stops accepting operations, waits for the queued ones to commit, and
+   * stops the writer thread. This does not close the database.
+   */
+  @Override
+  public void close() {
+    synchronized(lock) {
+      if (!closed) {
+        closed=true;
+        queue.add(STOP);
+      }
+    }
+
+    if (Thread.currentThread()!=writer) {
+      try {
+        writer.join();
+      }
+      catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  private void runGroups() {
+    List<Pending<?>> group=new ArrayList<>(maxGroupSize);
+
+    try {
+      while (!closed || !queue.isEmpty()) {
+        collect(group);
+
+        if (!group.isEmpty()) {
+          commit(group);
+          group.clear();
+        }
+      }
+    }
+    catch (InterruptedException e) {
+      // nobody else should be interrupting this thread, but if they do,
+      // stop, and fail whatever is left, rather than leave it hanging
+    }
+    finally {
+      IllegalStateException stopped=
+        new IllegalStateException("The writer thread stopped");
+
+      for (Pending<?> op : group) {
+        op.failed(stopped);
+        op.publish();
+      }
+
+      Pending<?> op;
+
+      while ((op=queue.poll())!=null) {
+        if (op!=STOP) {
+          op.failed(stopped);
+          op.publish();
+        }
+      }
+    }
+  }
+
+  private void collect(List<Pending<?>> group) throws InterruptedException {
+    Pending<?> first=queue.take();
+
+    if (first==STOP) {
+      return;
+    }
+
+    group.add(first);
+
+    long deadline=System.nanoTime()+maxDelayNanos;
+
+    while (group.size()<maxGroupSize) {
+      Pending<?> next=queue.poll();
+
+      if (next==null) {
+        long remaining=deadline-System.nanoTime();
+
+        if (remaining<=0 || closed) {
+          break;
+        }
+
+        next=queue.poll(remaining, TimeUnit.NANOSECONDS);
+      }
+
+      if (next==null || next==STOP) {
+        break;
+      }
+
+      group.add(next);
+    }
+  }
+
+  private void commit(List<Pending<?>> group) {
+    Throwable groupFailure=null;
+
+    try {
+      db.beginTransaction();
+
+      try {
+        for (Pending<?> op : group) {
+          if (op.start()) {
+            run(op);
+          }
+        }
+
+        db.setTransactionSuccessful();
+      }
+      finally {
+        db.endTransaction();
+      }
+    }
+    catch (Throwable t) {
+      groupFailure=t;
+    }
+
+    if (groupFailure==null) {
+      groupCount.incrementAndGet();
+      operationCount.addAndGet(group.size());
+    }
+
+    for (Pending<?> op : group) {
+      if (groupFailure!=null) {
+        op.failed(groupFailure);
+      }
+
+      op.publish();
+    }
+  }
+
+  private void run(Pending<?> op) {
+    db.execSQL("SAVEPOINT "+SAVEPOINT);
+
+    try {
+      op.run(db);
+    }
+    catch (Throwable t) {
+      db.execSQL("ROLLBACK TO "+SAVEPOINT);
+      op.failed(t);
+    }
+    finally {
+      db.execSQL("RELEASE "+SAVEPOINT);
+    }
+  }
+
+  /**
+   * A queued operation, whose outcome is held back until its group has
+   * committed.
+   */
+  private static final class Pending<T> implements Future<T> {
+    private final DatabaseOperation<T> op;
+    private final CountDownLatch done=new CountDownLatch(1);
+    private T staged;
+    private Throwable stagedFailure;
+    private T result;
+    private Throwable failure;
+    private boolean cancelled;
+    private boolean started;
+
+    Pending(DatabaseOperation<T> op) {
+      this.op=op;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * NOTE: an operation can only be cancelled before the writer thread
+     * starts it; after that, its changes are part of the group's
+     * transaction, and the writer thread is never interrupted
+     */
+    @Override
+    public synchronized boolean cancel(boolean mayInterruptIfRunning) {
+      if (started || done.getCount()==0) {
+        return(false);
+      }
+
+      cancelled=true;
+      done.countDown();
+
+      return(true);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized boolean isCancelled() {
+      return(cancelled);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isDone() {
+      return(done.getCount()==0);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public T get() throws InterruptedException, ExecutionException {
+      done.await();
+
+      return(report());
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public T get(long timeout, TimeUnit unit)
+      throws InterruptedException, ExecutionException, TimeoutException {
+      if (!done.await(timeout, unit)) {
+        throw new TimeoutException();
+      }
+
+      return(report());
+    }
+
+    /**
+     * Called on the writer thread just before running the operation
+     *
+     * @return true if the operation should run, false if it was cancelled
+     */
+    synchronized boolean start() {
+      if (cancelled) {
+        return(false);
+      }
+
+      started=true;
+
+      return(true);
+    }
+
+    // called only on the writer thread
+    void run(Database db) {
+      staged=op.execute(db);
+    }
+
+    // called only on the writer thread
+    void failed(Throwable t) {
+      if (stagedFailure==null) {
+        stagedFailure=t;
+      }
+    }
+
+    synchronized void publish() {
+      if (done.getCount()>0) {
+        result=staged;
+        failure=stagedFailure;
+        done.countDown();
+      }
+    }
+
+    private synchronized T report() throws ExecutionException {
+      if (cancelled) {
+        throw new CancellationException();
+      }
+
+      if (failure!=null) {
+        throw new ExecutionException(failure);
+      }
+
+      return(result);
+    }
+  }
+}
@@ -24,6 +24,11 @@ import net.sqlcipher.database.SQLiteDatabase;
 import net.sqlcipher.database.SQLiteDatabaseHook;
 import net.sqlcipher.database.SQLiteException;
 import net.sqlcipher.database.SQLiteOpenHelper;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 import androidx.annotation.RequiresApi;
 import androidx.sqlite.db.SupportSQLiteDatabase;
 import androidx.sqlite.db.SupportSQLiteOpenHelper;
@@ -35,27 +40,37 @@ class Helper implements SupportSQLiteOpenHelper {
   private final OpenHelper delegate;
   private final byte[] passphrase;
   private final boolean clearPassphrase;
+  private FutureTask<SupportSQLiteDatabase> pendingOpen;
+  private volatile Database openDb;
 
   Helper(Context context, String name, Callback callback, byte[] passphrase,
          SafeHelperFactory.Options options) {
-    SQLiteDatabase.loadLibs(context);
+    long loadLibsNanos=SQLCipherLoader.load(context);
+
     clearPassphrase=options.clearPassphrase;
-    delegate=createDelegate(context, name, callback, options);
+    delegate=createDelegate(context, name, callback, options, loadLibsNanos);
     this.passphrase=passphrase;
   }
 
   private OpenHelper createDelegate(Context context, String name,
-                                    final Callback callback, SafeHelperFactory.Options options) {
+                                    final Callback callback, SafeHelperFactory.Options options,
+                                    long loadLibsNanos) {
     final Database[] dbRef = new Database[1];
+    OpenTrace.Recorder trace = null;
+
+    if (options.openTraceListener != null) {
+      trace = new OpenTrace.Recorder();
+      trace.setLoadLibsNanos(loadLibsNanos);
+    }
 
-    return(new OpenHelper(context, name, dbRef, callback, options));
+    return(new OpenHelper(context, name, dbRef, callback, options, trace));
   }
 
   /**
    * {@inheritDoc}
    */
   @Override
-  synchronized public String getDatabaseName() {
+  public String getDatabaseName() {
     return delegate.getDatabaseName();
   }
 
@@ -73,10 +88,85 @@ class Helper implements SupportSQLiteOpenHelper {
    *
    * NOTE: by default, this implementation zeros out the passphrase after opening the
    * database
+   *
+   * NOTE: if prewarm() has been called, this joins that open rather than starting
+   * another one
+   *
+   * NOTE: once the database is open, this returns it without locking
    */
   @Override
-  synchronized public SupportSQLiteDatabase getWritableDatabase() {
-    SupportSQLiteDatabase result;
+  public SupportSQLiteDatabase getWritableDatabase() {
+    Database db = openDb;
+
+    if (db != null && db.isOpen()) {
+      return(db);
+    }
+
+    synchronized(this) {
+      awaitPendingOpen(true);
+
+      return(openDatabase());
+    }
+  }
+
+  /**
+   * Opens the database on the supplied Executor. A later getWritableDatabase()
+   * call waits for this open to complete, rather than starting another one.
+   *
+   * @param executor where the open should be done
+   * @return a Future for the opened database
+   */
+  synchronized Future<SupportSQLiteDatabase> prewarm(Executor executor) {
+    if (pendingOpen == null) {
+      pendingOpen = new FutureTask<>(new Callable<SupportSQLiteDatabase>() {
+        @Override
+        public SupportSQLiteDatabase call() {
+          return(openDatabase());
+        }
+      });
+      executor.execute(pendingOpen);
+    }
+
+    return(pendingOpen);
+  }
+
+  private void awaitPendingOpen(boolean rethrow) {
+    FutureTask<SupportSQLiteDatabase> pending = pendingOpen;
+
+    if (pending != null) {
+      try {
+        pending.get();
+      }
+      catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+
+        throw new IllegalStateException("Interrupted while waiting for the database to open", e);
+      }
+      catch (ExecutionException e) {
+        pendingOpen = null;
+
+        if (rethrow) {
+          Throwable cause = e.getCause();
+
+          if (cause instanceof RuntimeException) {
+            throw (RuntimeException)cause;
+          }
+          else if (cause instanceof Error) {
+            throw (Error)cause;
+          }
+
+          throw new IllegalStateException("Could not open the database", cause);
+        }
+      }
+
+      pendingOpen = null;
+    }
+  }
+
+  // not synchronized on this Helper, so prewarm() can run it in the background
+  // while getWritableDatabase() holds the lock and waits on the result
+  private Database openDatabase() {
+    Database result;
 
     try {
       result = delegate.getWritableSupportDatabase(passphrase);
@@ -108,6 +198,8 @@ class Helper implements SupportSQLiteOpenHelper {
       }
     }
 
+    openDb = result;
+
     return(result);
   }
 
@@ -127,29 +219,34 @@ class Helper implements SupportSQLiteOpenHelper {
    */
   @Override
   synchronized public void close() {
+    awaitPendingOpen(false);
+    openDb = null;
     delegate.close();
   }
 
   static class OpenHelper extends SQLiteOpenHelper {
     private final Database[] dbRef;
+    private final SafeHelperFactory.Options options;
+    private final OpenTrace.Recorder trace;
     private volatile Callback callback;
     private volatile boolean migrated;
+    private boolean opened;
 
     OpenHelper(Context context, String name, Database[] dbRef, Callback callback,
-               SafeHelperFactory.Options options) {
+               SafeHelperFactory.Options options, OpenTrace.Recorder trace) {
       super(context, name, null, callback.version, new SQLiteDatabaseHook() {
         @Override
         public void preKey(SQLiteDatabase database) {
-          if (options!=null && options.preKeySql!=null) {
-            database.rawExecSQL(options.preKeySql);
-          }
+          lap(trace, OpenTrace.Phase.NATIVE_OPEN);
+          preKey(options, database);
+          lap(trace, OpenTrace.Phase.PRE_KEY);
         }
 
         @Override
         public void postKey(SQLiteDatabase database) {
-          if (options!=null && options.postKeySql!=null) {
-            database.rawExecSQL(options.postKeySql);
-          }
+          lap(trace, OpenTrace.Phase.KEY);
+          postKey(options, database);
+          lap(trace, OpenTrace.Phase.POST_KEY);
         }
       }, new DatabaseErrorHandler() {
         @Override
@@ -164,26 +261,84 @@ class Helper implements SupportSQLiteOpenHelper {
 
       this.dbRef = dbRef;
       this.callback=callback;
+      this.options=options;
+      this.trace=trace;
     }
 
-    synchronized SupportSQLiteDatabase getWritableSupportDatabase(byte[] passphrase) {
+    private static void preKey(SafeHelperFactory.Options options, SQLiteDatabase database) {
+      if (options!=null && options.preKeySql!=null) {
+        database.rawExecSQL(options.preKeySql);
+      }
+    }
+
+    private static void postKey(SafeHelperFactory.Options options, SQLiteDatabase database) {
+      if (options!=null && options.postKeySql!=null) {
+        database.rawExecSQL(options.postKeySql);
+      }
+    }
+
+    private static void lap(OpenTrace.Recorder trace, OpenTrace.Phase phase) {
+      if (trace != null) {
+        trace.lap(phase);
+      }
+    }
+
+    synchronized Database getWritableSupportDatabase(byte[] passphrase) {
       migrated = false;
+      opened = false;
+
+      if (trace != null) {
+        trace.start();
+      }
 
       SQLiteDatabase db=super.getWritableDatabase(passphrase);
+      Database wrappedDb = getWrappedDb(db);
 
       if (migrated) {
-        close();
-        return getWritableSupportDatabase(passphrase);
+        // Google's helper closes and reopens the database here, which would
+        // repeat the native open and key derivation; instead, drop what we
+        // cached against the old schema and deliver the skipped onOpen()
+        migrated = false;
+        wrappedDb.clearCaches();
+        lap(trace, OpenTrace.Phase.OTHER);
+        callback.onOpen(wrappedDb);
+        lap(trace, OpenTrace.Phase.OPEN);
+      }
+
+      // readers need the passphrase, so they can only be opened along with
+      // the primary connection, before the passphrase gets cleared
+      if (opened && options.readConnectionPoolSize > 0 && !wrappedDb.hasReaders()
+        && db.isWriteAheadLoggingEnabled()) {
+        wrappedDb.attachReaders(ReaderPool.open(db.getPath(), passphrase,
+          options.readConnectionPoolSize, new SQLiteDatabaseHook() {
+            @Override
+            public void preKey(SQLiteDatabase database) {
+              OpenHelper.preKey(options, database);
+            }
+
+            @Override
+            public void postKey(SQLiteDatabase database) {
+              OpenHelper.postKey(options, database);
+            }
+          }));
       }
 
-      return getWrappedDb(db);
+      if (trace != null) {
+        OpenTrace result = trace.finish(getDatabaseName());
+
+        if (result != null) {
+          options.openTraceListener.onOpenTraced(result);
+        }
+      }
+
+      return wrappedDb;
     }
 
     synchronized Database getWrappedDb(SQLiteDatabase db) {
       Database wrappedDb = dbRef[0];
 
       if (wrappedDb == null) {
-        wrappedDb = new Database(db);
+        wrappedDb = new Database(db, options);
         dbRef[0] = wrappedDb;
       }
 
@@ -195,7 +350,9 @@ class Helper implements SupportSQLiteOpenHelper {
      */
     @Override
     public void onCreate(SQLiteDatabase sqLiteDatabase) {
+      lap(trace, OpenTrace.Phase.OTHER);
       callback.onCreate(getWrappedDb(sqLiteDatabase));
+      lap(trace, OpenTrace.Phase.CREATE);
     }
 
     /**
@@ -204,7 +361,9 @@ class Helper implements SupportSQLiteOpenHelper {
     @Override
     public void onUpgrade(SQLiteDatabase sqLiteDatabase, int oldVersion, int newVersion) {
       migrated = true;
+      lap(trace, OpenTrace.Phase.OTHER);
       callback.onUpgrade(getWrappedDb(sqLiteDatabase), oldVersion, newVersion);
+      lap(trace, OpenTrace.Phase.UPGRADE);
     }
 
     /**
@@ -212,7 +371,12 @@ class Helper implements SupportSQLiteOpenHelper {
      */
     @Override
     public void onConfigure(SQLiteDatabase db) {
+      // SQLCipher derives the key on first use, which is when it verifies the
+      // key, between postKey() and here
+      lap(trace, OpenTrace.Phase.KEY_DERIVATION);
+      opened = true;
       callback.onConfigure(getWrappedDb(db));
+      lap(trace, OpenTrace.Phase.CONFIGURE);
     }
 
     /**
@@ -221,7 +385,9 @@ class Helper implements SupportSQLiteOpenHelper {
     @Override
     public void onDowngrade(SQLiteDatabase db, int oldVersion, int newVersion) {
       migrated = true;
+      lap(trace, OpenTrace.Phase.OTHER);
       callback.onDowngrade(getWrappedDb(db), oldVersion, newVersion);
+      lap(trace, OpenTrace.Phase.DOWNGRADE);
     }
 
     /**
@@ -230,8 +396,11 @@ class Helper implements SupportSQLiteOpenHelper {
     @Override
     public void onOpen(SQLiteDatabase db) {
       if (!migrated) {
-        // from Google: "if we've migrated, we'll re-open the db so we  should not call the callback."
+        // if we've migrated, getWritableSupportDatabase() calls onOpen() once
+        // the migration is complete
+        lap(trace, OpenTrace.Phase.OTHER);
         callback.onOpen(getWrappedDb(db));
+        lap(trace, OpenTrace.Phase.OPEN);
       }
     }
 
@@ -240,6 +409,10 @@ class Helper implements SupportSQLiteOpenHelper {
      */
     @Override
     public synchronized void close() {
+      if (dbRef[0] != null) {
+        dbRef[0].closeCaches();
+      }
+
       super.close();
       dbRef[0] = null;
     }
@@ -0,0 +1,202 @@
+/***
+ Copyright (c) 2020 CommonsWare, LLC
+ Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ use this file except in compliance with the License. You may obtain	a copy
+ of the License at http://www.apache.org/licenses/LICENSE-2.0. Unless required
+ by applicable law or agreed to in writing, software distributed under the
+ License is distributed on an "AS IS" BASIS,	WITHOUT	WARRANTIES OR CONDITIONS
+ OF ANY KIND, either express or implied. See the License for the specific
+ language governing permissions and limitations under the License.
+ */
+
+package com.commonsware.cwac.saferoom;
+
+import android.database.Cursor;
+import androidx.sqlite.db.SimpleSQLiteQuery;
+import androidx.sqlite.db.SupportSQLiteQuery;
+
+/**
+ * Pages through the rows of a table by seeking on a unique ordering key,
+ * rather than by LIMIT/OFFSET. An OFFSET query has to step through (and so
+ * decrypt) every row that it skips, so deeper pages get slower; a query
+ * with WHERE key > ? can start from the index entry for that key, so every
+ * page costs about the same. Get one by calling keysetPager() on Database.
+ *
+ * The key comparison goes straight into the WHERE clause on the table,
+ * next to your selection, so SQLite can satisfy it from the index on the
+ * key column instead of having to flatten a subquery first.
+ *
+ * The load methods run the page queries on this database. The query
+ * methods return them instead, for a Room DAO method annotated with
+ * RawQuery, so an ItemKeyedDataSource from the Paging library can load
+ * entities from them: getKey() to keyOf() or the entity's key field,
+ * loadInitial() to queryInitial(), loadAfter() to queryAfter(), and
+ * loadBefore() to queryBefore().
+ */
+public final class KeysetPager {
+  private final Database db;
+  private final String keyColumn;
+  private final Object[] selectionArgs;
+  private final int pageSize;
+  private final String firstSql;
+  private final String atSql;
+  private final String afterSql;
+  private final String beforeSql;
+
+  KeysetPager(Database db, String table, String[] columns, String selection,
+              Object[] selectionArgs, String keyColumn, int pageSize) {
+    if (pageSize<1) {
+      throw new IllegalArgumentException("Page size must be positive");
+    }
+
+    this.db=db;
+    this.keyColumn=keyColumn;
+    this.selectionArgs=(selectionArgs==null ? new Object[0] : selectionArgs);
+    this.pageSize=pageSize;
+
+    String select="SELECT "+projection(columns, keyColumn)+" FROM "+table;
+    boolean filtered=(selection!=null && !selection.isEmpty());
+    String where=(filtered ? " WHERE ("+selection+") AND " : " WHERE ");
+
+    firstSql=select+(filtered ? " WHERE "+selection : "")+" ORDER BY "+
+      keyColumn+" LIMIT ?";
+    atSql=select+where+keyColumn+">=? ORDER BY "+keyColumn+" LIMIT ?";
+    afterSql=select+where+keyColumn+">? ORDER BY "+keyColumn+" LIMIT ?";
+
+    // the outer query only puts at most one page back in key order
+    beforeSql="SELECT * FROM ("+select+where+keyColumn+"<? ORDER BY "+
+      keyColumn+" DESC LIMIT ?) ORDER BY "+keyColumn;
+  }
+
+  /**
+   * @return the number of rows in each page
+   */
+  public int getPageSize() {
+    return(pageSize);
+  }
+
+  /**
+   * Loads the first page, or the page starting at a key.
+   *
+   * @param initialKey key of the first row to include, or null to start at
+   *                   the beginning
+   * @return a Cursor with up to getPageSize() rows, in key order
+   */
+  public Cursor loadInitial(Object initialKey) {
+    return(db.query(queryInitial(initialKey)));
+  }
+
+  /**
+   * Loads the page that follows a key.
+   *
+   * @param key key of the last row of the previous page
+   * @return a Cursor with up to getPageSize() rows, in key order
+   */
+  public Cursor loadAfter(Object key) {
+    return(db.query(queryAfter(key)));
+  }
+
+  /**
+   * Loads the page that precedes a key.
+   *
+   * @param key key of the first row of the following page
+   * @return a Cursor with up to getPageSize() rows, in key order
+   */
+  public Cursor loadBefore(Object key) {
+    return(db.query(queryBefore(key)));
+  }
+
+  /**
+   * @param initialKey key of the first row to include, or null to start at
+   *                   the beginning
+   * @return the query that loadInitial() runs
+   */
+  public SupportSQLiteQuery queryInitial(Object initialKey) {
+    if (initialKey==null) {
+      return(new SimpleSQLiteQuery(firstSql, args(pageSize)));
+    }
+
+    return(new SimpleSQLiteQuery(atSql, args(initialKey, pageSize)));
+  }
+
+  /**
+   * @param key key of the last row of the previous page
+   * @return the query that loadAfter() runs
+   */
+  public SupportSQLiteQuery queryAfter(Object key) {
+    return(new SimpleSQLiteQuery(afterSql, args(key, pageSize)));
+  }
+
+  /**
+   * @param key key of the first row of the following page
+   * @return the query that loadBefore() runs
+   */
+  public SupportSQLiteQuery queryBefore(Object key) {
+    return(new SimpleSQLiteQuery(beforeSql, args(key, pageSize)));
+  }
+
+  /**
+   * Returns the key of the Cursor's current row, to hand to loadAfter() or
+   * loadBefore().
+   *
+   * @param c a Cursor returned by this pager, positioned on a row
+   * @return the value of the key column for that row
+   */
+  public Object keyOf(Cursor c) {
+    int column=c.getColumnIndexOrThrow(keyColumn);
+
+    switch (c.getType(column)) {
+      case Cursor.FIELD_TYPE_NULL:
+        return(null);
+
+      case Cursor.FIELD_TYPE_INTEGER:
+        return(c.getLong(column));
+
+      case Cursor.FIELD_TYPE_FLOAT:
+        return(c.getDouble(column));
+
+      case Cursor.FIELD_TYPE_BLOB:
+        return(c.getBlob(column));
+
+      default:
+        return(c.getString(column));
+    }
+  }
+
+  private Object[] args(Object... extras) {
+    Object[] result=new Object[selectionArgs.length+extras.length];
+
+    System.arraycopy(selectionArgs, 0, result, 0, selectionArgs.length);
+    System.arraycopy(extras, 0, result, selectionArgs.length, extras.length);
+
+    return(result);
+  }
+
+  // the key has to come back in every row, for keyOf() and for putting
+  // loadBefore() pages back in order
+  private static String projection(String[] columns, String keyColumn) {
+    if (columns==null || columns.length==0) {
+      return("*");
+    }
+
+    boolean hasKey=false;
+    StringBuilder result=new StringBuilder();
+
+    for (String column : columns) {
+      hasKey=hasKey || column.equalsIgnoreCase(keyColumn);
+
+      if (result.length()>0) {
+        result.append(", ");
+      }
+
+      result.append(column);
+    }
+
+    if (!hasKey) {
+      throw new IllegalArgumentException("The columns must include the key column, "+
+        keyColumn);
+    }
+
+    return(result.toString());
+  }
+}
@@ -0,0 +1,310 @@
+/***
+ Copyright (c) 2020 CommonsWare, LLC
+ Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ use this file except in compliance with the License. You may obtain	a copy
+ of the License at http://www.apache.org/licenses/LICENSE-2.0. Unless required
+ by applicable law or agreed to in writing, software distributed under the
+ License is distributed on an "AS IS" BASIS,	WITHOUT	WARRANTIES OR CONDITIONS
+ OF ANY KIND, either express or implied. See the License for the specific
+ language governing permissions and limitations under the License.
+ */
+
+package com.commonsware.cwac.saferoom;
+
+import java.io.Closeable;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs database work in two lanes, each with its own thread, so that UI
+ * reads are not stuck in line behind background sync. Get one by calling
+ * laneScheduler() on Database.
+ *
+ * Work in the INTERACTIVE lane never queues behind BACKGROUND work; at
+ * most, it waits for the connection. To keep that wait short, background
+ * batches run their chunks in one transaction, but check between chunks
+ * whether interactive work is waiting. If so, the batch commits what it
+ * has so far, via yieldIfContendedSafely() where possible, and lets the
+ * interactive work run before it carries on with the next chunk.
+ */
+public final class LaneScheduler implements Closeable {
+  /**
+   * Which lane a piece of work belongs to.
+   */
+  public enum Lane {
+    INTERACTIVE, BACKGROUND
+  }
+
+  private static final long MAX_YIELD_WAIT_MS=1000;
+  private final Database db;
+  private final ExecutorService interactive;
+  private final ExecutorService background;
+  private final LaneStats interactiveStats=new LaneStats();
+  private final LaneStats backgroundStats=new LaneStats();
+  private final Object interactiveLock=new Object();
+  private int interactivePending;
+
+  LaneScheduler(Database db) {
+    this.db=db;
+    interactive=Executors.newSingleThreadExecutor(new LaneThreadFactory(Lane.INTERACTIVE));
+    background=Executors.newSingleThreadExecutor(new LaneThreadFactory(Lane.BACKGROUND));
+  }
+
+  /**
+   * Queues an operation in a lane.
+   *
+   * @param lane the lane to run the operation in
+   * @param op the work to do
+   * @param <T> the type of the operation's result
+   * @return a Future for the operation's result
+   */
+  public <T> Future<T> submit(final Lane lane, final DatabaseOperation<T> op) {
+    final long queuedAt=System.nanoTime();
+
+    if (lane==Lane.BACKGROUND) {
+      return(background.submit(new Callable<T>() {
+        @Override
+        public T call() {
+          backgroundStats.recordDispatch(System.nanoTime()-queuedAt);
+
+          return(op.execute(db));
+        }
+      }));
+    }
+
+    synchronized(interactiveLock) {
+      interactivePending++;
+    }
+
+    try {
+      return(interactive.submit(new Callable<T>() {
+        @Override
+        public T call() {
+          interactiveStats.recordDispatch(System.nanoTime()-queuedAt);
+
+          try {
+            return(op.execute(db));
+          }
+          finally {
+            finishedInteractive();
+          }
+        }
+      }));
+    }
+    catch (RuntimeException e) {
+      finishedInteractive();
+      throw e;
+    }
+  }
+
+  /**
+   * Queues a batch of operations in the BACKGROUND lane. The chunks run in
+   * order inside of a transaction, which is committed early whenever
+   * interactive work is waiting. If a chunk throws, the work since the last
+   * commit is rolled back and the remaining chunks are skipped.
+   *
+   * @param chunks the pieces of the batch; keep each one small, as the
+   *               batch can only yield between them
+   * @return a Future for the number of chunks run
+   */
+  public Future<Integer> submitBatch(final List<? extends DatabaseOperation<?>> chunks) {
+    final long queuedAt=System.nanoTime();
+
+    return(background.submit(new Callable<Integer>() {
+      @Override
+      public Integer call() {
+        backgroundStats.recordDispatch(System.nanoTime()-queuedAt);
+
+        return(runBatch(chunks));
+      }
+    }));
+  }
+
+  /**
+   * @param lane a lane
+   * @return queue-time counters for that lane
+   */
+  public LaneStats getStats(Lane lane) {
+    return(lane==Lane.INTERACTIVE ? interactiveStats : backgroundStats);
+  }
+
+  /**
+   * Stops accepting work and waits for queued work to finish. This does
+   * not close the database.
+   */
+  @Override
+  public void close() {
+    interactive.shutdown();
+    background.shutdown();
+
+    try {
+      interactive.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+      background.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private int runBatch(List<? extends DatabaseOperation<?>> chunks) {
+    int count=0;
+
+    db.beginTransaction();
+
+    try {
+      for (DatabaseOperation<?> chunk : chunks) {
+        if (count>0 && hasInteractiveWork()) {
+          yieldToInteractive();
+        }
+
+        chunk.execute(db);
+        count++;
+      }
+
+      db.setTransactionSuccessful();
+    }
+    finally {
+      db.endTransaction();
+    }
+
+    return(count);
+  }
+
+  private void yieldToInteractive() {
+    backgroundStats.recordYield();
+
+    // if the interactive thread is already blocked on the connection, this
+    // commits, lets it in, and starts a fresh transaction for us
+    if (db.yieldIfContendedSafely()) {
+      return;
+    }
+
+    // otherwise, it has not gotten that far yet, so commit and step aside
+    // until the interactive lane drains
+    db.setTransactionSuccessful();
+    db.endTransaction();
+
+    try {
+      synchronized(interactiveLock) {
+        long deadline=System.currentTimeMillis()+MAX_YIELD_WAIT_MS;
+        long remaining=MAX_YIELD_WAIT_MS;
+
+        while (interactivePending>0 && remaining>0) {
+          interactiveLock.wait(remaining);
+          remaining=deadline-System.currentTimeMillis();
+        }
+      }
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    finally {
+      db.beginTransaction();
+    }
+  }
+
+  private boolean hasInteractiveWork() {
+    synchronized(interactiveLock) {
+      return(interactivePending>0);
+    }
+  }
+
+  private void finishedInteractive() {
+    synchronized(interactiveLock) {
+      interactivePending--;
+      interactiveLock.notifyAll();
+    }
+  }
+
+  /**
+   * Counters for one lane of a LaneScheduler. Queue time runs from when the
+   * work was submitted to when its lane's thread picked it up.
+   */
+  public static final class LaneStats {
+    private final AtomicLong dispatchCount=new AtomicLong();
+    private final AtomicLong totalQueueNanos=new AtomicLong();
+    private final AtomicLong maxQueueNanos=new AtomicLong();
+    private final AtomicLong yieldCount=new AtomicLong();
+
+    private LaneStats() {
+      // created by LaneScheduler
+    }
+
+    /**
+     * @return the number of operations and batches started in this lane
+     */
+    public long getDispatchCount() {
+      return(dispatchCount.get());
+    }
+
+    /**
+     * @return the total time spent queued, across all dispatched work
+     */
+    public long getTotalQueueNanos() {
+      return(totalQueueNanos.get());
+    }
+
+    /**
+     * @return the average time spent queued, or 0 if nothing has been
+     * dispatched
+     */
+    public double getAverageQueueNanos() {
+      long count=dispatchCount.get();
+
+      return(count==0 ? 0 : (double)totalQueueNanos.get()/count);
+    }
+
+    /**
+     * @return the longest time that any work spent queued
+     */
+    public long getMaxQueueNanos() {
+      return(maxQueueNanos.get());
+    }
+
+    /**
+     * @return the number of times that batches in this lane yielded to
+     * interactive work
+     */
+    public long getYieldCount() {
+      return(yieldCount.get());
+    }
+
+    void recordDispatch(long queueNanos) {
+      dispatchCount.incrementAndGet();
+      totalQueueNanos.addAndGet(queueNanos);
+
+      long max=maxQueueNanos.get();
+
+      while (queueNanos>max && !maxQueueNanos.compareAndSet(max, queueNanos)) {
+        max=maxQueueNanos.get();
+      }
+    }
+
+    void recordYield() {
+      yieldCount.incrementAndGet();
+    }
+  }
+
+  private static final class LaneThreadFactory implements ThreadFactory {
+    private final Lane lane;
+
+    LaneThreadFactory(Lane lane) {
+      this.lane=lane;
+    }
+
+    @Override
+    public Thread newThread(Runnable r) {
+      Thread result=new Thread(r, "SafeRoom-"+lane.name());
+
+      result.setDaemon(true);
+
+      return(result);
+    }
+  }
+}
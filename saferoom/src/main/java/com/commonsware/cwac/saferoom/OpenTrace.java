@@ -0,0 +1,218 @@
+/***
+ Copyright (c) 2020 CommonsWare, LLC
+ Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ use this file except in compliance with the License. You may obtain	a copy
+ of the License at http://www.apache.org/licenses/LICENSE-2.0. Unless required
+ by applicable law or agreed to in writing, software distributed under the
+ License is distributed on an "AS IS" BASIS,	WITHOUT	WARRANTIES OR CONDITIONS
+ OF ANY KIND, either express or implied. See the License for the specific
+ language governing permissions and limitations under the License.
+ */
+
+package com.commonsware.cwac.saferoom;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Timed breakdown of one open of a database, delivered to the
+ * OpenTrace.Listener supplied via SafeHelperFactory.Options.
+ */
+public final class OpenTrace {
+  /**
+   * The steps of opening a database, in the order that they occur
+   */
+  public enum Phase {
+    /**
+     * Loading the SQLCipher native libraries
+     */
+    LOAD_LIBS,
+
+    /**
+     * Opening the database file, before the preKey hook
+     */
+    NATIVE_OPEN,
+
+    /**
+     * Executing the pre-key SQL
+     */
+    PRE_KEY,
+
+    /**
+     * Handing the key to SQLCipher
+     */
+    KEY,
+
+    /**
+     * Executing the post-key SQL
+     */
+    POST_KEY,
+
+    /**
+     * Deriving the key and verifying it against the database, which SQLCipher
+     * defers until the database is first read after keying
+     */
+    KEY_DERIVATION,
+
+    /**
+     * The onConfigure() callback
+     */
+    CONFIGURE,
+
+    /**
+     * The onCreate() callback
+     */
+    CREATE,
+
+    /**
+     * The onUpgrade() callback
+     */
+    UPGRADE,
+
+    /**
+     * The onDowngrade() callback
+     */
+    DOWNGRADE,
+
+    /**
+     * The onOpen() callback
+     */
+    OPEN,
+
+    /**
+     * Everything else, such as version checks and the transaction around
+     * onCreate(), onUpgrade(), and onDowngrade()
+     */
+    OTHER
+  }
+
+  /**
+   * Receives an OpenTrace each time a database is opened. This is called on
+   * the thread doing the open, so please return quickly.
+   */
+  public interface Listener {
+    void onOpenTraced(OpenTrace trace);
+  }
+
+  private final String databaseName;
+  private final long[] nanos;
+  private final int[] counts;
+
+  private OpenTrace(String databaseName, long[] nanos, int[] counts) {
+    this.databaseName=databaseName;
+    this.nanos=nanos;
+    this.counts=counts;
+  }
+
+  /**
+   * @return the name of the database that was opened
+   */
+  public String getDatabaseName() {
+    return(databaseName);
+  }
+
+  /**
+   * @param phase a step of the open
+   * @return the time spent in that step, in nanoseconds, or 0 if the step
+   * did not occur
+   */
+  public long getNanos(Phase phase) {
+    return(nanos[phase.ordinal()]);
+  }
+
+  /**
+   * @param phase a step of the open
+   * @return how many times that step ran during this open, such as 1 for
+   * KEY_DERIVATION when the key was derived once, or 0 if the step did not
+   * occur; OTHER counts each stretch of work between the other steps
+   */
+  public int getCount(Phase phase) {
+    return(counts[phase.ordinal()]);
+  }
+
+  /**
+   * @return the time spent in all steps, in nanoseconds
+   */
+  public long getTotalNanos() {
+    long result=0;
+
+    for (long n : nanos) {
+      result+=n;
+    }
+
+    return(result);
+  }
+
+  /**
+   * @return the time spent in each step, in nanoseconds, keyed by the
+   * step's Phase name, in the order that the steps occur
+   */
+  public Map<String, Long> toMap() {
+    Map<String, Long> result=new LinkedHashMap<>();
+
+    for (Phase phase : Phase.values()) {
+      result.put(phase.name(), nanos[phase.ordinal()]);
+    }
+
+    return(Collections.unmodifiableMap(result));
+  }
+
+  @Override
+  public String toString() {
+    return("OpenTrace{"+databaseName+", "+toMap()+"}");
+  }
+
+  /**
+   * Accumulates the time between successive laps, charging each to a Phase
+   */
+  static class Recorder {
+    private final long[] nanos=new long[Phase.values().length];
+    private final int[] counts=new int[Phase.values().length];
+    private long loadLibsNanos;
+    private long mark;
+    private boolean opening;
+
+    void setLoadLibsNanos(long loadLibsNanos) {
+      this.loadLibsNanos=loadLibsNanos;
+    }
+
+    void start() {
+      Arrays.fill(nanos, 0);
+      Arrays.fill(counts, 0);
+      opening=false;
+      mark=System.nanoTime();
+    }
+
+    void lap(Phase phase) {
+      long now=System.nanoTime();
+
+      nanos[phase.ordinal()]+=now-mark;
+      counts[phase.ordinal()]++;
+      mark=now;
+
+      if (phase==Phase.NATIVE_OPEN) {
+        opening=true;
+      }
+    }
+
+    /**
+     * @return the trace of the open since start(), or null if start() did not
+     * lead to the database being opened
+     */
+    OpenTrace finish(String databaseName) {
+      if (!opening) {
+        return(null);
+      }
+
+      lap(Phase.OTHER);
+      opening=false;
+      nanos[Phase.LOAD_LIBS.ordinal()]=loadLibsNanos;
+      counts[Phase.LOAD_LIBS.ordinal()]=(loadLibsNanos>0 ? 1 : 0);
+      loadLibsNanos=0;
+
+      return(new OpenTrace(databaseName, nanos.clone(), counts.clone()));
+    }
+  }
+}
@@ -0,0 +1,506 @@
+/***
+ Copyright (c) 2020 CommonsWare, LLC
+ Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ use this file except in compliance with the License. You may obtain	a copy
+ of the License at http://www.apache.org/licenses/LICENSE-2.0. Unless required
+ by applicable law or agreed to in writing, software distributed under the
+ License is distributed on an "AS IS" BASIS,	WITHOUT	WARRANTIES OR CONDITIONS
+ OF ANY KIND, either express or implied. See the License for the specific
+ language governing permissions and limitations under the License.
+ */
+
+package com.commonsware.cwac.saferoom;
+
+import android.database.CharArrayBuffer;
+import android.database.Cursor;
+import android.database.CursorIndexOutOfBoundsException;
+import android.database.CursorWrapper;
+import android.database.MatrixCursor;
+import java.util.concurrent.Executor;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.TimeUnit;
+import androidx.sqlite.db.SupportSQLiteQuery;
+
+/**
+ * Forward-only Cursor that copies rows out of a forward-only query on a
+ * background thread, one chunk at a time, so the next chunk gets stepped
+ * and decrypted while the caller works through the current one.
+ *
+ * Chunks are handed over through a SynchronousQueue, so the worker cannot
+ * get more than one chunk ahead: at most two chunks are in memory, the one
+ * being read and the one being filled. The worker closes the query and
+ * stops once it has handed over the last chunk, or within a fraction of a
+ * second of this Cursor being closed. If the Executor runs the work on the
+ * calling thread, there is nothing to overlap with, so the chunks are read
+ * on demand instead. Moving backwards within the current chunk is fine;
+ * moving to an earlier chunk throws IllegalStateException. getCount() runs
+ * a separate COUNT(*) query unless the last chunk has been reached.
+ */
+class PrefetchingCursor extends CursorWrapper {
+  private static final long OFFER_TIMEOUT_MS=100;
+  private final SynchronousQueue<Chunk> handoff=new SynchronousQueue<>();
+  private final Database db;
+  private final SupportSQLiteQuery query;
+  private final Cursor source;
+  private final int chunkRows;
+  private final Thread owner=Thread.currentThread();
+  private volatile boolean starting=true;
+  private volatile boolean inline;
+  private volatile boolean stopped;
+  private RuntimeException failure;
+  private Chunk current;
+  private int nextStart;
+  private int pos=-1;
+  private int count=-1;
+
+  PrefetchingCursor(Database db, SupportSQLiteQuery query, int chunkRows,
+                    Executor executor) {
+    this(db, query, db.queryForwardOnly(query), chunkRows, executor);
+  }
+
+  private PrefetchingCursor(Database db, SupportSQLiteQuery query,
+                            final Cursor source, int chunkRows,
+                            Executor executor) {
+    super(new MatrixCursor(source.getColumnNames(), 0));
+    this.db=db;
+    this.query=query;
+    this.source=source;
+    this.chunkRows=chunkRows;
+
+    try {
+      executor.execute(new Runnable() {
+        @Override
+        public void run() {
+          if (starting && Thread.currentThread()==owner) {
+            // a direct executor: offering chunks to ourselves would block
+            // forever, so leave the reading to take()
+            inline=true;
+          }
+          else {
+            try {
+              fill();
+            }
+            finally {
+              source.close();
+            }
+          }
+        }
+      });
+    }
+    catch (RuntimeException e) {
+      source.close();
+      throw e;
+    }
+
+    starting=false;
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public int getCount() {
+    if (count<0) {
+      Cursor c=db.queryForwardOnly(query);
+
+      try {
+        count=c.getCount();
+      }
+      finally {
+        c.close();
+      }
+    }
+
+    return(count);
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public int getPosition() {
+    return(pos);
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public boolean move(int offset) {
+    return(moveToPosition(pos+offset));
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public boolean moveToFirst() {
+    return(moveToPosition(0));
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public boolean moveToLast() {
+    return(moveToPosition(getCount()-1));
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public boolean moveToNext() {
+    return(moveToPosition(pos+1));
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public boolean moveToPrevious() {
+    return(moveToPosition(pos-1));
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public boolean moveToPosition(int position) {
+    if (position<0) {
+      if (current!=null && current.start>0) {
+        throw new IllegalStateException("Cannot move a prefetching cursor from "+
+          pos+" back to "+position);
+      }
+
+      pos=-1;
+
+      return(false);
+    }
+
+    if (current==null) {
+      current=take();
+    }
+
+    if (position<current.start) {
+      throw new IllegalStateException("Cannot move a prefetching cursor from "+
+        pos+" back to "+position);
+    }
+
+    while (position>=current.start+current.getCount() && !current.last) {
+      current=take();
+    }
+
+    if (current.last) {
+      count=current.start+current.getCount();
+    }
+
+    if (position<current.start+current.getCount()) {
+      current.moveToPosition(position-current.start);
+      pos=position;
+
+      return(true);
+    }
+
+    pos=count;
+
+    return(false);
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public boolean isFirst() {
+    return(pos==0 && !isAfterLast());
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public boolean isLast() {
+    if (pos<0 || isAfterLast()) {
+      return(false);
+    }
+
+    // only go to the database if this is the last row of a chunk
+    if (count<0 && pos+1<current.start+current.getCount()) {
+      return(false);
+    }
+
+    return(pos==getCount()-1);
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public boolean isBeforeFirst() {
+    return(pos==-1);
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public boolean isAfterLast() {
+    return(count>=0 && pos>=count);
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public byte[] getBlob(int columnIndex) {
+    return(current().getBlob(columnIndex));
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public String getString(int columnIndex) {
+    return(current().getString(columnIndex));
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public void copyStringToBuffer(int columnIndex, CharArrayBuffer buffer) {
+    current().copyStringToBuffer(columnIndex, buffer);
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public short getShort(int columnIndex) {
+    return(current().getShort(columnIndex));
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public int getInt(int columnIndex) {
+    return(current().getInt(columnIndex));
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public long getLong(int columnIndex) {
+    return(current().getLong(columnIndex));
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public float getFloat(int columnIndex) {
+    return(current().getFloat(columnIndex));
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public double getDouble(int columnIndex) {
+    return(current().getDouble(columnIndex));
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public int getType(int columnIndex) {
+    return(current().getType(columnIndex));
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public boolean isNull(int columnIndex) {
+    return(current().isNull(columnIndex));
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public boolean requery() {
+    return(false);
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public void close() {
+    stopped=true;
+    current=null;
+
+    if (inline) {
+      source.close();
+    }
+
+    super.close();
+  }
+
+  private Cursor current() {
+    if (current==null || pos<0 || isAfterLast()) {
+      throw new CursorIndexOutOfBoundsException("No row at position "+pos);
+    }
+
+    return(current);
+  }
+
+  private Chunk take() {
+    if (failure!=null) {
+      throw failure;
+    }
+
+    if (isClosed()) {
+      throw new IllegalStateException("Cursor is closed");
+    }
+
+    Chunk result;
+
+    if (inline) {
+      try {
+        result=read(nextStart);
+      }
+      catch (RuntimeException e) {
+        result=new Chunk(e);
+      }
+    }
+    else {
+      try {
+        result=handoff.take();
+      }
+      catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IllegalStateException("Interrupted while waiting for rows", e);
+      }
+    }
+
+    if (result.error!=null) {
+      failure=result.error;
+      throw failure;
+    }
+
+    nextStart=result.start+result.getCount();
+
+    return(result);
+  }
+
+  private void fill() {
+    try {
+      int start=0;
+
+      while (!stopped) {
+        Chunk chunk=read(start);
+
+        start+=chunk.getCount();
+
+        if (!offer(chunk) || chunk.last) {
+          break;
+        }
+      }
+    }
+    catch (RuntimeException e) {
+      offer(new Chunk(e));
+    }
+    catch (Error e) {
+      // so the reader is not left waiting for a chunk that never comes
+      offer(new Chunk(new IllegalStateException(e)));
+      throw e;
+    }
+  }
+
+  private Chunk read(int start) {
+    int columns=source.getColumnCount();
+    Chunk chunk=new Chunk(start, chunkRows, columns);
+
+    while (chunk.rowCount<chunkRows && source.moveToNext()) {
+      Object[] row=chunk.rows[chunk.rowCount++];
+
+      for (int i=0;i<columns;i++) {
+        row[i]=ValueCursor.readValue(source, i);
+      }
+    }
+
+    // if the rows run out right at the end of a chunk, the next one is empty
+    chunk.last=(chunk.rowCount<chunkRows);
+
+    return(chunk);
+  }
+
+  private boolean offer(Chunk chunk) {
+    try {
+      while (!handoff.offer(chunk, OFFER_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+        if (stopped) {
+          return(false);
+        }
+      }
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+
+      return(false);
+    }
+
+    return(true);
+  }
+
+  private final class Chunk extends ValueCursor {
+    final int start;
+    final Object[][] rows;
+    final RuntimeException error;
+    int rowCount;
+    boolean last;
+
+    Chunk(int start, int capacity, int columns) {
+      this.start=start;
+      this.rows=new Object[capacity][columns];
+      this.error=null;
+    }
+
+    Chunk(RuntimeException error) {
+      this.start=0;
+      this.rows=null;
+      this.error=error;
+      this.last=true;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getCount() {
+      return(rowCount);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String[] getColumnNames() {
+      return(PrefetchingCursor.this.getColumnNames());
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    Object getValue(int column) {
+      checkPosition();
+
+      return(rows[mPos][column]);
+    }
+  }
+}
@@ -0,0 +1,76 @@
+/***
+ Copyright (c) 2020 CommonsWare, LLC
+ Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ use this file except in compliance with the License. You may obtain	a copy
+ of the License at http://www.apache.org/licenses/LICENSE-2.0. Unless required
+ by applicable law or agreed to in writing, software distributed under the
+ License is distributed on an "AS IS" BASIS,	WITHOUT	WARRANTIES OR CONDITIONS
+ OF ANY KIND, either express or implied. See the License for the specific
+ language governing permissions and limitations under the License.
+ */
+
+package com.commonsware.cwac.saferoom;
+
+import android.database.Cursor;
+import net.sqlcipher.database.SQLiteCursorDriver;
+import net.sqlcipher.database.SQLiteDatabase;
+import net.sqlcipher.database.SQLiteQuery;
+import androidx.sqlite.db.SimpleSQLiteQuery;
+
+/**
+ * A query whose SQL gets compiled up front, for repeated execution with
+ * different bindings. Get one by calling prepareQuery() on Database.
+ *
+ * This does not hold a compiled statement of its own: SQLCipher closes the
+ * native query along with each Cursor, so no compiled query can outlive
+ * the Cursor that reads it. Instead, prepareQuery() compiles the SQL on
+ * each connection, which puts it in that connection's compiled-SQL cache,
+ * and every execution uses the same SQL text, so SQLCipher finds it there
+ * and skips parsing and planning. So, this is only faster than rawQuery()
+ * while the SQL stays in that cache. The cache holds a limited number of
+ * statements per connection, and once it is full, SQLCipher pushes out an
+ * arbitrary entry to make room for each new one, so if you use lots of
+ * distinct SQL, raise the limit via setMaxSqlCacheSize().
+ *
+ * Each execution binds its own arguments, so a PreparedQuery can be used
+ * from several threads at once.
+ */
+public final class PreparedQuery {
+  private final Database db;
+  private final String sql;
+
+  PreparedQuery(Database db, String sql) {
+    this.db=db;
+    this.sql=sql;
+
+    db.precompile(sql);
+  }
+
+  /**
+   * @return the SQL for this query
+   */
+  public String getSql() {
+    return(sql);
+  }
+
+  /**
+   * Executes this query with the supplied bindings.
+   *
+   * @param bindArgs values for the ? placeholders in the SQL, in order
+   * @return a Cursor with the results
+   */
+  public Cursor query(final Object... bindArgs) {
+    return(db.rawQuery(sql, bindArgs==null ? 0 : bindArgs.length,
+      new SQLiteDatabase.CursorFactory() {
+        @Override
+        public net.sqlcipher.Cursor newCursor(SQLiteDatabase safeDb,
+                                              SQLiteCursorDriver masterQuery,
+                                              String editTable,
+                                              SQLiteQuery query) {
+          SimpleSQLiteQuery.bind(new Program(query), bindArgs);
+
+          return(db.newCursor(safeDb, masterQuery, editTable, query));
+        }
+      }));
+  }
+}
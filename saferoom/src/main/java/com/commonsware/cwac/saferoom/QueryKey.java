@@ -0,0 +1,133 @@
+/***
+ Copyright (c) 2020 CommonsWare, LLC
+ Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ use this file except in compliance with the License. You may obtain	a copy
+ of the License at http://www.apache.org/licenses/LICENSE-2.0. Unless required
+ by applicable law or agreed to in writing, software distributed under the
+ License is distributed on an "AS IS" BASIS,	WITHOUT	WARRANTIES OR CONDITIONS
+ OF ANY KIND, either express or implied. See the License for the specific
+ language governing permissions and limitations under the License.
+ */
+
+package com.commonsware.cwac.saferoom;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import androidx.sqlite.db.SupportSQLiteProgram;
+import androidx.sqlite.db.SupportSQLiteQuery;
+
+/**
+ * Identifies a query by its SQL and its typed bindings, for use as a map
+ * key. The bindings are captured by having the query bind itself to this
+ * object, so they keep their types: 1 and 1.0 and "1" are different keys.
+ */
+final class QueryKey implements SupportSQLiteProgram {
+  private final String sql;
+  private final List<Object> bindings=new ArrayList<>();
+  private int hash;
+
+  QueryKey(SupportSQLiteQuery query) {
+    this.sql=query.getSql();
+    query.bindTo(this);
+  }
+
+  String getSql() {
+    return(sql);
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public void bindNull(int index) {
+    set(index, null);
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public void bindLong(int index, long value) {
+    set(index, value);
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public void bindDouble(int index, double value) {
+    set(index, value);
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public void bindString(int index, String value) {
+    set(index, value);
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public void bindBlob(int index, byte[] value) {
+    set(index, value.clone());
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public void clearBindings() {
+    bindings.clear();
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public void close() {
+    // nothing to release
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public boolean equals(Object o) {
+    if (this==o) {
+      return(true);
+    }
+
+    if (!(o instanceof QueryKey)) {
+      return(false);
+    }
+
+    QueryKey other=(QueryKey)o;
+
+    return(sql.equals(other.sql) &&
+      Arrays.deepEquals(bindings.toArray(), other.bindings.toArray()));
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public int hashCode() {
+    if (hash==0) {
+      hash=31*sql.hashCode()+Arrays.deepHashCode(bindings.toArray());
+    }
+
+    return(hash);
+  }
+
+  private void set(int index, Object value) {
+    while (bindings.size()<index) {
+      bindings.add(null);
+    }
+
+    bindings.set(index-1, value);
+  }
+}
@@ -0,0 +1,92 @@
+/***
+ Copyright (c) 2020 CommonsWare, LLC
+ Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ use this file except in compliance with the License. You may obtain	a copy
+ of the License at http://www.apache.org/licenses/LICENSE-2.0. Unless required
+ by applicable law or agreed to in writing, software distributed under the
+ License is distributed on an "AS IS" BASIS,	WITHOUT	WARRANTIES OR CONDITIONS
+ OF ANY KIND, either express or implied. See the License for the specific
+ language governing permissions and limitations under the License.
+ */
+
+package com.commonsware.cwac.saferoom;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import net.sqlcipher.database.SQLiteDatabase;
+import net.sqlcipher.database.SQLiteDatabaseHook;
+
+/**
+ * Fixed set of read-only connections to a WAL-mode database, keyed the same
+ * way as its primary connection. SQLCipher connections lock themselves for
+ * each operation, so readers are shared rather than checked out; acquire()
+ * prefers one that no other thread is using at the moment.
+ */
+class ReaderPool {
+  private final SQLiteDatabase[] readers;
+  private final AtomicInteger next=new AtomicInteger();
+  private final AtomicLong acquireCount=new AtomicLong();
+
+  private ReaderPool(SQLiteDatabase[] readers) {
+    this.readers=readers;
+  }
+
+  static ReaderPool open(String path, byte[] passphrase, int size,
+                         SQLiteDatabaseHook hook) {
+    SQLiteDatabase[] readers=new SQLiteDatabase[size];
+
+    try {
+      for (int i=0;i<size;i++) {
+        readers[i]=SQLiteDatabase.openDatabase(path, passphrase, null,
+          SQLiteDatabase.OPEN_READONLY, hook, null);
+      }
+    }
+    catch (RuntimeException e) {
+      for (SQLiteDatabase reader : readers) {
+        if (reader!=null) {
+          reader.close();
+        }
+      }
+
+      throw e;
+    }
+
+    return(new ReaderPool(readers));
+  }
+
+  int size() {
+    return(readers.length);
+  }
+
+  long getAcquireCount() {
+    return(acquireCount.get());
+  }
+
+  SQLiteDatabase acquire() {
+    acquireCount.incrementAndGet();
+
+    int start=(next.getAndIncrement() & Integer.MAX_VALUE) % readers.length;
+
+    for (int i=0;i<readers.length;i++) {
+      SQLiteDatabase reader=readers[(start+i) % readers.length];
+
+      if (!reader.isDbLockedByOtherThreads()) {
+        return(reader);
+      }
+    }
+
+    return(readers[start]);
+  }
+
+  void precompile(String sql) {
+    for (SQLiteDatabase reader : readers) {
+      reader.compileStatement(sql).close();
+    }
+  }
+
+  void close() {
+    for (SQLiteDatabase reader : readers) {
+      reader.close();
+    }
+  }
+}
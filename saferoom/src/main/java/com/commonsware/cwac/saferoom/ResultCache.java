@@ -0,0 +1,196 @@
+/***
+ Copyright (c) 2020 CommonsWare, LLC
+ Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ use this file except in compliance with the License. You may obtain	a copy
+ of the License at http://www.apache.org/licenses/LICENSE-2.0. Unless required
+ by applicable law or agreed to in writing, software distributed under the
+ License is distributed on an "AS IS" BASIS,	WITHOUT	WARRANTIES OR CONDITIONS
+ OF ANY KIND, either express or implied. See the License for the specific
+ language governing permissions and limitations under the License.
+ */
+
+package com.commonsware.cwac.saferoom;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * LRU cache of query results, keyed by SQL and bindings, bounded both by
+ * the number of entries and by their estimated size in memory. Each entry
+ * is tagged with the tables that its query reads, and writes to a table
+ * through the same Database drop the entries tagged with it. A result
+ * that is bigger than the byte limit on its own is only copied until it
+ * goes over, and the caller reads it from the query's own Cursor. Use
+ * setResultCache() on SafeHelperFactory.Options.Builder to enable it, and
+ * getResultCache() on Database to get at the counters.
+ */
+public final class ResultCache {
+  private final int maxEntries;
+  private final long maxBytes;
+  private final LinkedHashMap<QueryKey, Entry> entries=
+    new LinkedHashMap<>(16, 0.75f, true);
+  private long byteCount;
+  private long hitCount;
+  private long missCount;
+  private long invalidationCount;
+  private long evictionCount;
+  private long generation;
+
+  ResultCache(int maxEntries, long maxBytes) {
+    this.maxEntries=maxEntries;
+    this.maxBytes=maxBytes;
+  }
+
+  /**
+   * @return the maximum number of results held by this cache
+   */
+  public int getMaxEntries() {
+    return(maxEntries);
+  }
+
+  /**
+   * @return the maximum estimated size, in bytes, of the results held by
+   * this cache
+   */
+  public long getMaxBytes() {
+    return(maxBytes);
+  }
+
+  /**
+   * @return the number of results held by this cache
+   */
+  public synchronized int size() {
+    return(entries.size());
+  }
+
+  /**
+   * @return the estimated size, in bytes, of the results held by this cache
+   */
+  public synchronized long getByteCount() {
+    return(byteCount);
+  }
+
+  /**
+   * @return the number of queries answered from the cache
+   */
+  public synchronized long getHitCount() {
+    return(hitCount);
+  }
+
+  /**
+   * @return the number of cacheable queries that had to be executed
+   */
+  public synchronized long getMissCount() {
+    return(missCount);
+  }
+
+  /**
+   * @return the number of results dropped because of writes to their tables
+   * or changes to the schema
+   */
+  public synchronized long getInvalidationCount() {
+    return(invalidationCount);
+  }
+
+  /**
+   * @return the number of results dropped to stay within the size limits
+   */
+  public synchronized long getEvictionCount() {
+    return(evictionCount);
+  }
+
+  synchronized CursorSnapshot get(QueryKey key) {
+    Entry entry=entries.get(key);
+
+    if (entry==null) {
+      missCount++;
+
+      return(null);
+    }
+
+    hitCount++;
+
+    return(entry.snapshot);
+  }
+
+  /**
+   * @return a counter that changes on every invalidation, to be read before
+   * running a query and handed to put() afterwards
+   */
+  synchronized long getGeneration() {
+    return(generation);
+  }
+
+  /**
+   * Caches the results of a query, unless something was invalidated while
+   * the query was running, in which case the results may be stale.
+   */
+  synchronized void put(QueryKey key, CursorSnapshot snapshot,
+                        Set<String> tables, long generationAtStart) {
+    if (generationAtStart!=generation) {
+      return;
+    }
+
+    long bytes=snapshot.estimateBytes();
+
+    if (bytes>maxBytes) {
+      return;
+    }
+
+    Entry old=entries.put(key, new Entry(snapshot, tables, bytes));
+
+    if (old!=null) {
+      byteCount-=old.bytes;
+    }
+
+    byteCount+=bytes;
+
+    Iterator<Entry> eldest=entries.values().iterator();
+
+    while (entries.size()>maxEntries || byteCount>maxBytes) {
+      byteCount-=eldest.next().bytes;
+      eldest.remove();
+      evictionCount++;
+    }
+  }
+
+  synchronized void invalidate(Set<String> tables) {
+    generation++;
+
+    Iterator<Map.Entry<QueryKey, Entry>> i=entries.entrySet().iterator();
+
+    while (i.hasNext()) {
+      Entry entry=i.next().getValue();
+
+      for (String table : tables) {
+        if (entry.tables.contains(table)) {
+          byteCount-=entry.bytes;
+          i.remove();
+          invalidationCount++;
+          break;
+        }
+      }
+    }
+  }
+
+  synchronized void invalidateAll() {
+    generation++;
+    invalidationCount+=entries.size();
+    entries.clear();
+    byteCount=0;
+  }
+
+  private static final class Entry {
+    final CursorSnapshot snapshot;
+    final Set<String> tables;
+    final long bytes;
+
+    Entry(CursorSnapshot snapshot, Set<String> tables, long bytes) {
+      this.snapshot=snapshot;
+      this.tables=tables;
+      this.bytes=bytes;
+    }
+  }
+}
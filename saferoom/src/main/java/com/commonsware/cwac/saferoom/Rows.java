@@ -0,0 +1,182 @@
+/***
+ Copyright (c) 2020 CommonsWare, LLC
+ Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ use this file except in compliance with the License. You may obtain	a copy
+ of the License at http://www.apache.org/licenses/LICENSE-2.0. Unless required
+ by applicable law or agreed to in writing, software distributed under the
+ License is distributed on an "AS IS" BASIS,	WITHOUT	WARRANTIES OR CONDITIONS
+ OF ANY KIND, either express or implied. See the License for the specific
+ language governing permissions and limitations under the License.
+ */
+
+package com.commonsware.cwac.saferoom;
+
+import android.database.CharArrayBuffer;
+import android.database.Cursor;
+import java.io.Closeable;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Single-pass iteration over the results of a query, as returned by
+ * iterate() on Database. Every step hands back the same Row object, now
+ * pointing at the next row, and column names are resolved through a
+ * mapping cached for the query's SQL, so iterating numeric columns does
+ * not allocate anything per row. Text can be copied into caller-supplied
+ * CharArrayBuffers for the same reason.
+ *
+ * The underlying Cursor is closed once iteration runs off the end; call
+ * close() if you stop early.
+ */
+public final class Rows implements Iterable<Rows.Row>, Iterator<Rows.Row>,
+  Closeable {
+  private final Cursor cursor;
+  private final ColumnIndexes.Mapping columns;
+  private final Row row=new Row();
+  private boolean advanced;
+  private boolean hasRow;
+
+  Rows(Cursor cursor, ColumnIndexes.Mapping columns) {
+    this.cursor=cursor;
+    this.columns=columns;
+  }
+
+  /**
+   * @return this object, as it can only be iterated once
+   */
+  @Override
+  public Iterator<Row> iterator() {
+    return(this);
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public boolean hasNext() {
+    if (!advanced) {
+      hasRow=!cursor.isClosed() && cursor.moveToNext();
+      advanced=true;
+
+      if (!hasRow) {
+        close();
+      }
+    }
+
+    return(hasRow);
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public Row next() {
+    if (!hasNext()) {
+      throw new NoSuchElementException();
+    }
+
+    advanced=false;
+
+    return(row);
+  }
+
+  /**
+   * Not supported.
+   */
+  @Override
+  public void remove() {
+    throw new UnsupportedOperationException();
+  }
+
+  /**
+   * Closes the underlying Cursor.
+   */
+  @Override
+  public void close() {
+    cursor.close();
+  }
+
+  /**
+   * A view of the current row. Do not hold onto it across iterations, as
+   * the same object is used for every row.
+   */
+  public final class Row {
+    private Row() {
+      // one per Rows, reused
+    }
+
+    /**
+     * @param column a column name
+     * @return the index of that column
+     */
+    public int indexOf(String column) {
+      return(columns.indexOf(column));
+    }
+
+    /**
+     * @param column a column name
+     * @return true if the value is NULL
+     */
+    public boolean isNull(String column) {
+      return(cursor.isNull(columns.indexOf(column)));
+    }
+
+    /**
+     * @param column a column name
+     * @return the value as an int
+     */
+    public int getInt(String column) {
+      return(cursor.getInt(columns.indexOf(column)));
+    }
+
+    /**
+     * @param column a column name
+     * @return the value as a long
+     */
+    public long getLong(String column) {
+      return(cursor.getLong(columns.indexOf(column)));
+    }
+
+    /**
+     * @param column a column name
+     * @return the value as a double
+     */
+    public double getDouble(String column) {
+      return(cursor.getDouble(columns.indexOf(column)));
+    }
+
+    /**
+     * Copies the text of a column into a buffer, growing the buffer if
+     * needed. Reuse the buffer across rows to avoid allocations.
+     *
+     * @param column a column name
+     * @param buffer where the text goes; sizeCopied is set to its length
+     */
+    public void copyText(String column, CharArrayBuffer buffer) {
+      cursor.copyStringToBuffer(columns.indexOf(column), buffer);
+    }
+
+    /**
+     * @param column a column name
+     * @return the value as a String, which is a new allocation
+     */
+    public String getString(String column) {
+      return(cursor.getString(columns.indexOf(column)));
+    }
+
+    /**
+     * @param column a column name
+     * @return the value as a byte[], which is a new allocation
+     */
+    public byte[] getBlob(String column) {
+      return(cursor.getBlob(columns.indexOf(column)));
+    }
+
+    /**
+     * @return the Cursor underlying these rows, for access by index
+     */
+    public Cursor getCursor() {
+      return(cursor);
+    }
+  }
+}
@@ -0,0 +1,100 @@
+/***
+ Copyright (c) 2020 CommonsWare, LLC
+ Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ use this file except in compliance with the License. You may obtain	a copy
+ of the License at http://www.apache.org/licenses/LICENSE-2.0. Unless required
+ by applicable law or agreed to in writing, software distributed under the
+ License is distributed on an "AS IS" BASIS,	WITHOUT	WARRANTIES OR CONDITIONS
+ OF ANY KIND, either express or implied. See the License for the specific
+ language governing permissions and limitations under the License.
+ */
+
+package com.commonsware.cwac.saferoom;
+
+import android.content.Context;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import net.sqlcipher.database.SQLiteDatabase;
+
+/**
+ * Loads the SQLCipher native libraries once per process. SafeRoom uses this
+ * everywhere that it needs the libraries, so once they are loaded, later
+ * calls return without locking. Call loadAsync() during app startup to get
+ * the loading out of the way on a background thread.
+ */
+public final class SQLCipherLoader {
+  private static final Object LOCK=new Object();
+  private static volatile boolean loaded;
+  private static long loadNanos;
+
+  private SQLCipherLoader() {
+    // static methods only
+  }
+
+  /**
+   * Loads the SQLCipher native libraries, if they have not been loaded
+   * already, blocking until they are.
+   *
+   * @param ctxt a Context
+   * @return the time spent in this call waiting for the libraries to load,
+   * in nanoseconds, or 0 if they were already loaded
+   */
+  public static long load(Context ctxt) {
+    if (loaded) {
+      return(0);
+    }
+
+    long start=System.nanoTime();
+
+    synchronized(LOCK) {
+      if (!loaded) {
+        SQLiteDatabase.loadLibs(ctxt);
+        loadNanos=System.nanoTime()-start;
+        loaded=true;
+      }
+    }
+
+    return(System.nanoTime()-start);
+  }
+
+  /**
+   * Loads the SQLCipher native libraries on the supplied Executor, if they
+   * have not been loaded already.
+   *
+   * @param ctxt a Context
+   * @param executor where the loading should be done
+   * @return a Future for the time spent loading, as from load()
+   */
+  public static Future<Long> loadAsync(Context ctxt, Executor executor) {
+    final Context app=ctxt.getApplicationContext();
+    FutureTask<Long> result=new FutureTask<>(new Callable<Long>() {
+      @Override
+      public Long call() {
+        return(load(app));
+      }
+    });
+
+    executor.execute(result);
+
+    return(result);
+  }
+
+  /**
+   * @return true if the SQLCipher native libraries have been loaded
+   */
+  public static boolean isLoaded() {
+    return(loaded);
+  }
+
+  /**
+   * @return how long loading the SQLCipher native libraries took, in
+   * nanoseconds, or 0 if they have not been loaded yet
+   */
+  public static long getLoadNanos() {
+    synchronized(LOCK) {
+      return(loadNanos);
+    }
+  }
+}
@@ -19,12 +19,36 @@ package com.commonsware.cwac.saferoom;
 import android.content.Context;
 import android.text.Editable;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
 import net.sqlcipher.database.SQLiteDatabase;
 import net.sqlcipher.database.SQLiteStatement;
 
 public class SQLCipherUtils {
+  /**
+   * Length, in bytes, of a raw SQLCipher key
+   */
+  public static final int RAW_KEY_LENGTH=32;
+
+  /**
+   * Length, in bytes, of the salt stored at the start of a SQLCipher database
+   */
+  public static final int SALT_LENGTH=16;
+
+  /**
+   * Number of PBKDF2-HMAC-SHA512 iterations used by SQLCipher 4 by default
+   */
+  public static final int KDF_ITERATIONS=256000;
+
+  private static final String KDF_ALGORITHM="HmacSHA512";
+
   /**
    * The detected state of the database, based on whether we can open it
    * without a passphrase.
@@ -43,7 +67,7 @@ public class SQLCipherUtils {
    * @return the detected state of the database
    */
   public static State getDatabaseState(Context ctxt, String dbName) {
-    SQLiteDatabase.loadLibs(ctxt);
+    SQLCipherLoader.load(ctxt);
 
     return(getDatabaseState(ctxt.getDatabasePath(dbName)));
   }
@@ -52,9 +76,10 @@ public class SQLCipherUtils {
    * Determine whether or not this database appears to be encrypted, based
    * on whether we can open it without a passphrase.
    *
-   * NOTE: You are responsible for ensuring that net.sqlcipher.database.SQLiteDatabase.loadLibs()
-   * is called before calling this method. This is handled automatically with the
-   * getDatabaseState() method that takes a Context as a parameter.
+   * NOTE: You are responsible for ensuring that the SQLCipher libraries are loaded,
+   * such as via SQLCipherLoader.load(), before calling this method. This is
+   * handled automatically with the getDatabaseState() method that takes a
+   * Context as a parameter.
    *
    * @param dbPath a File pointing to the database
    * @return the detected state of the database
@@ -189,7 +214,7 @@ public class SQLCipherUtils {
    */
   public static void encrypt(Context ctxt, File originalFile, byte[] passphrase)
     throws IOException {
-    SQLiteDatabase.loadLibs(ctxt);
+    SQLCipherLoader.load(ctxt);
 
     if (originalFile.exists()) {
       File newFile=File.createTempFile("sqlcipherutils", "tmp",
@@ -258,7 +283,7 @@ public class SQLCipherUtils {
    */
   public static void decrypt(Context ctxt, File originalFile, byte[] passphrase)
     throws IOException {
-    SQLiteDatabase.loadLibs(ctxt);
+    SQLCipherLoader.load(ctxt);
 
     if (originalFile.exists()) {
       File newFile=
@@ -293,4 +318,139 @@ public class SQLCipherUtils {
       throw new FileNotFoundException(originalFile.getAbsolutePath()+" not found");
     }
   }
+
+  /**
+   * Derives the raw key that SQLCipher 4, with its default settings, would
+   * derive from this passphrase for this database. Pass the result to
+   * SafeHelperFactory.fromRawKey() to open the database without paying for
+   * key derivation on each open. Store the result as carefully as you would
+   * the passphrase itself.
+   *
+   * The salt is read from the start of the database file. If the database
+   * does not exist yet, a random salt is generated, and SQLCipher will use
+   * that salt when it creates the database with the resulting key.
+   *
+   * This does not apply to databases using older SQLCipher settings, such as
+   * those opened with POST_KEY_SQL_V3 or a custom cipher_default_kdf_iter.
+   *
+   * An empty passphrase means "no encryption" to SQLCipher, so there is no
+   * key to derive, and this throws IllegalArgumentException. An existing
+   * unencrypted database has no salt, only the plain SQLite header, so this
+   * throws IllegalStateException; use encrypt() first.
+   *
+   * The passphrase is untouched in this call.
+   *
+   * @param ctxt a Context
+   * @param dbName the name of the database, as used with Room, SQLiteOpenHelper,
+   *               etc.
+   * @param passphrase the passphrase from the user
+   * @return the raw key followed by the salt, RAW_KEY_LENGTH+SALT_LENGTH bytes
+   * @throws IOException
+   */
+  public static byte[] deriveRawKey(Context ctxt, String dbName,
+                                    char[] passphrase) throws IOException {
+    SQLCipherLoader.load(ctxt);
+
+    return(deriveRawKey(ctxt.getDatabasePath(dbName), passphrase));
+  }
+
+  /**
+   * Derives the raw key that SQLCipher 4, with its default settings, would
+   * derive from this passphrase for this database. See the Context-based
+   * flavor of this method for details.
+   *
+   * NOTE: You are responsible for ensuring that the SQLCipher libraries are loaded,
+   * such as via SQLCipherLoader.load(), before calling this method, as it
+   * uses getDatabaseState() to check for an unencrypted database.
+   *
+   * @param dbPath a File pointing to the database
+   * @param passphrase the passphrase from the user
+   * @return the raw key followed by the salt, RAW_KEY_LENGTH+SALT_LENGTH bytes
+   * @throws IOException
+   */
+  public static byte[] deriveRawKey(File dbPath, char[] passphrase)
+    throws IOException {
+    if (passphrase==null || passphrase.length==0) {
+      throw new IllegalArgumentException("An empty passphrase leaves the "+
+        "database unencrypted, so there is no key to derive");
+    }
+
+    byte[] salt=new byte[SALT_LENGTH];
+
+    // SQLCipher treats an empty file like a missing one, but would open it
+    // as unencrypted without a passphrase, so only check files with content
+    if (dbPath.exists() && dbPath.length()>=SALT_LENGTH) {
+      if (getDatabaseState(dbPath)==State.UNENCRYPTED) {
+        throw new IllegalStateException(dbPath.getAbsolutePath()+
+          " is not encrypted, so it has no salt; encrypt() it first");
+      }
+
+      InputStream in=new FileInputStream(dbPath);
+
+      try {
+        int offset=0;
+
+        while (offset<SALT_LENGTH) {
+          int count=in.read(salt, offset, SALT_LENGTH-offset);
+
+          if (count<0) {
+            throw new IOException("Could not read salt from "+dbPath.getAbsolutePath());
+          }
+
+          offset+=count;
+        }
+      }
+      finally {
+        in.close();
+      }
+    }
+    else {
+      new SecureRandom().nextBytes(salt);
+    }
+
+    byte[] bytes=SQLiteDatabase.getBytes(passphrase);
+
+    try {
+      byte[] result=Arrays.copyOf(pbkdf2(bytes, salt), RAW_KEY_LENGTH+SALT_LENGTH);
+
+      System.arraycopy(salt, 0, result, RAW_KEY_LENGTH, SALT_LENGTH);
+
+      return(result);
+    }
+    catch (GeneralSecurityException e) {
+      throw new IllegalStateException("Could not derive key", e);
+    }
+    finally {
+      Arrays.fill(bytes, (byte)0);
+    }
+  }
+
+  // PBKDF2-HMAC-SHA512, for a single output block, which covers a 32-byte key
+  private static byte[] pbkdf2(byte[] passphrase, byte[] salt)
+    throws GeneralSecurityException {
+    Mac mac=Mac.getInstance(KDF_ALGORITHM);
+
+    mac.init(new SecretKeySpec(passphrase, KDF_ALGORITHM));
+
+    byte[] block=new byte[mac.getMacLength()];
+    byte[] result=new byte[block.length];
+
+    mac.update(salt);
+    mac.update(new byte[] {0, 0, 0, 1});
+    mac.doFinal(block, 0);
+    System.arraycopy(block, 0, result, 0, block.length);
+
+    for (int i=1;i<KDF_ITERATIONS;i++) {
+      mac.update(block);
+      mac.doFinal(block, 0);
+
+      for (int j=0;j<block.length;j++) {
+        result[j]^=block[j];
+      }
+    }
+
+    Arrays.fill(block, (byte)0);
+
+    return(Arrays.copyOf(result, RAW_KEY_LENGTH));
+  }
 }
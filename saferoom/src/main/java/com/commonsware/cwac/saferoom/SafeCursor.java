@@ -0,0 +1,82 @@
+/***
+ Copyright (c) 2020 CommonsWare, LLC
+ Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ use this file except in compliance with the License. You may obtain	a copy
+ of the License at http://www.apache.org/licenses/LICENSE-2.0. Unless required
+ by applicable law or agreed to in writing, software distributed under the
+ License is distributed on an "AS IS" BASIS,	WITHOUT	WARRANTIES OR CONDITIONS
+ OF ANY KIND, either express or implied. See the License for the specific
+ language governing permissions and limitations under the License.
+ */
+
+package com.commonsware.cwac.saferoom;
+
+import net.sqlcipher.database.SQLiteCursor;
+import net.sqlcipher.database.SQLiteCursorDriver;
+import net.sqlcipher.database.SQLiteDatabase;
+import net.sqlcipher.database.SQLiteQuery;
+
+/**
+ * SQLiteCursor that uses a window from CursorWindows and reports its
+ * window fills to a CursorWindowStats.
+ *
+ * Cancellation is handled by ChunkedCursor rather than here: SQLCipher has
+ * no way to interrupt a native step that is underway, and the first fill
+ * of a SQLiteCursor steps through the whole result to count it, so a
+ * signal checked by this class could not stop that pass.
+ */
+class SafeCursor extends SQLiteCursor {
+  private final CursorWindowStats stats;
+  private boolean counted;
+
+  SafeCursor(SQLiteDatabase db, SQLiteCursorDriver driver, String editTable,
+             SQLiteQuery query, CursorWindowStats stats) {
+    super(db, driver, editTable, query);
+    this.stats=stats;
+    setWindow(CursorWindows.newWindow(stats));
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public int getCount() {
+    // SQLiteCursor fills the window on the first call, then caches the count
+    boolean needsFill=!counted;
+    int result=super.getCount();
+
+    if (needsFill) {
+      counted=true;
+      stats.recordFill(mWindow==null ? 0 : mWindow.getNumRows());
+    }
+
+    return(result);
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public boolean requery() {
+    counted=false;
+
+    return(super.requery());
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public boolean onMove(int oldPosition, int newPosition) {
+    // same test that SQLiteCursor uses to decide whether to fill the window
+    boolean needsFill=(mWindow==null || newPosition<mWindow.getStartPosition() ||
+      newPosition>=(mWindow.getStartPosition()+mWindow.getNumRows()));
+    boolean result=super.onMove(oldPosition, newPosition);
+
+    if (needsFill && mWindow!=null) {
+      stats.recordFill(mWindow.getNumRows());
+    }
+
+    return(result);
+  }
+}
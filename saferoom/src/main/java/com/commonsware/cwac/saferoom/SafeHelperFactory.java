@@ -17,6 +17,9 @@ package com.commonsware.cwac.saferoom;
 import android.content.Context;
 import android.text.Editable;
 
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+
 import androidx.sqlite.db.SupportSQLiteDatabase;
 import androidx.sqlite.db.SupportSQLiteOpenHelper;
 
@@ -29,6 +32,7 @@ import net.sqlcipher.database.SQLiteDatabase;
 public class SafeHelperFactory implements SupportSQLiteOpenHelper.Factory {
   public static final String POST_KEY_SQL_MIGRATE = "PRAGMA cipher_migrate;";
   public static final String POST_KEY_SQL_V3 = "PRAGMA cipher_compatibility = 3;";
+  private static final byte[] HEX_DIGITS = "0123456789ABCDEF".getBytes();
 
   final private byte[] passphrase;
   final private Options options;
@@ -87,6 +91,60 @@ public class SafeHelperFactory implements SupportSQLiteOpenHelper.Factory {
     return(result);
   }
 
+  /**
+   * Creates a SafeHelperFactory from a raw key, such as one returned by
+   * SQLCipherUtils.deriveRawKey(). SQLCipher uses a raw key as-is, skipping
+   * its passphrase-based key derivation, which makes opening the database
+   * much cheaper.
+   *
+   * The raw key will be cleared as part of this call, unless the options
+   * say not to clear the passphrase.
+   *
+   * @param rawKey the 32-byte key, optionally followed by the 16-byte salt
+   * @param options options for pre-key, post-key SQL
+   * @return a SafeHelperFactory
+   */
+  public static SafeHelperFactory fromRawKey(byte[] rawKey, Options options) {
+    if (rawKey.length != SQLCipherUtils.RAW_KEY_LENGTH &&
+      rawKey.length != SQLCipherUtils.RAW_KEY_LENGTH + SQLCipherUtils.SALT_LENGTH) {
+      throw new IllegalArgumentException("Raw key must be 32 bytes, or 48 bytes including the salt");
+    }
+
+    // SQLCipher treats a key of the form x'...' as a hex-encoded raw key
+    byte[] passphrase = new byte[rawKey.length * 2 + 3];
+
+    passphrase[0] = 'x';
+    passphrase[1] = '\'';
+
+    for (int i = 0; i < rawKey.length; i++) {
+      passphrase[i * 2 + 2] = HEX_DIGITS[(rawKey[i] >> 4) & 0x0F];
+      passphrase[i * 2 + 3] = HEX_DIGITS[rawKey[i] & 0x0F];
+    }
+
+    passphrase[passphrase.length - 1] = '\'';
+
+    if (options.clearPassphrase) {
+      for (int i = 0; i < rawKey.length; i++) {
+        rawKey[i] = (byte) 0;
+      }
+    }
+
+    return(new SafeHelperFactory(passphrase, options));
+  }
+
+  /**
+   * Creates a SafeHelperFactory from a raw key, such as one returned by
+   * SQLCipherUtils.deriveRawKey(), using default options.
+   *
+   * The raw key will be cleared as part of this call.
+   *
+   * @param rawKey the 32-byte key, optionally followed by the 16-byte salt
+   * @return a SafeHelperFactory
+   */
+  public static SafeHelperFactory fromRawKey(byte[] rawKey) {
+    return fromRawKey(rawKey, Options.builder().build());
+  }
+
   /**
    * Changes the passphrase associated with this database. The
    * char[] is *not* cleared by this method -- please zero it
@@ -126,6 +184,27 @@ public class SafeHelperFactory implements SupportSQLiteOpenHelper.Factory {
     }
   }
 
+  /**
+   * Starts opening the database for this helper on the supplied Executor, so
+   * that library loading, key derivation, and the open callbacks happen off
+   * of the calling thread. A later getWritableDatabase() call on the helper
+   * waits for this open instead of starting another one. With Room, pass in
+   * the result of getOpenHelper() on your RoomDatabase.
+   *
+   * @param helper a helper created by a SafeHelperFactory
+   * @param executor where the open should be done
+   * @return a Future for the opened database
+   */
+  public static Future<SupportSQLiteDatabase> prewarm(SupportSQLiteOpenHelper helper,
+                                                      Executor executor) {
+    if (helper instanceof Helper) {
+      return(((Helper)helper).prewarm(executor));
+    }
+    else {
+      throw new IllegalArgumentException("Helper is not from CWAC-SafeRoom");
+    }
+  }
+
   /**
    * Standard constructor.
    *
@@ -274,10 +353,68 @@ public class SafeHelperFactory implements SupportSQLiteOpenHelper.Factory {
      */
     public final boolean clearPassphrase;
 
-    private Options(String preKeySql, String postKeySql, boolean clearPassphrase) {
-      this.preKeySql = preKeySql;
-      this.postKeySql = postKeySql;
-      this.clearPassphrase = clearPassphrase;
+    /**
+     * Maximum number of idle compiled statements to cache per database, or
+     * 0 to disable the statement cache. Defaults to 0.
+     */
+    public final int statementCacheSize;
+
+    /**
+     * Receives a timed breakdown of each open of the database, or null.
+     * Defaults to null.
+     */
+    public final OpenTrace.Listener openTraceListener;
+
+    /**
+     * Number of read-only connections to open alongside the primary one
+     * when the database uses write-ahead logging, or 0 for none. Defaults
+     * to 0.
+     */
+    public final int readConnectionPoolSize;
+
+    /**
+     * Size, in bytes, to set for every SQLCipher CursorWindow in the process
+     * when this database is opened, or 0 to leave the size alone. Defaults
+     * to 0.
+     */
+    public final long cursorWindowSize;
+
+    /**
+     * True if query() on Database should return forward-only cursors;
+     * false otherwise. Defaults to false.
+     */
+    public final boolean forwardOnlyCursors;
+
+    /**
+     * True if identical concurrent queries should share one execution;
+     * false otherwise. Defaults to false.
+     */
+    public final boolean singleFlightQueries;
+
+    /**
+     * Maximum number of query results to cache per database, or 0 to
+     * disable the result cache. Defaults to 0.
+     */
+    public final int resultCacheSize;
+
+    /**
+     * Maximum estimated size, in bytes, of the query results cached per
+     * database. Defaults to 0.
+     */
+    public final long resultCacheBytes;
+
+    private Options(Builder builder) {
+      this.preKeySql = builder.preKeySql;
+      this.postKeySql = builder.postKeySql;
+      this.clearPassphrase = builder.clearPassphrase;
+      this.statementCacheSize = builder.statementCacheSize;
+      this.openTraceListener = builder.openTraceListener;
+      this.readConnectionPoolSize = builder.readConnectionPoolSize;
+      this.cursorWindowSize = builder.cursorWindowSize;
+      this.forwardOnlyCursors = builder.forwardOnlyCursors;
+      this.singleFlightQueries = builder.singleFlightQueries;
+      this.resultCacheSize = builder.resultCacheSize;
+      this.resultCacheBytes = builder.resultCacheBytes;
     }
 
     /**
@@ -296,6 +433,14 @@ public class SafeHelperFactory implements SupportSQLiteOpenHelper.Factory {
       private String preKeySql;
       private String postKeySql;
       private boolean clearPassphrase = true;
+      private int statementCacheSize = 0;
+      private OpenTrace.Listener openTraceListener;
+      private int readConnectionPoolSize = 0;
+      private long cursorWindowSize = 0;
+      private boolean forwardOnlyCursors = false;
+      private boolean singleFlightQueries = false;
+      private int resultCacheSize = 0;
+      private long resultCacheBytes = 0;
 
       private Builder() {
         // use the builder() method on SafeRoomHelper.Options
@@ -332,11 +477,159 @@ public class SafeHelperFactory implements SupportSQLiteOpenHelper.Factory {
         return this;
       }
 
+      /**
+       * @param size maximum number of idle compiled statements to keep per
+       *             database, for reuse by compileStatement(), update(), and
+       *             delete(); 0 disables the cache. Defaults to 0.
+       * @return the builder, for further configuration
+       */
+      public Builder setStatementCacheSize(int size) {
+        if (size < 0) {
+          throw new IllegalArgumentException("Statement cache size cannot be negative");
+        }
+
+        this.statementCacheSize = size;
+
+        return this;
+      }
+
+      /**
+       * @param listener receives a timed breakdown of each open of the
+       *                 database, covering library loading, keying, the
+       *                 pre- and post-key SQL, and the open callbacks
+       * @return the builder, for further configuration
+       */
+      public Builder setOpenTraceListener(OpenTrace.Listener listener) {
+        this.openTraceListener = listener;
+
+        return this;
+      }
+
+      /**
+       * Requests a pool of read-only connections, used for SELECT queries
+       * made outside of a transaction, so concurrent readers do not
+       * serialize behind the primary connection. The pool is only opened if
+       * the database uses write-ahead logging when it is opened, and each
+       * pooled connection is keyed separately, so consider a raw key (see
+       * SafeHelperFactory.fromRawKey()) to keep the cost of that down.
+       * Queries that rely on connection state, such as temp tables or
+       * changes(), need to be run inside of a transaction to stay on the
+       * primary connection.
+       *
+       * @param size number of read-only connections; 0 disables the pool.
+       *             Defaults to 0.
+       * @return the builder, for further configuration
+       */
+      public Builder setReadConnectionPoolSize(int size) {
+        if (size < 0) {
+          throw new IllegalArgumentException("Read connection pool size cannot be negative");
+        }
+
+        this.readConnectionPoolSize = size;
+
+        return this;
+      }
+
+      /**
+       * Sets the size of SQLCipher's CursorWindows. Larger windows mean
+       * fewer refills for wide rows; smaller ones save memory on narrow
+       * scans. Use getCursorWindowStats() on Database to see how windows
+       * get filled, and how big they really are.
+       *
+       * NOTE: this is not a per-database setting. SQLCipher only supports a
+       * process-wide window size, so this applies to every SQLCipher Cursor
+       * in the process, from any database, once this database is opened. If
+       * several databases set different sizes, the one opened most recently
+       * wins.
+       *
+       * @param bytes size of each CursorWindow; 0 leaves the size as it is.
+       *              Defaults to 0.
+       * @return the builder, for further configuration
+       */
+      public Builder setCursorWindowSize(long bytes) {
+        if (bytes < 0) {
+          throw new IllegalArgumentException("Cursor window size cannot be negative");
+        }
+
+        this.cursorWindowSize = bytes;
+
+        return this;
+      }
+
+      /**
+       * Makes query() on Database return forward-only cursors, which read
+       * the results in growing chunks rather than counting every row before
+       * returning the first one, and which refuse to move backwards. Use
+       * this for large exports and other single-pass reads. getCount() on
+       * these cursors runs a separate COUNT(*) query, and Room calls it for
+       * queries that return lists, so most apps should opt in individual
+       * queries via queryForwardOnly() on Database instead.
+       *
+       * @param forwardOnlyCursors true to use forward-only cursors for all
+       *                           queries; defaults to false
+       * @return the builder, for further configuration
+       */
+      public Builder setForwardOnlyCursors(boolean forwardOnlyCursors) {
+        this.forwardOnlyCursors = forwardOnlyCursors;
+
+        return this;
+      }
+
+      /**
+       * Makes identical queries, issued at the same time from different
+       * threads, share one execution. Queries match if they have the same
+       * SQL and the same bindings. Each caller gets its own Cursor over an
+       * in-memory copy of the results. Queries inside of a transaction, or
+       * with a CancellationSignal, always run on their own. Use
+       * getSingleFlight() on Database to see the hit rate.
+       *
+       * @param singleFlightQueries true to share identical concurrent
+       *                            queries; defaults to false
+       * @return the builder, for further configuration
+       */
+      public Builder setSingleFlightQueries(boolean singleFlightQueries) {
+        this.singleFlightQueries = singleFlightQueries;
+
+        return this;
+      }
+
+      /**
+       * Caches the results of queries in memory, so repeating a query with
+       * the same SQL and bindings skips the database. Cached results are
+       * dropped when insert(), update(), delete(), execSQL(), or a compiled
+       * statement on the same Database writes to a table they read. Only
+       * plain SELECTs from tables are cached; queries inside of a
+       * transaction, or with a CancellationSignal, always run. Writes made
+       * by other processes, or by other Database objects on the same file,
+       * are not seen, so do not use this in those cases. Use
+       * getResultCache() on Database to see the hit rate.
+       *
+       * @param maxEntries maximum number of results to cache, or 0 to
+       *                   disable the cache; defaults to 0
+       * @param maxBytes maximum estimated size of the cached results, in
+       *                 bytes; larger results are not cached
+       * @return the builder, for further configuration
+       */
+      public Builder setResultCache(int maxEntries, long maxBytes) {
+        if (maxEntries<0) {
+          throw new IllegalArgumentException("Result cache size cannot be negative");
+        }
+
+        if (maxBytes<0) {
+          throw new IllegalArgumentException("Result cache byte limit cannot be negative");
+        }
+
+        this.resultCacheSize = maxEntries;
+        this.resultCacheBytes = maxBytes;
+
+        return this;
+      }
+
       /**
        * @return the Options object containing your requested SQL
        */
       public Options build() {
-        return new Options(preKeySql, postKeySql, clearPassphrase);
+        return new Options(this);
       }
     }
   }
@@ -0,0 +1,221 @@
+/***
+ Copyright (c) 2020 CommonsWare, LLC
+ Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ use this file except in compliance with the License. You may obtain	a copy
+ of the License at http://www.apache.org/licenses/LICENSE-2.0. Unless required
+ by applicable law or agreed to in writing, software distributed under the
+ License is distributed on an "AS IS" BASIS,	WITHOUT	WARRANTIES OR CONDITIONS
+ OF ANY KIND, either express or implied. See the License for the specific
+ language governing permissions and limitations under the License.
+ */
+
+package com.commonsware.cwac.saferoom;
+
+import android.database.Cursor;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Collapses identical queries that are running at the same time into one
+ * execution. The first caller for a given SQL and set of bindings runs the
+ * query; callers that arrive while it is running wait for it instead of
+ * running the query themselves. If any did, the results are copied into
+ * memory once the query is done, and each caller gets its own Cursor over
+ * the copy; if none did, the first caller just gets the query's own
+ * Cursor, with nothing copied. Callers only join a query that started
+ * since the last write through the same Database, so a caller always sees
+ * its own writes. Use setSingleFlightQueries() on
+ * SafeHelperFactory.Options.Builder to enable it, and getSingleFlight() on
+ * Database to get at the counters.
+ *
+ * Since shared results are copied into memory, this suits the
+ * small-to-medium queries that observers tend to fire, not bulk scans.
+ */
+public final class SingleFlight {
+  private final ConcurrentHashMap<QueryKey, Flight> flights=
+    new ConcurrentHashMap<>();
+  private final AtomicLong executionCount=new AtomicLong();
+  private final AtomicLong sharedCount=new AtomicLong();
+
+  SingleFlight() {
+    // created by Database
+  }
+
+  /**
+   * @return the number of queries that were actually executed
+   */
+  public long getExecutionCount() {
+    return(executionCount.get());
+  }
+
+  /**
+   * @return the number of queries that shared another caller's execution
+   */
+  public long getSharedCount() {
+    return(sharedCount.get());
+  }
+
+  /**
+   * @return the fraction of queries that shared another caller's
+   * execution, or 0 if there have not been any queries
+   */
+  public double getHitRate() {
+    long shared=sharedCount.get();
+    long total=shared+executionCount.get();
+
+    return(total==0 ? 0 : (double)shared/total);
+  }
+
+  /**
+   * Runs the loader, or waits for an identical load that is already running
+   * and that started at this write generation or later. A load from an older
+   * generation may not see the latest writes, so it is left to finish for
+   * the callers already waiting on it, and a new one takes its place.
+   * Only the caller that runs the loader sees its side effects, such as
+   * populating a ResultCache.
+   */
+  Cursor load(QueryKey key, long generation, Loader loader) {
+    Flight flight=new Flight(generation);
+
+    while (true) {
+      Flight existing=flights.putIfAbsent(key, flight);
+
+      if (existing==null) {
+        break;
+      }
+      else if (existing.generation>=generation && existing.join()) {
+        CursorSnapshot shared=existing.await();
+
+        if (shared!=null) {
+          sharedCount.incrementAndGet();
+
+          return(shared.newCursor());
+        }
+
+        // the query failed, or its results could not be copied, so run it
+        // here, getting this caller's own results or exception
+        executionCount.incrementAndGet();
+
+        return(loader.run());
+      }
+      else if (flights.replace(key, existing, flight)) {
+        break;
+      }
+    }
+
+    executionCount.incrementAndGet();
+
+    Cursor live=null;
+
+    try {
+      live=loader.run();
+    }
+    finally {
+      flights.remove(key, flight);
+
+      if (live==null) {
+        flight.finish(null);
+      }
+    }
+
+    if (!flight.seal()) {
+      return(live);
+    }
+
+    CursorSnapshot snapshot=null;
+
+    try {
+      snapshot=loader.copy(live);
+    }
+    finally {
+      flight.finish(snapshot);
+    }
+
+    return(snapshot==null ? live : snapshot.newCursor());
+  }
+
+  /**
+   * Runs a query for SingleFlight, and copies its results for callers that
+   * joined it
+   */
+  interface Loader {
+    /**
+     * @return a Cursor on the query's results, after doing the work of
+     * running the query, so that identical queries can join while it runs
+     */
+    Cursor run();
+
+    /**
+     * @param live a Cursor returned by run(), positioned before its first row
+     * @return a copy of the results, or null if they cannot be copied; the
+     * Cursor is closed, unless this returns null, in which case it is left
+     * open and before its first row
+     */
+    CursorSnapshot copy(Cursor live);
+  }
+
+  private static final class Flight {
+    final long generation;
+    private final CountDownLatch done=new CountDownLatch(1);
+    private boolean sealed;
+    private int joined;
+    private CursorSnapshot result;
+
+    Flight(long generation) {
+      this.generation=generation;
+    }
+
+    /**
+     * @return true if the caller will get this flight's results, false if
+     * it has stopped taking callers
+     */
+    synchronized boolean join() {
+      if (sealed) {
+        return(false);
+      }
+
+      joined++;
+
+      return(true);
+    }
+
+    /**
+     * Stops taking callers
+     *
+     * @return true if any callers joined
+     */
+    synchronized boolean seal() {
+      sealed=true;
+
+      return(joined>0);
+    }
+
+    /**
+     * Hands the results to the callers that joined, or null if they need
+     * to run the query themselves
+     */
+    void finish(CursorSnapshot result) {
+      synchronized(this) {
+        sealed=true;
+        this.result=result;
+      }
+
+      done.countDown();
+    }
+
+    CursorSnapshot await() {
+      try {
+        done.await();
+      }
+      catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IllegalStateException("Interrupted while waiting for a shared query", e);
+      }
+
+      synchronized(this) {
+        return(result);
+      }
+    }
+  }
+}
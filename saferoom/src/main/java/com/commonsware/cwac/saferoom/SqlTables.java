@@ -0,0 +1,317 @@
+/***
+ Copyright (c) 2020 CommonsWare, LLC
+ Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ use this file except in compliance with the License. You may obtain	a copy
+ of the License at http://www.apache.org/licenses/LICENSE-2.0. Unless required
+ by applicable law or agreed to in writing, software distributed under the
+ License is distributed on an "AS IS" BASIS,	WITHOUT	WARRANTIES OR CONDITIONS
+ OF ANY KIND, either express or implied. See the License for the specific
+ language governing permissions and limitations under the License.
+ */
+
+package com.commonsware.cwac.saferoom;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Works out what a SQL statement does and which tables it reads or writes,
+ * for routing reads and for tagging and invalidating cached query results.
+ * This is a tokenizer, not a parser, so it errs on the side of caution:
+ * when in doubt, a statement is treated as a write, a read is treated as
+ * uncacheable, and a write as touching every table.
+ */
+final class SqlTables {
+  /**
+   * Returned by writtenTables() for statements that do not change any data
+   */
+  static final Set<String> NONE=new HashSet<>();
+
+  private static final Set<String> NOT_ALIASES=new HashSet<>(Arrays.asList(
+    "where", "join", "inner", "left", "right", "full", "cross", "natural",
+    "outer", "on", "using", "group", "order", "limit", "union", "except",
+    "intersect", "having", "window", "indexed", "not"));
+  private static final Set<String> VOLATILE=new HashSet<>(Arrays.asList(
+    "random", "randomblob", "changes", "total_changes", "last_insert_rowid",
+    "current_time", "current_date", "current_timestamp"));
+  private static final Set<String> STATEMENT_VERBS=new HashSet<>(Arrays.asList(
+    "select", "values", "insert", "replace", "update", "delete"));
+  private static final Set<String> NO_DATA_CHANGE=new HashSet<>(Arrays.asList(
+    "select", "begin", "commit", "end", "rollback", "savepoint", "release",
+    "pragma", "analyze", "vacuum", "reindex", "explain"));
+
+  private SqlTables() {
+    // static methods only
+  }
+
+  /**
+   * @return the lower-cased names of the tables read by a SELECT, or null
+   * if the statement is not a plain SELECT or its results could change
+   * without any table changing
+   */
+  static Set<String> readTables(String sql) {
+    List<String> tokens=tokenize(sql);
+
+    if (tokens.isEmpty() || !"select".equals(tokens.get(0)) ||
+      sql.toLowerCase(Locale.US).contains("'now'")) {
+      return(null);
+    }
+
+    Set<String> result=new HashSet<>();
+
+    for (int i=0;i<tokens.size();i++) {
+      String token=tokens.get(i);
+
+      if (VOLATILE.contains(token)) {
+        return(null);
+      }
+
+      if ("from".equals(token) || "join".equals(token)) {
+        i=readTableList(tokens, i+1, result, "from".equals(token));
+      }
+    }
+
+    return(result.isEmpty() ? null : result);
+  }
+
+  /**
+   * @return the lower-cased names of the tables that a statement writes to,
+   * NONE if it does not change data, or null if it might change anything
+   */
+  static Set<String> writtenTables(String sql) {
+    List<String> tokens=tokenize(sql);
+
+    if (tokens.isEmpty()) {
+      return(NONE);
+    }
+
+    String verb=tokens.get(0);
+    String table=null;
+
+    if (NO_DATA_CHANGE.contains(verb)) {
+      return(NONE);
+    }
+    else if ("insert".equals(verb) || "replace".equals(verb)) {
+      table=nameAfter(tokens, tokens.indexOf("into"));
+    }
+    else if ("update".equals(verb)) {
+      int i=1;
+
+      if ("or".equals(token(tokens, i))) {
+        i+=2;
+      }
+
+      table=nameAt(tokens, i);
+    }
+    else if ("delete".equals(verb)) {
+      table=nameAfter(tokens, tokens.indexOf("from"));
+    }
+
+    return(singleton(table));
+  }
+
+  /**
+   * @return the lower-cased verb of the statement, such as "select" or
+   * "insert", looking past any WITH clause, or null if there is none
+   */
+  static String verb(String sql) {
+    List<String> tokens=tokenize(sql);
+
+    if (!"with".equals(token(tokens, 0))) {
+      return(token(tokens, 0));
+    }
+
+    // the CTEs are all parenthesized, so the verb is the first keyword
+    // outside of parentheses that can start a statement
+    int depth=0;
+
+    for (String token : tokens) {
+      if ("(".equals(token)) {
+        depth++;
+      }
+      else if (")".equals(token)) {
+        depth--;
+      }
+      else if (depth==0 && STATEMENT_VERBS.contains(token)) {
+        return(token);
+      }
+    }
+
+    return(null);
+  }
+
+  /**
+   * @return the lower-cased name of a table, which may be quoted or
+   * qualified by a schema name, as a set, or null if it cannot be parsed
+   */
+  static Set<String> named(String table) {
+    return(singleton(nameAt(tokenize(table), 0)));
+  }
+
+  private static Set<String> singleton(String table) {
+    if (table==null) {
+      return(null);
+    }
+
+    Set<String> result=new HashSet<>();
+
+    result.add(table);
+
+    return(result);
+  }
+
+  private static int readTableList(List<String> tokens, int i, Set<String> result,
+                                   boolean allowList) {
+    while (i<tokens.size()) {
+      if ("(".equals(tokens.get(i))) {
+        // a subquery; its own FROM clauses get picked up separately
+        return(i);
+      }
+
+      String name=tokens.get(i);
+
+      if (".".equals(token(tokens, i+1))) {
+        i+=2;
+        name=token(tokens, i);
+      }
+
+      if (name==null) {
+        return(i);
+      }
+
+      i++;
+
+      // a name followed by ( is a table-valued function, such as json_each
+      if (!"(".equals(token(tokens, i))) {
+        result.add(name);
+      }
+
+      if ("as".equals(token(tokens, i))) {
+        i+=2;
+      }
+      else if (isAlias(token(tokens, i))) {
+        i++;
+      }
+
+      if (!allowList || !",".equals(token(tokens, i))) {
+        return(i-1);
+      }
+
+      i++;
+    }
+
+    return(i);
+  }
+
+  private static boolean isAlias(String token) {
+    return(token!=null && !NOT_ALIASES.contains(token) &&
+      (Character.isLetter(token.charAt(0)) || token.charAt(0)=='_'));
+  }
+
+  private static String nameAfter(List<String> tokens, int keyword) {
+    return(keyword<0 ? null : nameAt(tokens, keyword+1));
+  }
+
+  private static String nameAt(List<String> tokens, int i) {
+    String result=token(tokens, i);
+
+    if (".".equals(token(tokens, i+1))) {
+      result=token(tokens, i+2);
+    }
+
+    if (result==null || result.length()==0 ||
+      !(Character.isLetterOrDigit(result.charAt(0)) || result.charAt(0)=='_')) {
+      return(null);
+    }
+
+    return(result);
+  }
+
+  private static String token(List<String> tokens, int i) {
+    return(i>=0 && i<tokens.size() ? tokens.get(i) : null);
+  }
+
+  /**
+   * Splits SQL into lower-cased words and quoted identifiers (unquoted),
+   * plus single-character punctuation. String literals and comments are
+   * dropped.
+   */
+  static List<String> tokenize(String sql) {
+    List<String> result=new ArrayList<>();
+    int length=sql.length();
+    int i=0;
+
+    while (i<length) {
+      char c=sql.charAt(i);
+
+      if (Character.isWhitespace(c)) {
+        i++;
+      }
+      else if (c=='-' && i+1<length && sql.charAt(i+1)=='-') {
+        int end=sql.indexOf('\n', i);
+
+        i=(end<0 ? length : end+1);
+      }
+      else if (c=='/' && i+1<length && sql.charAt(i+1)=='*') {
+        int end=sql.indexOf("*/", i+2);
+
+        i=(end<0 ? length : end+2);
+      }
+      else if (c=='\'') {
+        i=skipQuoted(sql, i, '\'')+1;
+      }
+      else if (c=='"' || c=='`' || c=='[') {
+        char close=(c=='[' ? ']' : c);
+        int end=skipQuoted(sql, i, close);
+
+        result.add(sql.substring(i+1, Math.min(end, length))
+          .replace(String.valueOf(close)+close, String.valueOf(close))
+          .toLowerCase(Locale.US));
+        i=end+1;
+      }
+      else if (Character.isLetterOrDigit(c) || c=='_' || c=='$') {
+        int start=i;
+
+        while (i<length && (Character.isLetterOrDigit(sql.charAt(i)) ||
+          sql.charAt(i)=='_' || sql.charAt(i)=='$')) {
+          i++;
+        }
+
+        result.add(sql.substring(start, i).toLowerCase(Locale.US));
+      }
+      else {
+        result.add(String.valueOf(c));
+        i++;
+      }
+    }
+
+    return(result);
+  }
+
+  /**
+   * @return the index of the closing quote, treating a doubled quote as an
+   * escaped one, or the length of the SQL if it is unterminated
+   */
+  private static int skipQuoted(String sql, int start, char close) {
+    int i=start+1;
+
+    while (i<sql.length()) {
+      if (sql.charAt(i)==close) {
+        if (close!=']' && i+1<sql.length() && sql.charAt(i+1)==close) {
+          i+=2;
+          continue;
+        }
+
+        return(i);
+      }
+
+      i++;
+    }
+
+    return(sql.length());
+  }
+}
@@ -0,0 +1,159 @@
+/***
+ Copyright (c) 2020 CommonsWare, LLC
+ Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ use this file except in compliance with the License. You may obtain	a copy
+ of the License at http://www.apache.org/licenses/LICENSE-2.0. Unless required
+ by applicable law or agreed to in writing, software distributed under the
+ License is distributed on an "AS IS" BASIS,	WITHOUT	WARRANTIES OR CONDITIONS
+ OF ANY KIND, either express or implied. See the License for the specific
+ language governing permissions and limitations under the License.
+ */
+
+package com.commonsware.cwac.saferoom;
+
+import android.text.TextUtils;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Size-bounded LRU cache of the SQL that Database generates for update()
+ * and delete(), so repeated calls with the same shape skip rebuilding it.
+ * The compiled statements themselves are reused via the StatementCache.
+ */
+class SqlTemplates {
+  private static final int DELETE=-1;
+
+  private final LinkedHashMap<Key, Template> templates;
+
+  SqlTemplates(final int maxSize) {
+    templates=new LinkedHashMap<Key, Template>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<Key, Template> eldest) {
+        return(size()>maxSize);
+      }
+    };
+  }
+
+  synchronized Template forUpdate(String table, int conflictAlgorithm,
+                                  Set<String> columns, String whereClause) {
+    Key key=new Key(table, conflictAlgorithm, columns, whereClause);
+    Template result=templates.get(key);
+
+    if (result==null) {
+      result=buildUpdate(table, conflictAlgorithm, columns, whereClause);
+      templates.put(key.detach(), result);
+    }
+
+    return(result);
+  }
+
+  synchronized Template forDelete(String table, String whereClause) {
+    Key key=new Key(table, DELETE, Collections.<String>emptySet(), whereClause);
+    Template result=templates.get(key);
+
+    if (result==null) {
+      result=buildDelete(table, whereClause);
+      templates.put(key, result);
+    }
+
+    return(result);
+  }
+
+  static Template buildUpdate(String table, int conflictAlgorithm,
+                              Set<String> columns, String whereClause) {
+    // taken from SQLiteDatabase class.
+    String[] columnOrder=columns.toArray(new String[0]);
+    StringBuilder sql = new StringBuilder(120);
+    sql.append("UPDATE ");
+    sql.append(Database.CONFLICT_VALUES[conflictAlgorithm]);
+    sql.append(table);
+    sql.append(" SET ");
+
+    for (int i=0;i<columnOrder.length;i++) {
+      sql.append((i > 0) ? "," : "");
+      sql.append(columnOrder[i]);
+      sql.append("=?");
+    }
+    if (!TextUtils.isEmpty(whereClause)) {
+      sql.append(" WHERE ");
+      sql.append(whereClause);
+    }
+
+    return(new Template(sql.toString(), columnOrder));
+  }
+
+  static Template buildDelete(String table, String whereClause) {
+    String sql = "DELETE FROM " + table
+      + (TextUtils.isEmpty(whereClause) ? "" : " WHERE " + whereClause);
+
+    return(new Template(sql, new String[0]));
+  }
+
+  static class Template {
+    final String sql;
+    final String[] columns;
+
+    Template(String sql, String[] columns) {
+      this.sql=sql;
+      this.columns=columns;
+    }
+  }
+
+  private static class Key {
+    private final String table;
+    private final int conflictAlgorithm;
+    private final Set<String> columns;
+    private final String whereClause;
+    private final int hash;
+
+    Key(String table, int conflictAlgorithm, Set<String> columns,
+        String whereClause) {
+      this.table=table;
+      this.conflictAlgorithm=conflictAlgorithm;
+      this.columns=columns;
+      this.whereClause=whereClause;
+
+      int h=table.hashCode();
+
+      h=31*h+conflictAlgorithm;
+      h=31*h+columns.hashCode();
+      h=31*h+(whereClause==null ? 0 : whereClause.hashCode());
+      hash=h;
+    }
+
+    /**
+     * @return a copy of this key that does not hold onto the caller's
+     * column set, which may be a live view of a ContentValues
+     */
+    Key detach() {
+      return(new Key(table, conflictAlgorithm, new HashSet<>(columns),
+        whereClause));
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this==o) {
+        return(true);
+      }
+
+      if (!(o instanceof Key)) {
+        return(false);
+      }
+
+      Key other=(Key)o;
+
+      return(hash==other.hash && conflictAlgorithm==other.conflictAlgorithm
+        && table.equals(other.table)
+        && TextUtils.equals(whereClause, other.whereClause)
+        && columns.equals(other.columns));
+    }
+
+    @Override
+    public int hashCode() {
+      return(hash);
+    }
+  }
+}
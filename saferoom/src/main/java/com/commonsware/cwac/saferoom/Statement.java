@@ -12,6 +12,7 @@
 package com.commonsware.cwac.saferoom;
 
 import net.sqlcipher.database.SQLiteStatement;
+import java.util.Set;
 import androidx.sqlite.db.SupportSQLiteStatement;
 
 /**
@@ -20,10 +21,20 @@ import androidx.sqlite.db.SupportSQLiteStatement;
  */
 class Statement extends Program implements SupportSQLiteStatement {
   private final SQLiteStatement safeStatement;
+  private final String sql;
+  private final StatementCache cache;
+  private final Database owner;
+  private Set<String> writes;
+  private boolean writesParsed;
+  private boolean released;
 
-  Statement(SQLiteStatement safeStatement) {
+  Statement(SQLiteStatement safeStatement, String sql, StatementCache cache,
+            Database owner) {
     super(safeStatement);
     this.safeStatement=safeStatement;
+    this.sql=sql;
+    this.cache=cache;
+    this.owner=owner;
   }
 
   /**
@@ -32,6 +43,7 @@ class Statement extends Program implements SupportSQLiteStatement {
   @Override
   public void execute() {
     safeStatement.execute();
+    wrote();
   }
 
   /**
@@ -39,7 +51,11 @@ class Statement extends Program implements SupportSQLiteStatement {
    */
   @Override
   public int executeUpdateDelete() {
-    return safeStatement.executeUpdateDelete();
+    int result=safeStatement.executeUpdateDelete();
+
+    wrote();
+
+    return result;
   }
 
   /**
@@ -47,7 +63,11 @@ class Statement extends Program implements SupportSQLiteStatement {
    */
   @Override
   public long executeInsert() {
-    return safeStatement.executeInsert();
+    long result=safeStatement.executeInsert();
+
+    wrote();
+
+    return result;
   }
 
   /**
@@ -65,4 +85,61 @@ class Statement extends Program implements SupportSQLiteStatement {
   public String simpleQueryForString() {
     return safeStatement.simpleQueryForString();
   }
+
+  /**
+   * {@inheritDoc}
+   *
+   * NOTE: if this statement came from a StatementCache, it is handed back to
+   * that cache for reuse, rather than being closed. Closing it again, before
+   * it is handed out anew, does nothing.
+   */
+  @Override
+  public void close() {
+    if (released) {
+      return;
+    }
+
+    released=true;
+
+    if (cache==null) {
+      super.close();
+    }
+    else {
+      clearBindings();
+      cache.release(this);
+    }
+  }
+
+  /**
+   * Tells the owning Database which tables this statement may have changed,
+   * working that out once per statement, as statements get reused
+   */
+  private void wrote() {
+    if (owner.tracksWrites()) {
+      if (!writesParsed) {
+        writes=SqlTables.writtenTables(sql);
+        writesParsed=true;
+      }
+
+      owner.wroteTables(writes);
+    }
+  }
+
+  /**
+   * Called by StatementCache when handing this statement out again
+   */
+  void checkedOut() {
+    released=false;
+  }
+
+  String getSql() {
+    return(sql);
+  }
+
+  /**
+   * Closes the underlying SQLCipher statement, bypassing the cache
+   */
+  void dispose() {
+    super.close();
+  }
 }
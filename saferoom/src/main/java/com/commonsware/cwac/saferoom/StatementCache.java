@@ -0,0 +1,119 @@
+/***
+ Copyright (c) 2020 CommonsWare, LLC
+ Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ use this file except in compliance with the License. You may obtain	a copy
+ of the License at http://www.apache.org/licenses/LICENSE-2.0. Unless required
+ by applicable law or agreed to in writing, software distributed under the
+ License is distributed on an "AS IS" BASIS,	WITHOUT	WARRANTIES OR CONDITIONS
+ OF ANY KIND, either express or implied. See the License for the specific
+ language governing permissions and limitations under the License.
+ */
+
+package com.commonsware.cwac.saferoom;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Size-bounded LRU cache of compiled statements, keyed by their SQL. A
+ * Statement is removed from the cache while it is in use and is returned
+ * to the cache when it is closed. Use setStatementCacheSize() on
+ * SafeHelperFactory.Options.Builder to enable it, and getStatementCache()
+ * on Database to get at the counters.
+ */
+public final class StatementCache {
+  private final int maxSize;
+  private final LinkedHashMap<String, Statement> idle=
+    new LinkedHashMap<>(16, 0.75f, true);
+  private long hitCount;
+  private long missCount;
+  private long evictionCount;
+  private boolean closed;
+
+  StatementCache(int maxSize) {
+    this.maxSize=maxSize;
+  }
+
+  /**
+   * @return the maximum number of idle statements held by this cache
+   */
+  public int getMaxSize() {
+    return(maxSize);
+  }
+
+  /**
+   * @return the number of idle statements held by this cache
+   */
+  public synchronized int size() {
+    return(idle.size());
+  }
+
+  /**
+   * @return the number of compileStatement() calls satisfied from the cache
+   */
+  public synchronized long getHitCount() {
+    return(hitCount);
+  }
+
+  /**
+   * @return the number of compileStatement() calls that had to compile
+   */
+  public synchronized long getMissCount() {
+    return(missCount);
+  }
+
+  /**
+   * @return the number of idle statements closed to stay within the size
+   * limit
+   */
+  public synchronized long getEvictionCount() {
+    return(evictionCount);
+  }
+
+  synchronized Statement acquire(String sql) {
+    Statement result=closed ? null : idle.remove(sql);
+
+    if (result==null) {
+      missCount++;
+    }
+    else {
+      hitCount++;
+      result.checkedOut();
+    }
+
+    return(result);
+  }
+
+  synchronized void release(Statement statement) {
+    if (closed || idle.containsKey(statement.getSql())) {
+      statement.dispose();
+    }
+    else {
+      idle.put(statement.getSql(), statement);
+
+      Iterator<Map.Entry<String, Statement>> entries=idle.entrySet().iterator();
+
+      while (idle.size()>maxSize && entries.hasNext()) {
+        Statement eldest=entries.next().getValue();
+
+        entries.remove();
+        eldest.dispose();
+        evictionCount++;
+      }
+    }
+  }
+
+  synchronized void clear() {
+    for (Statement statement : idle.values()) {
+      statement.dispose();
+    }
+
+    idle.clear();
+  }
+
+  synchronized void close() {
+    clear();
+    closed=true;
+  }
+}
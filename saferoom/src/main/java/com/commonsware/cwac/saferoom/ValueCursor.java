@@ -0,0 +1,298 @@
+/***
+ Copyright (c) 2020 CommonsWare, LLC
+ Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ use this file except in compliance with the License. You may obtain	a copy
+ of the License at http://www.apache.org/licenses/LICENSE-2.0. Unless required
+ by applicable law or agreed to in writing, software distributed under the
+ License is distributed on an "AS IS" BASIS,	WITHOUT	WARRANTIES OR CONDITIONS
+ OF ANY KIND, either express or implied. See the License for the specific
+ language governing permissions and limitations under the License.
+ */
+
+package com.commonsware.cwac.saferoom;
+
+import android.database.AbstractCursor;
+import android.database.Cursor;
+import java.nio.charset.Charset;
+
+/**
+ * Base class for cursors whose rows have been copied out of SQLCipher into
+ * Java objects: Long, Double, String, byte[], or null for each cell. The
+ * typed getters convert between those the way SQLite does: text and blobs
+ * are read as integers or reals by their longest integer or real prefix,
+ * or 0 if there is none, rather than throwing. Rows may be shared between cursors, so
+ * getBlob() hands out copies.
+ */
+abstract class ValueCursor extends AbstractCursor {
+  // StandardCharsets needs API 19
+  private static final Charset UTF_8=Charset.forName("UTF-8");
+
+  /**
+   * @param column index of a column
+   * @return the value of that column in the current row
+   */
+  abstract Object getValue(int column);
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public int getType(int column) {
+    Object value=getValue(column);
+
+    if (value==null) {
+      return(FIELD_TYPE_NULL);
+    }
+    else if (value instanceof Long) {
+      return(FIELD_TYPE_INTEGER);
+    }
+    else if (value instanceof Double) {
+      return(FIELD_TYPE_FLOAT);
+    }
+    else if (value instanceof byte[]) {
+      return(FIELD_TYPE_BLOB);
+    }
+
+    return(FIELD_TYPE_STRING);
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public String getString(int column) {
+    Object value=getValue(column);
+
+    if (value==null) {
+      return(null);
+    }
+    else if (value instanceof byte[]) {
+      return(new String((byte[])value, UTF_8));
+    }
+
+    return(value.toString());
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public byte[] getBlob(int column) {
+    Object value=getValue(column);
+
+    if (value==null) {
+      return(null);
+    }
+    else if (value instanceof byte[]) {
+      return(((byte[])value).clone());
+    }
+
+    return(value.toString().getBytes(UTF_8));
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public short getShort(int column) {
+    return((short)getLong(column));
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public int getInt(int column) {
+    return((int)getLong(column));
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public long getLong(int column) {
+    Object value=getValue(column);
+
+    if (value==null) {
+      return(0);
+    }
+    else if (value instanceof Number) {
+      return(((Number)value).longValue());
+    }
+
+    return(toLong(getString(column)));
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public float getFloat(int column) {
+    return((float)getDouble(column));
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public double getDouble(int column) {
+    Object value=getValue(column);
+
+    if (value==null) {
+      return(0);
+    }
+    else if (value instanceof Number) {
+      return(((Number)value).doubleValue());
+    }
+
+    return(toDouble(getString(column)));
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public boolean isNull(int column) {
+    return(getValue(column)==null);
+  }
+
+  /**
+   * @return text read as an integer the way SQLite does: by its longest
+   * integer prefix, clamped if it is out of range, or 0 if it does not
+   * start with an integer
+   */
+  static long toLong(String text) {
+    int length=text.length();
+    int i=0;
+
+    while (i<length && Character.isWhitespace(text.charAt(i))) {
+      i++;
+    }
+
+    boolean negative=(i<length && text.charAt(i)=='-');
+
+    if (i<length && (text.charAt(i)=='+' || text.charAt(i)=='-')) {
+      i++;
+    }
+
+    long result=0;
+
+    for (;i<length && isDigit(text.charAt(i));i++) {
+      int digit=text.charAt(i)-'0';
+
+      // accumulate as a negative number, which has room for Long.MIN_VALUE
+      if (result<(Long.MIN_VALUE+digit)/10) {
+        return(negative ? Long.MIN_VALUE : Long.MAX_VALUE);
+      }
+
+      result=result*10-digit;
+    }
+
+    if (!negative) {
+      return(result==Long.MIN_VALUE ? Long.MAX_VALUE : -result);
+    }
+
+    return(result);
+  }
+
+  /**
+   * @return text read as a real the way SQLite does: by its longest numeric
+   * prefix, or 0 if it does not start with a number
+   */
+  static double toDouble(String text) {
+    String number=numericPrefix(text);
+
+    return(number.isEmpty() ? 0 : Double.parseDouble(number));
+  }
+
+  /**
+   * @return the longest prefix of the text, after any leading whitespace,
+   * that is a decimal number with an optional sign, fraction, and exponent,
+   * or an empty string if there are no digits
+   */
+  private static String numericPrefix(String text) {
+    int length=text.length();
+    int start=0;
+
+    while (start<length && Character.isWhitespace(text.charAt(start))) {
+      start++;
+    }
+
+    int i=start;
+
+    if (i<length && (text.charAt(i)=='+' || text.charAt(i)=='-')) {
+      i++;
+    }
+
+    int digits=0;
+
+    while (i<length && isDigit(text.charAt(i))) {
+      i++;
+      digits++;
+    }
+
+    if (i<length && text.charAt(i)=='.') {
+      int fraction=i+1;
+
+      while (fraction<length && isDigit(text.charAt(fraction))) {
+        fraction++;
+        digits++;
+      }
+
+      if (digits>0) {
+        i=fraction;
+      }
+    }
+
+    if (digits==0) {
+      return("");
+    }
+
+    if (i<length && (text.charAt(i)=='e' || text.charAt(i)=='E')) {
+      int exponent=i+1;
+
+      if (exponent<length &&
+        (text.charAt(exponent)=='+' || text.charAt(exponent)=='-')) {
+        exponent++;
+      }
+
+      if (exponent<length && isDigit(text.charAt(exponent))) {
+        while (exponent<length && isDigit(text.charAt(exponent))) {
+          exponent++;
+        }
+
+        i=exponent;
+      }
+    }
+
+    return(text.substring(start, i));
+  }
+
+  private static boolean isDigit(char c) {
+    return(c>='0' && c<='9');
+  }
+
+  /**
+   * @param source a cursor positioned on a row
+   * @param column index of a column
+   * @return the value of that column, as the object used by ValueCursor
+   */
+  static Object readValue(Cursor source, int column) {
+    switch (source.getType(column)) {
+      case FIELD_TYPE_NULL:
+        return(null);
+
+      case FIELD_TYPE_INTEGER:
+        return(source.getLong(column));
+
+      case FIELD_TYPE_FLOAT:
+        return(source.getDouble(column));
+
+      case FIELD_TYPE_BLOB:
+        return(source.getBlob(column));
+
+      default:
+        return(source.getString(column));
+    }
+  }
+}